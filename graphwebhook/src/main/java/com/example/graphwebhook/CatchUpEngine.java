@@ -0,0 +1,358 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiException;
+import com.microsoft.kiota.HttpMethod;
+import com.microsoft.kiota.RequestInformation;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Recovers messages that arrived without a notification reaching the app, because Graph sent a
+ * missed lifecycle event or the app wasn't running. Each mail subscription keeps a delta link for
+ * its resource in the {@link DeltaLinkStore}. A catch-up pages through the delta from that link,
+ * emits every new message through the same lane and Socket.IO room as live notifications, and saves
+ * the new delta link. The deduplicator drops messages that live notifications already delivered and
+ * the other way around.
+ * <p>
+ * The first run for a subscription only establishes its delta link, filtered to messages received
+ * from then on. Runs are queued per subscription and a fixed number of them page at once
+ */
+@Service
+public class CatchUpEngine {
+
+    /**
+     * Mail folder message collections, the resources that support delta queries
+     */
+    private static final Pattern DELTA_RESOURCE = Pattern.compile(
+            "^/?(me|users/[^/]+)(/mailfolders/[^/]+)?/messages$", Pattern.CASE_INSENSITIVE);
+
+    private static final String CREATED = "created";
+
+    /**
+     * Outcomes of a run, as returned by {@link #page}
+     */
+    private static final List<String> RESULTS =
+            List.of("success", "partial", "reset", "unauthorized", "failure");
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final SubscriptionStore subscriptionStore;
+    private final DeltaLinkStore deltaLinks;
+    private final GraphClientHelper graphClientHelper;
+    private final PayloadProjections projections;
+    private final NotificationProcessor processor;
+    private final NotificationDeduplicator deduplicator;
+    private final boolean enabled;
+    private final boolean onStartup;
+    private final int pageSize;
+    private final int maxPages;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Counter emittedCounter;
+    private final Counter duplicateCounter;
+    private final Map<String, Timer> durationTimers = new HashMap<>();
+
+    public CatchUpEngine(SubscriptionStore subscriptionStore, DeltaLinkStore deltaLinks,
+            GraphClientHelper graphClientHelper, PayloadProjections projections,
+            NotificationProcessor processor, NotificationDeduplicator deduplicator,
+            MeterRegistry meterRegistry,
+            @Value("${notifications.catch-up.enabled:true}") final boolean enabled,
+            @Value("${notifications.catch-up.on-startup:true}") final boolean onStartup,
+            @Value("${notifications.catch-up.concurrency:4}") final int concurrency,
+            @Value("${notifications.catch-up.page-size:50}") final int pageSize,
+            @Value("${notifications.catch-up.max-pages:100}") final int maxPages) {
+        this.subscriptionStore = Objects.requireNonNull(subscriptionStore);
+        this.deltaLinks = Objects.requireNonNull(deltaLinks);
+        this.graphClientHelper = Objects.requireNonNull(graphClientHelper);
+        this.projections = Objects.requireNonNull(projections);
+        this.processor = Objects.requireNonNull(processor);
+        this.deduplicator = Objects.requireNonNull(deduplicator);
+        this.enabled = enabled;
+        this.onStartup = onStartup;
+        this.pageSize = Math.max(1, pageSize);
+        this.maxPages = Math.max(1, maxPages);
+
+        final int threads = Math.max(1, concurrency);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new CustomizableThreadFactory("catch-up-"));
+
+        Gauge.builder("notifications.catch-up.queued", executor.getQueue(), BlockingQueue::size)
+                .description("Subscriptions waiting for a catch-up run")
+                .register(meterRegistry);
+        emittedCounter = Counter.builder("notifications.catch-up.emitted")
+                .description("Messages found by catch-up and sent to clients")
+                .register(meterRegistry);
+        duplicateCounter = Counter.builder("notifications.catch-up.duplicates")
+                .description("Messages found by catch-up that live notifications already delivered")
+                .register(meterRegistry);
+        for (final var result : RESULTS) {
+            durationTimers.put(result, Timer.builder("notifications.catch-up.duration")
+                    .description("Time spent paging through a subscription's delta")
+                    .tag("result", result)
+                    .register(meterRegistry));
+        }
+    }
+
+
+    /**
+     * Forgets delta links of subscriptions that no longer exist and catches up every mail
+     * subscription, recovering what arrived while the app was down
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        for (final var subscriptionId : deltaLinks.subscriptionIds()) {
+            if (subscriptionStore.getSubscription(subscriptionId) == null) {
+                deltaLinks.remove(subscriptionId);
+            }
+        }
+        if (onStartup) {
+            subscriptionStore.getAllSubscriptions().forEach(this::trigger);
+        }
+    }
+
+
+    /**
+     * Stops paging, queued runs are dropped
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * Queues a catch-up run for a subscription, unless one is already queued. Subscriptions on
+     * resources without delta support are ignored
+     *
+     * @param subscription the subscription to catch up
+     */
+    public void trigger(@NonNull final SubscriptionRecord subscription) {
+        Objects.requireNonNull(subscription);
+        if (!enabled || subscription.resource == null
+                || !DELTA_RESOURCE.matcher(subscription.resource).matches()) {
+            return;
+        }
+        final var subscriptionId = subscription.subscriptionId;
+        if (queued.add(subscriptionId)) {
+            executor.execute(() -> {
+                // Removed before paging so a trigger during the run queues another
+                queued.remove(subscriptionId);
+                run(subscriptionId);
+            });
+        }
+    }
+
+
+    /**
+     * Hands a subscription's delta link to the subscription that replaced it
+     *
+     * @param fromSubscriptionId the replaced subscription
+     * @param toSubscriptionId the replacement subscription
+     */
+    public void moveDeltaLink(@NonNull final String fromSubscriptionId,
+            @NonNull final String toSubscriptionId) {
+        final var deltaLink = deltaLinks.get(fromSubscriptionId);
+        if (deltaLink != null) {
+            deltaLinks.put(toSubscriptionId, deltaLink);
+            deltaLinks.remove(fromSubscriptionId);
+        }
+    }
+
+    private void run(final String subscriptionId) {
+        final var subscription = subscriptionStore.getSubscription(subscriptionId);
+        if (subscription == null) {
+            deltaLinks.remove(subscriptionId);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        String result = "failure";
+        try {
+            result = page(subscription);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.warn("Error catching up subscription {}: {}", subscriptionId, e.getMessage());
+        } finally {
+            durationTimers.get(result).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return the outcome for the duration metric
+     */
+    private String page(final SubscriptionRecord subscription) throws InterruptedException {
+        final var subscriptionId = subscription.subscriptionId;
+        final var graphClient = graphClientHelper.getGraphClient(subscription.getRegistrationId(),
+                subscription.userId);
+        if (graphClient == null) {
+            log.warn("No authorized client to catch up subscription {}", subscriptionId);
+            return "unauthorized";
+        }
+
+        final var deltaPath = stripLeadingSlash(Objects.requireNonNull(subscription.resource))
+                + "/delta";
+        // Keyed by the collection, which is the segment before /delta
+        final var projection = projections.forResource(deltaPath);
+        final var savedLink = deltaLinks.get(subscriptionId);
+        // Without a saved link this run only establishes one
+        final boolean emit = savedLink != null;
+        var url = savedLink != null ? savedLink
+                : graphClient.getRequestAdapter().getBaseUrl() + "/" + initialQuery(deltaPath,
+                        projection);
+
+        int emitted = 0;
+        for (int pages = 0; pages < maxPages; pages++) {
+            final JsonObject page;
+            try {
+                page = getPage(graphClient, url);
+            } catch (ApiException e) {
+                if (e.getResponseStatusCode() == 410) {
+                    // Graph reset the sync state, start over from now
+                    log.warn("Delta link for subscription {} expired, resetting", subscriptionId);
+                    deltaLinks.remove(subscriptionId);
+                    trigger(subscription);
+                    return "reset";
+                }
+                throw e;
+            }
+
+            final var items = page.getAsJsonArray("value");
+            if (emit && items != null) {
+                for (final JsonElement item : items) {
+                    if (emit(subscription, projection, item.getAsJsonObject())) {
+                        emitted++;
+                    }
+                }
+            }
+
+            final var nextLink = getString(page, "@odata.nextLink");
+            if (nextLink == null) {
+                final var deltaLink = getString(page, "@odata.deltaLink");
+                if (deltaLink != null) {
+                    deltaLinks.put(subscriptionId, deltaLink);
+                }
+                if (emitted > 0) {
+                    log.info("Caught up {} messages for subscription {}", emitted,
+                            subscriptionId);
+                }
+                return "success";
+            }
+            url = nextLink;
+            if (!emit) {
+                continue;
+            }
+            // A next link resumes the delta too, so progress survives a restart
+            deltaLinks.put(subscriptionId, nextLink);
+        }
+
+        // Let other subscriptions have a turn, then carry on from the saved link
+        log.info("Caught up {} messages for subscription {}, continuing later", emitted,
+                subscriptionId);
+        trigger(subscription);
+        return "partial";
+    }
+
+    /**
+     * @return true if the message was sent to clients
+     */
+    private boolean emit(final SubscriptionRecord subscription,
+            final ResourceProjection projection, final JsonObject item)
+            throws InterruptedException {
+        final var id = getString(item, "id");
+        // Removed messages and updates to ones we never saw aren't new messages
+        if (id == null || item.has("@removed")) {
+            return false;
+        }
+        if (deduplicator.isDuplicate(subscription.subscriptionId, null, CREATED, id)) {
+            duplicateCounter.increment();
+            return false;
+        }
+        processor.emitMessage(subscription, projection, item);
+        emittedCounter.increment();
+        return true;
+    }
+
+    private String initialQuery(final String deltaPath, final ResourceProjection projection) {
+        // Delta queries support $select but not $expand
+        final var query = projection == null ? deltaPath
+                : new ResourceProjection(projection.select(), null).apply(deltaPath);
+        final var filter = "receivedDateTime ge "
+                + Instant.now().truncatedTo(ChronoUnit.SECONDS).toString();
+        return query + (query.contains("?") ? "&" : "?") + "$filter="
+                + URLEncoder.encode(filter, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private JsonObject getPage(final GraphServiceClient graphClient, final String url) {
+        final var request = new RequestInformation();
+        request.httpMethod = HttpMethod.GET;
+        try {
+            request.setUri(new URI(url));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid delta URL " + url, e);
+        }
+        request.headers.add("Accept", "application/json");
+        request.headers.add("Prefer", "odata.maxpagesize=" + pageSize);
+
+        try (InputStream stream = graphClient.getRequestAdapter().sendPrimitive(request, null,
+                InputStream.class)) {
+            if (stream == null) {
+                return new JsonObject();
+            }
+            return JsonParser.parseReader(new InputStreamReader(stream, StandardCharsets.UTF_8))
+                    .getAsJsonObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String getString(final JsonObject object, final String name) {
+        final var value = object.get(name);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    private static String stripLeadingSlash(final String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+}
@@ -3,43 +3,117 @@
 
 package com.example.graphwebhook;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.Security;
-import java.security.cert.CertificateException;
-import java.util.Arrays;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import javax.crypto.Cipher;
-import javax.crypto.Mac;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
 
 /**
- * Service responsible for certificate operations: - getting the certificate - validating signatures
- * - decrypting content
+ * Service responsible for certificate operations: - getting the certificate - decrypting the
+ * symmetric keys of encrypted content, which {@link DecryptionEngine} then uses to validate and
+ * decrypt the content.
+ * <p>
+ * The keystore is loaded as a keyring of every accepted certificate, indexed by certificate ID
+ * (the keystore alias) and by thumbprint, so notifications encrypted with a certificate that has
+ * since been rotated out for new subscriptions can still be decrypted. The keyring is loaded once
+ * and swapped in place when the keystore file changes on disk
  */
 @Service
 public class CertificateStoreService {
 
+    /**
+     * A certificate new subscriptions can be created with
+     *
+     * @param id the certificate ID, which Microsoft Graph sends back as encryptionCertificateId
+     * @param base64EncodedCertificate the certificate encoded in base64
+     * @param thumbprint the SHA-1 thumbprint of the certificate, as uppercase hex
+     */
+    public record EncryptionCertificate(String id, String base64EncodedCertificate,
+            String thumbprint) {
+    }
+
+    /**
+     * A certificate and its private key
+     */
+    private static final class KeyEntry {
+        final EncryptionCertificate certificate;
+        final PrivateKey privateKey;
+        final Date notBefore;
+
+        KeyEntry(final EncryptionCertificate certificate, final PrivateKey privateKey,
+                final Date notBefore) {
+            this.certificate = certificate;
+            this.privateKey = privateKey;
+            this.notBefore = notBefore;
+        }
+    }
+
+    /**
+     * Immutable snapshot of everything read from the keystore. Readers take a reference once and
+     * use it for the whole operation, so a reload never affects a decryption in flight
+     */
+    private static final class KeyMaterial {
+        final KeyEntry active;
+        final Map<String, KeyEntry> byId;
+        final Map<String, KeyEntry> byThumbprint;
+        final FileTime lastModified;
+        final long size;
+
+        KeyMaterial(final KeyEntry active, final Map<String, KeyEntry> byId,
+                final Map<String, KeyEntry> byThumbprint, final FileTime lastModified,
+                final long size) {
+            this.active = active;
+            this.byId = byId;
+            this.byThumbprint = byThumbprint;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+
     @Value("${certificate.storename}")
     private String storeName;
 
     @Value("${certificate.storepass}")
     private String storePassword;
 
-    @Value("${certificate.alias}")
-    private String alias;
+    @Value("${certificate.active-alias:${certificate.alias:}}")
+    private String activeAlias;
+
+    @Value("${certificate.aliases:}")
+    private List<String> aliases;
+
+    @Autowired
+    private DataKeyCache dataKeyCache;
+
+    private volatile KeyMaterial keyMaterial;
 
     private Logger log = LoggerFactory.getLogger(this.getClass());
 
@@ -50,113 +124,221 @@ public class CertificateStoreService {
         Security.addProvider(new BouncyCastleProvider());
     }
 
+
     /**
-     * @return the KeyStore specified in application.yml
-     * @throws KeyStoreException
-     * @throws NoSuchAlgorithmException
-     * @throws CertificateException
-     * @throws IOException
+     * Loads the key material from the keystore specified in application.yml on startup
      */
-    private KeyStore getCertificateStore()
-            throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
-        var keystore = KeyStore.getInstance("JKS");
-        keystore.load(new FileInputStream(storeName), storePassword.toCharArray());
-        return keystore;
+    @PostConstruct
+    public void loadKeyMaterial() {
+        try {
+            keyMaterial = readKeyMaterial();
+        } catch (final Exception e) {
+            // Delegated subscriptions don't need the certificate, so keep the app running
+            log.error("Error loading certificate store", e);
+        }
     }
 
 
     /**
-     * @return the certificate specified in application.yml encoded in base64
+     * Reloads the key material if the keystore file has changed since it was last loaded. If the
+     * new file can't be read the previous key material stays in use
      */
-    public String getBase64EncodedCertificate() {
+    @Scheduled(fixedDelayString = "${certificate.reload-interval:30s}")
+    public void reloadIfChanged() {
         try {
-            var keystore = getCertificateStore();
-            var certificate = keystore.getCertificate(alias);
-            return new String(Base64.encodeBase64String(certificate.getEncoded()));
+            final var current = keyMaterial;
+            final var attributes = Files.readAttributes(Path.of(storeName),
+                    BasicFileAttributes.class);
+            if (current != null && attributes.lastModifiedTime().equals(current.lastModified)
+                    && attributes.size() == current.size) {
+                return;
+            }
+
+            keyMaterial = readKeyMaterial();
+            // Keys unwrapped with a certificate that was removed shouldn't outlive it
+            dataKeyCache.clear();
+            log.info("Reloaded certificate store {}", storeName);
         } catch (final Exception e) {
-            log.error("Error getting Base64 encoded certificate", e);
+            log.error("Error reloading certificate store", e);
+        }
+    }
+
+
+    /**
+     * @return the key material read from the KeyStore specified in application.yml
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    private KeyMaterial readKeyMaterial() throws GeneralSecurityException, IOException {
+        final var path = Path.of(storeName);
+        final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        var keystore = KeyStore.getInstance("JKS");
+        try (InputStream stream = Files.newInputStream(path)) {
+            keystore.load(stream, storePassword.toCharArray());
+        }
+
+        // Without a list of aliases, every key in the keystore is accepted
+        final List<String> accepted = new ArrayList<>();
+        if (aliases == null || aliases.isEmpty()) {
+            accepted.addAll(Collections.list(keystore.aliases()));
+        } else {
+            accepted.addAll(aliases);
+        }
+        if (!activeAlias.isBlank() && !accepted.contains(activeAlias)) {
+            accepted.add(activeAlias);
+        }
+
+        final Map<String, KeyEntry> byId = new HashMap<>();
+        final Map<String, KeyEntry> byThumbprint = new HashMap<>();
+        KeyEntry newest = null;
+        for (final var alias : accepted) {
+            if (!keystore.isKeyEntry(alias)) {
+                continue;
+            }
+            final KeyEntry entry;
+            try {
+                entry = readKeyEntry(keystore, alias);
+            } catch (final GeneralSecurityException e) {
+                // Like a key protected by a password other than the store's. Losing one old key
+                // shouldn't stop every other certificate from loading
+                log.warn("Skipping certificate {}: {}", alias, e.getMessage());
+                continue;
+            }
+            byId.put(alias, entry);
+            byThumbprint.put(entry.certificate.thumbprint(), entry);
+            if (newest == null || entry.notBefore.after(newest.notBefore)) {
+                newest = entry;
+            }
+        }
+
+        // Without an active alias, new subscriptions use the most recently issued certificate
+        final var active = activeAlias.isBlank() ? newest : byId.get(activeAlias);
+        if (active == null) {
+            throw new GeneralSecurityException(activeAlias.isBlank() ? "No keys in keystore"
+                    : "No key or certificate for alias " + activeAlias);
+        }
+
+        log.info("Loaded {} certificates, new subscriptions use {}", byId.size(),
+                active.certificate.id());
+        return new KeyMaterial(active, Map.copyOf(byId), Map.copyOf(byThumbprint),
+                attributes.lastModifiedTime(), attributes.size());
+    }
+
+    private KeyEntry readKeyEntry(final KeyStore keystore, final String alias)
+            throws GeneralSecurityException {
+        var privateKey = (PrivateKey) keystore.getKey(alias, storePassword.toCharArray());
+        var certificate = keystore.getCertificate(alias);
+        if (privateKey == null || certificate == null) {
+            throw new GeneralSecurityException("No key or certificate for alias " + alias);
+        }
+
+        var encodedCertificate = certificate.getEncoded();
+        final Date notBefore = certificate instanceof X509Certificate x509
+                ? x509.getNotBefore()
+                : new Date(0);
+        return new KeyEntry(new EncryptionCertificate(alias,
+                Base64.encodeBase64String(encodedCertificate),
+                DigestUtils.sha1Hex(encodedCertificate).toUpperCase(Locale.ROOT)),
+                privateKey, notBefore);
+    }
+
+
+    /**
+     * @return the certificate new subscriptions are created with, or null if it isn't loaded
+     */
+    public EncryptionCertificate getActiveCertificate() {
+        final var current = keyMaterial;
+        if (current == null) {
+            log.error("Error getting active certificate: certificate store not loaded");
             return null;
         }
+        return current.active.certificate;
     }
 
 
     /**
-     * @return the certificate ID or alias specified in application.yml
+     * @return the certificate new subscriptions are created with, encoded in base64
+     */
+    public String getBase64EncodedCertificate() {
+        final var active = getActiveCertificate();
+        return active == null ? null : active.base64EncodedCertificate();
+    }
+
+
+    /**
+     * @return the ID of the certificate new subscriptions are created with
      */
     public String getCertificateId() {
-        return alias;
+        final var active = getActiveCertificate();
+        return active == null ? null : active.id();
+    }
+
+
+    /**
+     * @return the SHA-1 thumbprint of the certificate new subscriptions are created with, as hex,
+     *         or null if it isn't loaded
+     */
+    public String getCertificateThumbprint() {
+        final var active = getActiveCertificate();
+        return active == null ? null : active.thumbprint();
     }
 
 
     /**
      * @param base64encodedSymmetricKey the base64-encoded symmetric key to be decrypted
-     * @return the decrypted symmetric key
+     * @param certificateId the ID of the certificate the key was encrypted with, if known
+     * @param certificateThumbprint the thumbprint of the certificate the key was encrypted with,
+     *        if known
+     * @return the decrypted symmetric key, which the caller owns and may zero once done
      */
-    public byte[] getEncryptionKey(@NonNull final String base64encodedSymmetricKey) {
+    public byte[] getEncryptionKey(@NonNull final String base64encodedSymmetricKey,
+            final String certificateId, final String certificateThumbprint) {
         Objects.requireNonNull(base64encodedSymmetricKey);
+        final var cached = dataKeyCache.get(base64encodedSymmetricKey);
+        if (cached != null) {
+            return cached;
+        }
         try {
+            final var current = keyMaterial;
+            if (current == null) {
+                throw new IllegalStateException("Certificate store not loaded");
+            }
+            final var entry = selectKeyEntry(current, certificateId, certificateThumbprint);
             var encryptedSymmetricKey = Base64.decodeBase64(base64encodedSymmetricKey);
-            var keystore = getCertificateStore();
-            var asymmetricKey = keystore.getKey(alias, storePassword.toCharArray());
             var cipher = Cipher.getInstance("RSA/None/OAEPWithSHA1AndMGF1Padding");
-            cipher.init(Cipher.DECRYPT_MODE, asymmetricKey);
-            return cipher.doFinal(encryptedSymmetricKey);
+            cipher.init(Cipher.DECRYPT_MODE, entry.privateKey);
+            final var key = cipher.doFinal(encryptedSymmetricKey);
+            dataKeyCache.put(base64encodedSymmetricKey, key);
+            return key;
         } catch (final Exception e) {
             log.error("Error getting encryption key", e);
             return new byte[0];
         }
     }
 
-
     /**
-     * @param encryptionKey the symmetric key that was used to sign the encrypted data
-     * @param encryptedData the signed encrypted data to validate
-     * @param comparisonSignature the expected signature
-     * @return true if the signature is valid, false if not
+     * Picks the certificate a key was encrypted with. The thumbprint identifies the certificate
+     * itself, so it wins over the ID, which could be reused for a rotated certificate
      */
-    public boolean isDataSignatureValid(@NonNull final byte[] encryptionKey,
-            @NonNull final String encryptedData, @NonNull final String comparisonSignature) {
-        Objects.requireNonNull(encryptionKey);
-        Objects.requireNonNull(comparisonSignature);
-        Objects.requireNonNull(encryptedData);
-        try {
-            var decodedEncryptedData = Base64.decodeBase64(encryptedData);
-            var mac = Mac.getInstance("HMACSHA256");
-            var secretKey = new SecretKeySpec(encryptionKey, "HMACSHA256");
-            mac.init(secretKey);
-            var hashedData = mac.doFinal(decodedEncryptedData);
-            var encodedHashedData = new String(Base64.encodeBase64String(hashedData));
-            return comparisonSignature.equals(encodedHashedData);
-        } catch (final Exception e) {
-            log.error("Error validating signature", e);
-            return false;
+    private static KeyEntry selectKeyEntry(final KeyMaterial current, final String certificateId,
+            final String certificateThumbprint) throws GeneralSecurityException {
+        if (certificateThumbprint != null) {
+            final var entry = current.byThumbprint.get(certificateThumbprint.toUpperCase(Locale.ROOT));
+            if (entry != null) {
+                return entry;
+            }
         }
-    }
-
-
-    /**
-     * @param encryptionKey the encryption key to use to decrypt the data
-     * @param encryptedData the encrypted data
-     * @return the decrypted data
-     */
-    public String getDecryptedData(@NonNull final byte[] encryptionKey,
-            @NonNull final String encryptedData) {
-        Objects.requireNonNull(encryptedData);
-        Objects.requireNonNull(encryptionKey);
-        try {
-            var secretKey = new SecretKeySpec(encryptionKey, "AES");
-            var ivBytes = Arrays.copyOf(encryptionKey, 16);
-            @SuppressWarnings("java:S3329")
-            // Sonar warns that a random IV should be used for encryption
-            // but we are decrypting here.
-            var ivSpec = new IvParameterSpec(ivBytes);
-
-            var cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
-            return new String(cipher.doFinal(Base64.decodeBase64(encryptedData)));
-        } catch (final Exception e) {
-            log.error("Error decrypting data", e);
-            return null;
+        if (certificateId != null) {
+            final var entry = current.byId.get(certificateId);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (certificateId == null && certificateThumbprint == null) {
+            return current.active;
         }
+        throw new GeneralSecurityException("No certificate with ID " + certificateId
+                + " or thumbprint " + certificateThumbprint);
     }
 }
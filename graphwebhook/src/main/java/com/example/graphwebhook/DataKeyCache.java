@@ -0,0 +1,192 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded LRU cache of symmetric keys that have been unwrapped with the certificate's private key.
+ * Microsoft Graph reuses the same wrapped dataKey across many encrypted notifications, so this
+ * saves an RSA-OAEP private key operation per notification. Entries are keyed by the SHA-256
+ * digest of the wrapped key, expire after a TTL, and have their key bytes zeroed when they are
+ * evicted, expired or cleared
+ */
+@Component
+public class DataKeyCache {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * An unwrapped key owned by the cache. The key bytes never leave the cache, callers get copies
+     */
+    private static final class Entry {
+        final byte[] key;
+        final long expiresAt;
+
+        Entry(final byte[] key, final long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        void destroy() {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private final Map<ByteBuffer, Entry> entries;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Clock clock;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    @Autowired
+    public DataKeyCache(MeterRegistry meterRegistry,
+            @Value("${certificate.data-key-cache.max-size:1000}") final int maxSize,
+            @Value("${certificate.data-key-cache.ttl:10m}") final Duration ttl) {
+        this(meterRegistry, maxSize, ttl, Clock.systemUTC());
+    }
+
+    DataKeyCache(final MeterRegistry meterRegistry, final int maxSize, final Duration ttl,
+            final Clock clock) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.clock = Objects.requireNonNull(clock);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                if (size() > DataKeyCache.this.maxSize) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        Gauge.builder("certificate.data-key.cache.size", this, DataKeyCache::size)
+                .description("Unwrapped data keys currently cached")
+                .register(meterRegistry);
+        hitCounter = Counter.builder("certificate.data-key.cache.requests").tag("result", "hit")
+                .description("Data key unwraps answered from the cache")
+                .register(meterRegistry);
+        missCounter = Counter.builder("certificate.data-key.cache.requests").tag("result", "miss")
+                .description("Data key unwraps that required a private key operation")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * @param wrappedKey the base64-encoded wrapped key from the notification
+     * @return a copy of the unwrapped key, or null if it isn't cached or has expired
+     */
+    public byte[] get(@NonNull final String wrappedKey) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        final var digest = digest(Objects.requireNonNull(wrappedKey));
+        final var now = clock.millis();
+        synchronized (entries) {
+            final var entry = entries.get(digest);
+            if (entry != null && entry.expiresAt > now) {
+                hitCounter.increment();
+                return entry.key.clone();
+            }
+            if (entry != null) {
+                entries.remove(digest);
+                entry.destroy();
+            }
+        }
+        missCounter.increment();
+        return null;
+    }
+
+
+    /**
+     * Remembers an unwrapped key
+     *
+     * @param wrappedKey the base64-encoded wrapped key from the notification
+     * @param key the unwrapped key, which is copied
+     */
+    public void put(@NonNull final String wrappedKey, @NonNull final byte[] key) {
+        if (maxSize <= 0 || key.length == 0) {
+            return;
+        }
+        final var digest = digest(Objects.requireNonNull(wrappedKey));
+        final var entry = new Entry(key.clone(), clock.millis() + ttlMillis);
+        synchronized (entries) {
+            final var previous = entries.put(digest, entry);
+            if (previous != null) {
+                previous.destroy();
+            }
+        }
+    }
+
+
+    /**
+     * Drops and zeroes every cached key, for example when the certificate changes
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.values().forEach(Entry::destroy);
+            entries.clear();
+        }
+    }
+
+
+    /**
+     * Drops and zeroes expired keys so they don't linger in memory until they are evicted
+     */
+    @Scheduled(fixedDelayString = "${certificate.data-key-cache.ttl:10m}")
+    public void purgeExpired() {
+        final var now = clock.millis();
+        synchronized (entries) {
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                final var entry = iterator.next();
+                if (entry.expiresAt <= now) {
+                    entry.destroy();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of cached keys, including any that have expired but not been purged
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static ByteBuffer digest(final String wrappedKey) {
+        return ByteBuffer.wrap(DIGEST.get().digest(wrappedKey.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
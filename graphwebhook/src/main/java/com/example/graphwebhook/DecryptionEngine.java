@@ -0,0 +1,186 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * Validates and decrypts the encrypted resource data of change notifications. Each thread keeps
+ * its own Cipher, Mac and buffers, so decrypting a notification doesn't look up providers or
+ * allocate arrays proportional to the payload once the buffers have grown to fit. The plaintext is
+ * handed to the caller as a stream of UTF-8 bytes over the reusable buffer instead of a String
+ */
+@Component
+public class DecryptionEngine {
+
+    /**
+     * Reads the decrypted content. The stream is only valid for the duration of the call
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    public interface ContentReader<T> {
+
+        /**
+         * @param content the decrypted content as UTF-8 bytes
+         * @return the result of reading the content
+         * @throws IOException if the content can't be read
+         */
+        T read(InputStream content) throws IOException;
+    }
+
+    /**
+     * Per-thread crypto state and buffers
+     */
+    private static final class Engine {
+        final Mac mac;
+        final Cipher cipher;
+        final byte[] signature;
+        byte[] encoded = new byte[0];
+        byte[] encrypted = new byte[0];
+        byte[] plain = new byte[0];
+
+        Engine() throws GeneralSecurityException {
+            this.mac = Mac.getInstance("HMACSHA256");
+            // The content is PKCS#5 padded, but the JDK's padding cipher decrypts into a
+            // temporary copy of the whole payload, so the padding is removed here instead
+            this.cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            this.signature = new byte[mac.getMacLength()];
+        }
+    }
+
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final ThreadLocal<Engine> ENGINE = ThreadLocal.withInitial(() -> {
+        try {
+            return new Engine();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+
+    /**
+     * Validates the signature of the encrypted data and, if it matches, decrypts the data and
+     * passes it to the reader
+     *
+     * @param <T> the type of the result
+     * @param encryptionKey the symmetric key that was used to sign and encrypt the data
+     * @param encryptedData the base64-encoded encrypted data
+     * @param comparisonSignature the base64-encoded expected signature
+     * @param reader reads the decrypted data
+     * @return the result of the reader, or null if the signature is invalid or decryption failed
+     */
+    public <T> T decrypt(@NonNull final byte[] encryptionKey, @NonNull final String encryptedData,
+            @NonNull final String comparisonSignature, @NonNull final ContentReader<T> reader) {
+        Objects.requireNonNull(encryptionKey);
+        Objects.requireNonNull(encryptedData);
+        Objects.requireNonNull(comparisonSignature);
+        Objects.requireNonNull(reader);
+
+        final var engine = ENGINE.get();
+        try {
+            final int encryptedLength = decodeBase64(engine, encryptedData);
+
+            // Validate the signature with a constant-time comparison
+            engine.mac.init(new SecretKeySpec(encryptionKey, "HMACSHA256"));
+            engine.mac.update(engine.encrypted, 0, encryptedLength);
+            engine.mac.doFinal(engine.signature, 0);
+            if (!MessageDigest.isEqual(engine.signature,
+                    Base64.getDecoder().decode(comparisonSignature))) {
+                log.warn("Invalid signature on encrypted notification content");
+                return null;
+            }
+
+            // The IV is the first 16 bytes of the key
+            @SuppressWarnings("java:S3329")
+            // Sonar warns that a random IV should be used for encryption
+            // but we are decrypting here.
+            final var ivSpec = new IvParameterSpec(encryptionKey, 0, AES_BLOCK_SIZE);
+            engine.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(encryptionKey, "AES"),
+                    ivSpec);
+            final int outputSize = engine.cipher.getOutputSize(encryptedLength);
+            if (engine.plain.length < outputSize) {
+                engine.plain = new byte[outputSize];
+            }
+            final int paddedLength =
+                    engine.cipher.doFinal(engine.encrypted, 0, encryptedLength, engine.plain, 0);
+            final int plainLength = unpad(engine.plain, paddedLength);
+
+            try {
+                return reader.read(new ByteArrayInputStream(engine.plain, 0, plainLength));
+            } finally {
+                // Don't leave the plaintext behind in the thread's buffer
+                Arrays.fill(engine.plain, 0, paddedLength, (byte) 0);
+            }
+        } catch (final GeneralSecurityException | IOException | IllegalArgumentException e) {
+            log.error("Error decrypting data", e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes PKCS#5 padding. The signature has already been validated, so this can't be used as a
+     * padding oracle
+     *
+     * @return the length of the content without padding
+     */
+    private static int unpad(final byte[] buffer, final int length)
+            throws BadPaddingException {
+        final int padding = length == 0 ? 0 : buffer[length - 1] & 0xFF;
+        if (padding < 1 || padding > AES_BLOCK_SIZE || padding > length) {
+            throw new BadPaddingException("Invalid padding");
+        }
+        for (int i = length - padding; i < length; i++) {
+            if ((buffer[i] & 0xFF) != padding) {
+                throw new BadPaddingException("Invalid padding");
+            }
+        }
+        return length - padding;
+    }
+
+    /**
+     * Decodes base64 into the engine's encrypted buffer
+     *
+     * @return the number of decoded bytes
+     */
+    private static int decodeBase64(final Engine engine, final String encoded) throws IOException {
+        final int length = encoded.length();
+        if (engine.encoded.length < length) {
+            engine.encoded = new byte[length];
+        }
+        // Base64 is ASCII, so each char is one byte
+        for (int i = 0; i < length; i++) {
+            engine.encoded[i] = (byte) encoded.charAt(i);
+        }
+
+        final int maxDecoded = length / 4 * 3 + 3;
+        if (engine.encrypted.length < maxDecoded) {
+            engine.encrypted = new byte[maxDecoded];
+        }
+        // The MIME decoder skips line breaks and other characters outside the alphabet
+        try (var decoder = Base64.getMimeDecoder()
+                .wrap(new ByteArrayInputStream(engine.encoded, 0, length))) {
+            return decoder.readNBytes(engine.encrypted, 0, maxDecoded);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded fork-join pool that decrypts the encrypted notifications of a large batch in parallel.
+ * A batch for one subscription lands on a single processing lane, so without this a batch of
+ * channel messages is decrypted on one core. The lane still emits the results in their original
+ * order, whichever finishes first.
+ * <p>
+ * The pool's own submission queue is unbounded, so at most a fixed number of decryptions are
+ * queued or running at once. Past that, the calling lane decrypts the notification itself, which
+ * slows the lane down and pushes back on the notification pipeline
+ */
+@Component
+public class DecryptionPool {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final Semaphore permits;
+    private final Counter parallelCounter;
+    private final Counter callerRunsCounter;
+
+    public DecryptionPool(MeterRegistry meterRegistry,
+            @Value("${notifications.decryption.parallelism:0}") final int parallelism,
+            @Value("${notifications.decryption.parallel-threshold:4}") final int threshold,
+            @Value("${notifications.decryption.queue-capacity:1000}") final int queueCapacity) {
+        // Decryption is CPU bound, default to one thread per core
+        final int threads =
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = new ForkJoinPool(threads, pool -> {
+            final var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("notification-decrypt-" + thread.getPoolIndex());
+            return thread;
+        }, null, true);
+        this.threshold = threshold;
+        this.permits = new Semaphore(Math.max(1, queueCapacity));
+
+        Gauge.builder("notifications.decryption.queued", pool, ForkJoinPool::getQueuedSubmissionCount)
+                .description("Encrypted notifications waiting for a decryption thread")
+                .register(meterRegistry);
+        parallelCounter = Counter.builder("notifications.decryption.parallel")
+                .description("Encrypted notifications decrypted on the decryption pool")
+                .register(meterRegistry);
+        callerRunsCounter = Counter.builder("notifications.decryption.caller-runs")
+                .description("Encrypted notifications decrypted on their lane, the pool being full")
+                .register(meterRegistry);
+
+        log.info("Decrypting batches of {} or more encrypted notifications on {} threads",
+                threshold, threads);
+    }
+
+
+    /**
+     * @param encryptedItems the number of encrypted notifications in a batch
+     * @return true if the batch is large enough to be worth decrypting in parallel
+     */
+    public boolean isParallel(final int encryptedItems) {
+        return threshold > 0 && encryptedItems >= threshold;
+    }
+
+
+    /**
+     * Runs a decryption on the pool, or on the calling thread if the pool is full
+     *
+     * @param <T> the type of the result
+     * @param task the decryption to run
+     * @return a future that completes with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(@NonNull final Supplier<T> task) {
+        Objects.requireNonNull(task);
+        if (!permits.tryAcquire()) {
+            callerRunsCounter.increment();
+            try {
+                return CompletableFuture.completedFuture(task.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        parallelCounter.increment();
+        try {
+            final var result = CompletableFuture.supplyAsync(task, pool);
+            result.whenComplete((value, error) -> permits.release());
+            return result;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Stops the decryption threads
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        pool.shutdown();
+        if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * The latest delta link of each subscription, kept in memory and written to a file next to the
+ * subscription store so catch-up can resume where it left off after a restart. There are at most
+ * a few hundred bytes per subscription, so the whole file is rewritten whenever something changed
+ */
+@Component
+public class DeltaLinkStore {
+
+    private static final int MAGIC = 0x444C4B53; // "DLKS"
+    private static final int FORMAT_VERSION = 1;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path path;
+    private final Map<String, String> deltaLinks = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    public DeltaLinkStore(
+            @Value("${subscriptions.store.directory:subscription-store}") final String directory) {
+        this.path = Path.of(Objects.requireNonNull(directory)).resolve("delta-links");
+    }
+
+
+    /**
+     * Reads the delta links saved by the last run
+     */
+    @PostConstruct
+    public void load() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (var in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized delta link file " + path);
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                deltaLinks.put(in.readUTF(), in.readUTF());
+            }
+        }
+        log.info("Loaded {} delta links", deltaLinks.size());
+    }
+
+
+    /**
+     * Writes the file one last time
+     */
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+
+    /**
+     * @param subscriptionId the subscription ID
+     * @return the subscription's delta link, or null if it has none yet
+     */
+    public String get(@NonNull final String subscriptionId) {
+        return deltaLinks.get(Objects.requireNonNull(subscriptionId));
+    }
+
+
+    /**
+     * @param subscriptionId the subscription ID
+     * @param deltaLink the delta link from the last page of a delta query
+     */
+    public void put(@NonNull final String subscriptionId, @NonNull final String deltaLink) {
+        deltaLinks.put(Objects.requireNonNull(subscriptionId), Objects.requireNonNull(deltaLink));
+        dirty = true;
+    }
+
+
+    /**
+     * @param subscriptionId the subscription ID
+     */
+    public void remove(@NonNull final String subscriptionId) {
+        if (deltaLinks.remove(Objects.requireNonNull(subscriptionId)) != null) {
+            dirty = true;
+        }
+    }
+
+
+    /**
+     * @return the IDs of the subscriptions that have a delta link
+     */
+    public Set<String> subscriptionIds() {
+        return Set.copyOf(deltaLinks.keySet());
+    }
+
+
+    /**
+     * Rewrites the file if anything changed since the last flush
+     */
+    @Scheduled(fixedDelayString = "${notifications.catch-up.flush-interval:5s}")
+    public synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        // Cleared first so changes made while writing are picked up next time
+        dirty = false;
+        final var links = Map.copyOf(deltaLinks);
+        final var tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (var file = new FileOutputStream(tempPath.toFile());
+                    var out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(links.size());
+                for (final var link : links.entrySet()) {
+                    out.writeUTF(link.getKey());
+                    out.writeUTF(link.getValue());
+                }
+                out.flush();
+                file.getChannel().force(true);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            log.error("Error writing delta links", e);
+        }
+    }
+}
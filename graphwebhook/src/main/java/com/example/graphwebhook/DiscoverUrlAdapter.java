@@ -7,46 +7,190 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.Key;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
-import com.auth0.jwk.JwkProvider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import com.auth0.jwk.Jwk;
+import com.auth0.jwk.JwkException;
 import com.auth0.jwk.UrlJwkProvider;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
 import io.jsonwebtoken.JweHeader;
 import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.LocatorAdapter;
 /**
  * Custom implementation of SigningKeyResolverAdapter that retrieves the signing key from the
- * Microsoft identity platform's JWKS endpoint
+ * Microsoft identity platform's JWKS endpoint. Keys are cached in memory by key ID and refreshed in
+ * the background, so locating a key is normally a map lookup. Keys past their TTL are only used
+ * for a short grace period while a refetch is running or failing, after that tokens are rejected
  */
+@Component
 public class DiscoverUrlAdapter extends LocatorAdapter<Key> {
 
-    private final JwkProvider keyStore;
+    /**
+     * Immutable snapshot of the JWKS, swapped as a whole on every refresh
+     */
+    private static final class KeySet {
+        final Map<String, Key> keys;
+        final long fetchedAt;
+
+        KeySet(final Map<String, Key> keys, final long fetchedAt) {
+            this.keys = keys;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final UrlJwkProvider keyStore;
+    private final long ttlMillis;
+    private final long unknownKeyMinIntervalMillis;
+    private final long staleGraceMillis;
+    private final Clock clock;
+    private final AtomicReference<CompletableFuture<Void>> inFlightFetch = new AtomicReference<>();
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
-    public DiscoverUrlAdapter(@NonNull final String keyDiscoveryUrl)
+    private volatile KeySet keySet = new KeySet(Map.of(), 0L);
+    private volatile long lastFetchAttempt = 0L;
+
+    @Autowired
+    public DiscoverUrlAdapter(
+            @Value("${spring.cloud.azure.active-directory.keydiscoveryurl}") @NonNull final String keyDiscoveryUrl,
+            @Value("${token-validation.jwks.ttl:24h}") final Duration ttl,
+            @Value("${token-validation.jwks.unknown-kid-min-interval:30s}") final Duration unknownKeyMinInterval,
+            @Value("${token-validation.jwks.stale-grace:5m}") final Duration staleGrace)
             throws URISyntaxException, MalformedURLException {
-        this.keyStore =
-                new UrlJwkProvider(new URI(Objects.requireNonNull(keyDiscoveryUrl)).toURL());
+        this(new UrlJwkProvider(new URI(Objects.requireNonNull(keyDiscoveryUrl)).toURL()), ttl,
+                unknownKeyMinInterval, staleGrace, Clock.systemUTC());
+    }
+
+    DiscoverUrlAdapter(@NonNull final UrlJwkProvider keyStore, final Duration ttl,
+            final Duration unknownKeyMinInterval, final Duration staleGrace,
+            @NonNull final Clock clock) {
+        this.keyStore = Objects.requireNonNull(keyStore);
+        this.ttlMillis = ttl.toMillis();
+        this.unknownKeyMinIntervalMillis = unknownKeyMinInterval.toMillis();
+        this.staleGraceMillis = staleGrace.toMillis();
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+
+    /**
+     * Refreshes the cached keys ahead of their expiry. Runs once at startup and then on the
+     * configured interval. If the endpoint can't be reached the current keys are kept until they
+     * expire
+     */
+    @Scheduled(fixedDelayString = "${token-validation.jwks.refresh-interval:1h}")
+    public void refresh() {
+        fetchOrJoin(true);
     }
 
     @Override
     protected Key locate(JwsHeader header) {
         Objects.requireNonNull(header);
-        try {
-            var keyId = header.getKeyId();
-            var publicKey = keyStore.get(keyId);
-            return publicKey.getPublicKey();
-        } catch (final Exception e) {
-            log.error(e.getMessage());
+        var keyId = header.getKeyId();
+        if (keyId == null) {
             return null;
         }
+        return getKey(keyId);
     }
 
     @Override
     protected Key locate(JweHeader header) {
         return null;
     }
+
+    /**
+     * @param keyId the key ID from a token header
+     * @return the signing key, or null if it is unknown or expired past the grace period
+     */
+    Key getKey(@NonNull final String keyId) {
+        var current = keySet;
+        var publicKey = current.keys.get(keyId);
+        if (publicKey != null && isFresh(current)) {
+            return publicKey;
+        }
+        // Don't queue up behind a refetch someone else started if the key can still be used
+        if (publicKey != null && isInGracePeriod(current) && inFlightFetch.get() != null) {
+            return publicKey;
+        }
+
+        // Unknown key ID, or the keys have expired. Refetch, but no more often than
+        // the configured interval so tokens with bogus key IDs can't hammer the endpoint
+        fetchOrJoin(false);
+        current = keySet;
+        publicKey = current.keys.get(keyId);
+        if (publicKey == null || isFresh(current)) {
+            return publicKey;
+        }
+        if (isInGracePeriod(current)) {
+            log.warn("Using expired signing key {} until the keys can be refreshed", keyId);
+            return publicKey;
+        }
+        log.error("Signing keys expired and could not be refreshed, rejecting key {}", keyId);
+        return null;
+    }
+
+    private boolean isFresh(final KeySet current) {
+        return clock.millis() - current.fetchedAt < ttlMillis;
+    }
+
+    private boolean isInGracePeriod(final KeySet current) {
+        return clock.millis() - current.fetchedAt < ttlMillis + staleGraceMillis;
+    }
+
+    /**
+     * Fetches the keys, or waits for the fetch another thread is running. Only the fetching
+     * thread and the threads that need its result wait on the endpoint, lookups of fresh keys
+     * never do
+     *
+     * @param force fetch even if the last attempt was less than the minimum interval ago
+     */
+    private void fetchOrJoin(final boolean force) {
+        final var fetch = new CompletableFuture<Void>();
+        final var running = inFlightFetch.compareAndExchange(null, fetch);
+        if (running != null) {
+            running.join();
+            return;
+        }
+        try {
+            if (force || clock.millis() - lastFetchAttempt >= unknownKeyMinIntervalMillis) {
+                fetchKeys();
+            } else {
+                log.warn("Signing keys were fetched less than {} ms ago, skipping refetch",
+                        unknownKeyMinIntervalMillis);
+            }
+        } finally {
+            inFlightFetch.set(null);
+            fetch.complete(null);
+        }
+    }
+
+    /**
+     * Downloads the JWKS and replaces the cached keys. Only called by the thread that claimed
+     * the in-flight fetch
+     */
+    private void fetchKeys() {
+        lastFetchAttempt = clock.millis();
+        try {
+            final Map<String, Key> keys = new HashMap<>();
+            for (final Jwk jwk : keyStore.getAll()) {
+                if (jwk.getId() != null) {
+                    keys.put(jwk.getId(), jwk.getPublicKey());
+                }
+            }
+            keySet = new KeySet(Map.copyOf(keys), clock.millis());
+            log.debug("Loaded {} signing keys", keys.size());
+        } catch (final JwkException e) {
+            log.error("Error refreshing signing keys: {}", e.getMessage());
+        }
+    }
 }
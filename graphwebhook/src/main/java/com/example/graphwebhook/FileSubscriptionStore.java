@@ -0,0 +1,370 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import com.microsoft.graph.models.Subscription;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Subscription store that survives restarts. Records are served from the same in-memory index as
+ * {@link SubscriptionStoreService}, and every change is appended to a journal on local disk by a
+ * single background writer. The journal is periodically compacted into a snapshot, and on startup
+ * the index is rebuilt from the snapshot plus the journal. Lookups never touch the disk.
+ * <p>
+ * Each compaction starts a new journal generation. The snapshot names the generation of the
+ * journal that continues it, so a journal left behind by a crash during compaction is never
+ * replayed on top of a newer snapshot
+ */
+@Service
+@ConditionalOnProperty(name = "subscriptions.store.type", havingValue = "file")
+public class FileSubscriptionStore implements SubscriptionStore {
+
+    private static final int MAGIC = 0x53554253; // "SUBS"
+    private static final int FORMAT_VERSION = 1;
+    private static final String JOURNAL_NAME = "subscriptions.journal";
+    private static final long NO_EXPIRATION = Long.MIN_VALUE;
+    private static final byte OP_ADD = 'A';
+    private static final byte OP_DELETE = 'D';
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final SubscriptionStoreService index = new SubscriptionStoreService();
+    private final Path storeDirectory;
+    private final Path snapshotPath;
+    private final long syncIntervalMillis;
+    private final int compactThreshold;
+
+    // Only touched from the writer thread
+    private final ScheduledExecutorService writer;
+    private FileOutputStream journalFile;
+    private DataOutputStream journal;
+    private Path journalPath;
+    private long generation;
+    private int journalEntries;
+    private boolean dirty;
+
+    public FileSubscriptionStore(
+            @Value("${subscriptions.store.directory:subscription-store}") final String directory,
+            @Value("${subscriptions.store.sync-interval:1s}") final Duration syncInterval,
+            @Value("${subscriptions.store.compact-threshold:10000}") final int compactThreshold) {
+        this.storeDirectory = Path.of(Objects.requireNonNull(directory));
+        this.snapshotPath = storeDirectory.resolve("subscriptions.snapshot");
+        this.syncIntervalMillis = syncInterval.toMillis();
+        this.compactThreshold = compactThreshold;
+        final var executor =
+                new ScheduledThreadPoolExecutor(1, new CustomizableThreadFactory("subscription-store-"));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.writer = executor;
+    }
+
+
+    /**
+     * Rebuilds the in-memory index from disk, then starts a fresh journal on top of a compacted
+     * snapshot so a torn write at the end of the old journal can't corrupt later appends
+     */
+    @PostConstruct
+    public void load() throws IOException {
+        Files.createDirectories(storeDirectory);
+        final long start = System.nanoTime();
+
+        if (Files.exists(snapshotPath)) {
+            try (var in = openForRead(snapshotPath)) {
+                readHeader(in, snapshotPath);
+                generation = in.readLong();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    index.addRecord(readRecord(in));
+                }
+            }
+        }
+
+        int replayed = 0;
+        final var replayPath = journalPath(generation);
+        if (Files.exists(replayPath)) {
+            try (var in = openForRead(replayPath)) {
+                readHeader(in, replayPath);
+                if (in.readLong() != generation) {
+                    throw new IOException("Subscription journal " + replayPath
+                            + " doesn't continue the snapshot");
+                }
+                while (true) {
+                    final byte op = in.readByte();
+                    if (op == OP_ADD) {
+                        index.addRecord(readRecord(in));
+                    } else if (op == OP_DELETE) {
+                        index.deleteSubscription(in.readUTF());
+                    } else {
+                        throw new IOException("Corrupt subscription journal entry " + op);
+                    }
+                    replayed++;
+                }
+            } catch (EOFException e) {
+                // End of the journal, possibly in the middle of an entry
+                // that was being written when the app stopped
+            }
+        }
+
+        compact();
+        deleteStaleJournals();
+        log.info("Loaded {} subscriptions ({} journal entries) in {} ms", index.size(), replayed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        writer.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Flushes and syncs the journal, then stops the writer
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        writer.execute(() -> {
+            sync();
+            closeJournal();
+        });
+        writer.shutdown();
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void addSubscription(@NonNull @Nonnull final Subscription subscription,
+            @NonNull final String userId) {
+        Objects.requireNonNull(subscription.getClientState());
+        addRecord(SubscriptionRecord.of(subscription, Objects.requireNonNull(userId)));
+    }
+
+    // Changes are synchronized so the journal sees them in the same order as the index
+
+    @Override
+    public synchronized void addRecord(@NonNull final SubscriptionRecord newRecord) {
+        index.addRecord(newRecord);
+        writer.execute(() -> append(OP_ADD, newRecord, newRecord.subscriptionId));
+    }
+
+    @Override
+    public SubscriptionRecord getSubscription(@NonNull final String id) {
+        return index.getSubscription(id);
+    }
+
+    @Override
+    public synchronized void deleteSubscription(@NonNull final String id) {
+        index.deleteSubscription(id);
+        writer.execute(() -> append(OP_DELETE, null, id));
+    }
+
+    @Override
+    public List<SubscriptionRecord> getSubscriptionsForUser(@NonNull final String userId) {
+        return index.getSubscriptionsForUser(userId);
+    }
+
+    @Override
+    public List<SubscriptionRecord> getAllSubscriptions() {
+        return index.getAllSubscriptions();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    private void append(final byte op, final SubscriptionRecord newRecord, final String id) {
+        try {
+            journal.writeByte(op);
+            if (newRecord != null) {
+                writeRecord(journal, newRecord);
+            } else {
+                journal.writeUTF(id);
+            }
+            dirty = true;
+        } catch (IOException e) {
+            log.error("Error writing subscription journal", e);
+            return;
+        }
+
+        if (++journalEntries >= compactThreshold) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // The current journal is still open and in use, try again after as many entries
+                journalEntries = 0;
+                log.error("Error compacting subscription journal", e);
+            }
+        }
+    }
+
+    private void sync() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            journal.flush();
+            journalFile.getChannel().force(false);
+            dirty = false;
+        } catch (IOException e) {
+            log.error("Error syncing subscription journal", e);
+        }
+    }
+
+    /**
+     * Writes the whole index to a new snapshot that continues in a new, empty journal generation.
+     * The new journal is created first and the snapshot replaces the old one atomically, so a crash
+     * at any point leaves either the old snapshot and journal or the new ones. If anything fails
+     * before the snapshot is replaced, the current journal stays in use.
+     * <p>
+     * The index may already contain changes still queued for the journal, replaying them on top
+     * of the snapshot gives the same result because they are replayed in order
+     */
+    private void compact() throws IOException {
+        final long nextGeneration = generation + 1;
+        final var nextJournalPath = journalPath(nextGeneration);
+        final var nextJournalFile = new FileOutputStream(nextJournalPath.toFile(), false);
+        final var nextJournal =
+                new DataOutputStream(new BufferedOutputStream(nextJournalFile, 8 * 1024));
+        try {
+            writeHeader(nextJournal);
+            nextJournal.writeLong(nextGeneration);
+            nextJournal.flush();
+            nextJournalFile.getChannel().force(true);
+            writeSnapshot(nextGeneration);
+        } catch (IOException e) {
+            try {
+                nextJournal.close();
+                Files.deleteIfExists(nextJournalPath);
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+
+        // The new snapshot is in place, from here on only the new journal is replayed
+        final var oldJournalPath = journalPath;
+        closeJournal();
+        journalFile = nextJournalFile;
+        journal = nextJournal;
+        journalPath = nextJournalPath;
+        generation = nextGeneration;
+        journalEntries = 0;
+        dirty = false;
+        if (oldJournalPath != null) {
+            Files.deleteIfExists(oldJournalPath);
+        }
+    }
+
+    private void writeSnapshot(final long journalGeneration) throws IOException {
+        final var records = index.getAllSubscriptions();
+        final var tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (var file = new FileOutputStream(tempPath.toFile());
+                var out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            writeHeader(out);
+            out.writeLong(journalGeneration);
+            out.writeInt(records.size());
+            for (final var record : records) {
+                writeRecord(out, record);
+            }
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes journals of earlier generations, left behind by a crash during compaction
+     */
+    private void deleteStaleJournals() throws IOException {
+        try (var files = Files.list(storeDirectory)) {
+            for (final var path : (Iterable<Path>) files::iterator) {
+                if (path.getFileName().toString().startsWith(JOURNAL_NAME)
+                        && !path.equals(journalPath)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private Path journalPath(final long journalGeneration) {
+        return storeDirectory.resolve(JOURNAL_NAME + "." + journalGeneration);
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Error closing subscription journal", e);
+            }
+            journal = null;
+            journalFile = null;
+        }
+    }
+
+    private static DataInputStream openForRead(final Path path) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+    }
+
+    private static void writeHeader(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+    }
+
+    private static void readHeader(final DataInputStream in, final Path path) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unrecognized subscription store file " + path);
+        }
+    }
+
+    private static void writeRecord(final DataOutputStream out, final SubscriptionRecord record)
+            throws IOException {
+        out.writeUTF(record.subscriptionId);
+        out.writeUTF(record.userId);
+        out.writeUTF(record.clientState);
+        out.writeUTF(record.resource == null ? "" : record.resource);
+        out.writeLong(record.expirationDateTime == null ? NO_EXPIRATION
+                : record.expirationDateTime.toInstant().toEpochMilli());
+        out.writeBoolean(record.includeResourceData);
+    }
+
+    private static SubscriptionRecord readRecord(final DataInputStream in) throws IOException {
+        final var subscriptionId = in.readUTF();
+        final var userId = in.readUTF();
+        final var clientState = in.readUTF();
+        final var resource = in.readUTF();
+        final long expiration = in.readLong();
+        final boolean includeResourceData = in.readBoolean();
+        return new SubscriptionRecord(subscriptionId, userId, clientState,
+                resource.isEmpty() ? null : resource,
+                expiration == NO_EXPIRATION ? null
+                        : OffsetDateTime.ofInstant(Instant.ofEpochMilli(expiration), ZoneOffset.UTC),
+                includeResourceData);
+    }
+}
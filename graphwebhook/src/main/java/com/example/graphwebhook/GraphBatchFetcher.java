@@ -0,0 +1,509 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiExceptionBuilder;
+import com.microsoft.kiota.HttpMethod;
+import com.microsoft.kiota.RequestInformation;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Collects resource GETs, and PATCHes like subscription renewals, per authorized principal for a
+ * short window and sends them to Microsoft Graph as JSON $batch requests. Each caller gets a future
+ * for its own response body, and items throttled inside a batch are retried after their
+ * Retry-After delay. GETs can be made conditional on an ETag, and concurrent GETs for the same
+ * resource and principal share one request and its parsed body
+ */
+@Service
+public class GraphBatchFetcher {
+
+    /**
+     * Graph accepts at most 20 requests in one $batch
+     */
+    private static final int GRAPH_MAX_BATCH_SIZE = 20;
+
+    private static final String ODATA_ETAG = "@odata.etag";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * A response body with its size as Graph sent it
+     *
+     * @param body the JSON body, or null for a conditional GET that wasn't modified
+     * @param bytes the size of the body in the $batch response
+     */
+    record Fetched(JsonObject body, int bytes) {
+    }
+
+    /**
+     * A single request waiting for its response
+     */
+    private static final class PendingFetch {
+        final String principal;
+        final GraphServiceClient graphClient;
+        final String method;
+        final String url;
+        final JsonObject body;
+        final String ifNoneMatch;
+        final CompletableFuture<Fetched> result = new CompletableFuture<>();
+        int attempts;
+
+        PendingFetch(final String principal, final GraphServiceClient graphClient,
+                final String method, final String url, final JsonObject body,
+                final String ifNoneMatch) {
+            this.principal = principal;
+            this.graphClient = graphClient;
+            this.method = method;
+            this.url = url;
+            this.body = body;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+    }
+
+    /**
+     * Identifies GETs that can share one request
+     */
+    private record FetchKey(String principal, String url, String ifNoneMatch) {
+    }
+
+    /**
+     * The GETs collected for one principal during the current window
+     */
+    private static final class PendingBatch {
+        final List<PendingFetch> items = new ArrayList<>(GRAPH_MAX_BATCH_SIZE);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final GraphRateLimiter rateLimiter;
+    private final ConcurrentHashMap<String, PendingBatch> pending = new ConcurrentHashMap<>();
+    // Every request whose future isn't complete yet, so shutdown can fail them
+    private final Set<PendingFetch> outstanding = ConcurrentHashMap.newKeySet();
+    private final SingleFlight<FetchKey, Fetched> inFlight = new SingleFlight<>();
+    private final boolean singleFlight;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService sender;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final int maxRetries;
+    private final DistributionSummary batchSizes;
+    private final Counter throttledCounter;
+    private final Counter failedCounter;
+
+    public GraphBatchFetcher(GraphRateLimiter rateLimiter, MeterRegistry meterRegistry,
+            @Value("${graph.batch.window:25ms}") final Duration window,
+            @Value("${graph.batch.max-size:20}") final int maxBatchSize,
+            @Value("${graph.batch.max-retries:3}") final int maxRetries,
+            @Value("${graph.batch.senders:4}") final int senders,
+            @Value("${graph.batch.single-flight:true}") final boolean singleFlight) {
+        this.rateLimiter = Objects.requireNonNull(rateLimiter);
+        this.singleFlight = singleFlight;
+        this.windowMillis = window.toMillis();
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, GRAPH_MAX_BATCH_SIZE));
+        this.maxRetries = maxRetries;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("graph-batch-timer-"));
+        this.sender = Executors.newFixedThreadPool(senders,
+                new CustomizableThreadFactory("graph-batch-sender-"));
+
+        batchSizes = DistributionSummary.builder("graph.batch.size")
+                .description("Requests sent per Graph $batch call")
+                .register(meterRegistry);
+        throttledCounter = Counter.builder("graph.batch.throttled")
+                .description("Batched requests answered with 429 or 503 and retried")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("graph.batch.failed")
+                .description("Batched requests that failed for good")
+                .register(meterRegistry);
+        FunctionCounter.builder("graph.batch.collapsed", inFlight, SingleFlight::collapsed)
+                .description("GETs that shared the request of an identical GET already in flight")
+                .register(meterRegistry);
+        Gauge.builder("graph.batch.in-flight", inFlight, SingleFlight::size)
+                .description("Distinct GETs waiting for a response")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * Queues a GET for a Graph resource
+     *
+     * @param principal identifies whose credentials are used, requests are only batched together
+     *        for the same principal
+     * @param graphClient a Graph client authenticated as the principal
+     * @param resourcePath the resource path relative to the Graph version root, for example from
+     *        a change notification
+     * @return a future completed with the JSON body of the resource
+     */
+    public CompletableFuture<JsonObject> fetch(@NonNull final String principal,
+            @NonNull final GraphServiceClient graphClient, @NonNull final String resourcePath) {
+        return submit(principal, graphClient, "GET", resourcePath, null, null)
+                .thenApply(Fetched::body);
+    }
+
+
+    /**
+     * Queues a GET for a Graph resource that only returns the resource if it changed
+     *
+     * @param principal identifies whose credentials are used, requests are only batched together
+     *        for the same principal
+     * @param graphClient a Graph client authenticated as the principal
+     * @param resourcePath the resource path relative to the Graph version root
+     * @param etag the ETag of the copy the caller already has, sent as If-None-Match
+     * @return a future completed with the JSON body of the resource, or with null if it still
+     *         matches the ETag. The body's @odata.etag holds its new ETag
+     */
+    public CompletableFuture<JsonObject> fetchIfNoneMatch(@NonNull final String principal,
+            @NonNull final GraphServiceClient graphClient, @NonNull final String resourcePath,
+            @NonNull final String etag) {
+        return submit(principal, graphClient, "GET", resourcePath, null,
+                Objects.requireNonNull(etag)).thenApply(GraphBatchFetcher::bodyOf);
+    }
+
+
+    /**
+     * Queues a GET, conditional if there is an ETag, and keeps the size of the body
+     *
+     * @param principal identifies whose credentials are used
+     * @param graphClient a Graph client authenticated as the principal
+     * @param resourcePath the resource path relative to the Graph version root
+     * @param etag the ETag of the copy the caller already has, or null for an unconditional GET
+     * @return a future completed with the body and its size, or with null if the resource still
+     *         matches the ETag
+     */
+    CompletableFuture<Fetched> fetchWithSize(final String principal,
+            final GraphServiceClient graphClient, final String resourcePath, final String etag) {
+        return submit(principal, graphClient, "GET", resourcePath, null, etag);
+    }
+
+
+    /**
+     * Queues a PATCH for a Graph resource
+     *
+     * @param principal identifies whose credentials are used, requests are only batched together
+     *        for the same principal
+     * @param graphClient a Graph client authenticated as the principal
+     * @param resourcePath the resource path relative to the Graph version root
+     * @param body the properties to update
+     * @return a future completed with the JSON body of the updated resource. Error statuses Graph
+     *         doesn't ask to retry fail it with an ApiException carrying the status
+     */
+    public CompletableFuture<JsonObject> patch(@NonNull final String principal,
+            @NonNull final GraphServiceClient graphClient, @NonNull final String resourcePath,
+            @NonNull final JsonObject body) {
+        return submit(principal, graphClient, "PATCH", resourcePath, Objects.requireNonNull(body),
+                null).thenApply(Fetched::body);
+    }
+
+    private CompletableFuture<Fetched> submit(final String principal,
+            final GraphServiceClient graphClient, final String method, final String resourcePath,
+            final JsonObject body, final String ifNoneMatch) {
+        Objects.requireNonNull(principal);
+        Objects.requireNonNull(graphClient);
+        final var url = resourcePath.startsWith("/") ? resourcePath : "/" + resourcePath;
+        if (!singleFlight || !"GET".equals(method)) {
+            return start(new PendingFetch(principal, graphClient, method, url, body, ifNoneMatch));
+        }
+        // A GET redelivered while the first is still in flight rides along with it
+        return inFlight.execute(new FetchKey(principal, url, ifNoneMatch), () -> start(
+                new PendingFetch(principal, graphClient, method, url, null, ifNoneMatch)));
+    }
+
+    private CompletableFuture<Fetched> start(final PendingFetch item) {
+        outstanding.add(item);
+        item.result.whenComplete((body, error) -> outstanding.remove(item));
+        if (scheduler.isShutdown()) {
+            item.result.completeExceptionally(new IOException("Graph batch fetcher shut down"));
+            return item.result;
+        }
+        enqueue(item);
+        return item.result;
+    }
+
+
+    /**
+     * Stops the timer and sender threads. Anything still pending, waiting for a retry or being
+     * sent is failed, so no caller waits forever
+     */
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+        final var error = new IOException("Graph batch fetcher shut down");
+        for (final var item : outstanding) {
+            item.result.completeExceptionally(error);
+        }
+    }
+
+    private void enqueue(final PendingFetch item) {
+        final PendingBatch[] full = new PendingBatch[1];
+        pending.compute(item.principal, (principal, batch) -> {
+            if (batch == null) {
+                final var newBatch = new PendingBatch();
+                scheduler.schedule(() -> flush(principal, newBatch), windowMillis,
+                        TimeUnit.MILLISECONDS);
+                batch = newBatch;
+            }
+            batch.items.add(item);
+            if (batch.items.size() >= maxBatchSize) {
+                // Full, send it now and let the next GET start a new window
+                full[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+
+        if (full[0] != null) {
+            final var batch = full[0];
+            sender.execute(() -> send(batch.items));
+        }
+    }
+
+    private void flush(final String principal, final PendingBatch batch) {
+        // Only send if the batch wasn't already sent for being full
+        if (pending.remove(principal, batch)) {
+            sender.execute(() -> send(batch.items));
+        }
+    }
+
+    private void send(final List<PendingFetch> items) {
+        batchSizes.record(items.size());
+
+        // Requests in a batch all use the same principal, any of their clients will do
+        final var graphClient = items.get(items.size() - 1).graphClient;
+        final var requests = new JsonArray();
+        final Map<String, PendingFetch> itemsById = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            final var id = Integer.toString(i + 1);
+            final var request = new JsonObject();
+            request.addProperty("id", id);
+            request.addProperty("method", items.get(i).method);
+            request.addProperty("url", items.get(i).url);
+            final var headers = new JsonObject();
+            if (items.get(i).ifNoneMatch != null) {
+                headers.addProperty("If-None-Match", items.get(i).ifNoneMatch);
+            }
+            if (items.get(i).body != null) {
+                headers.addProperty("Content-Type", "application/json");
+                request.add("body", items.get(i).body);
+            }
+            if (headers.size() > 0) {
+                request.add("headers", headers);
+            }
+            requests.add(request);
+            itemsById.put(id, items.get(i));
+        }
+        final var body = new JsonObject();
+        body.add("requests", requests);
+
+        final JsonObject response;
+        final Map<String, Integer> bodySizes;
+        try {
+            final byte[] responseBytes = post(graphClient, body);
+            response = JsonParser.parseString(new String(responseBytes, StandardCharsets.UTF_8))
+                    .getAsJsonObject();
+            bodySizes = bodySizes(responseBytes);
+        } catch (Exception e) {
+            // The whole batch failed, retry every item on its own schedule
+            log.warn("Graph $batch request failed: {}", e.getMessage());
+            for (final var item : items) {
+                retryOrFail(item, GraphRateLimiter.getRetryAfterMillis(null, item.attempts), e);
+            }
+            return;
+        }
+
+        final JsonArray responses = response.getAsJsonArray("responses");
+        if (responses != null) {
+            for (final JsonElement element : responses) {
+                final var itemResponse = element.getAsJsonObject();
+                final var id = itemResponse.get("id").getAsString();
+                final var item = itemsById.remove(id);
+                if (item != null) {
+                    complete(item, itemResponse, bodySizes.getOrDefault(id, 0));
+                }
+            }
+        }
+
+        // Graph should answer every request, but never leave a caller waiting
+        for (final var item : itemsById.values()) {
+            retryOrFail(item, GraphRateLimiter.getRetryAfterMillis(null, item.attempts),
+                    new IOException("No response in batch for " + item.url));
+        }
+    }
+
+    /**
+     * Sends a $batch request to Graph
+     *
+     * @param graphClient the client to send it with
+     * @param body the $batch request body
+     * @return the $batch response body as it was received
+     * @throws Exception if the request as a whole fails
+     */
+    byte[] post(final GraphServiceClient graphClient, final JsonObject body)
+            throws Exception {
+        final var request = new RequestInformation();
+        request.httpMethod = HttpMethod.POST;
+        request.setUri(new URI(graphClient.getRequestAdapter().getBaseUrl() + "/$batch"));
+        request.headers.add("Accept", "application/json");
+        request.setStreamContent(
+                new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8)),
+                "application/json");
+
+        try (InputStream stream = graphClient.getRequestAdapter().sendPrimitive(request, null,
+                InputStream.class)) {
+            return stream == null ? new byte[0] : stream.readAllBytes();
+        }
+    }
+
+
+    /**
+     * Measures each item's body in a $batch response without building it, so callers can account
+     * for the bytes Graph sent
+     *
+     * @param response the $batch response body
+     * @return the size in bytes of each item's body, by item ID
+     * @throws IOException if the response isn't valid JSON
+     */
+    static Map<String, Integer> bodySizes(final byte[] response) throws IOException {
+        final Map<String, Integer> sizes = new HashMap<>();
+        try (var parser = JSON_FACTORY.createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return sizes;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var name = parser.currentName();
+                if (parser.nextToken() != JsonToken.START_ARRAY || !"responses".equals(name)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    String id = null;
+                    int size = 0;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final var field = parser.currentName();
+                        parser.nextToken();
+                        if ("id".equals(field)) {
+                            id = parser.getValueAsString();
+                        } else if ("body".equals(field)) {
+                            final long start = parser.currentTokenLocation().getByteOffset();
+                            parser.skipChildren();
+                            size = (int) (parser.currentLocation().getByteOffset() - start);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    if (id != null) {
+                        sizes.put(id, size);
+                    }
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private void complete(final PendingFetch item, final JsonObject itemResponse,
+            final int bodySize) {
+        final int status = itemResponse.get("status").getAsInt();
+        if (status >= 200 && status < 300) {
+            final var body = itemResponse.get("body");
+            final var result = body != null && body.isJsonObject() ? body.getAsJsonObject()
+                    : new JsonObject();
+            if (!result.has(ODATA_ETAG)) {
+                // Keep the ETag header with the body, where Graph puts it for most entities
+                final var etag = getHeader(itemResponse, "ETag");
+                if (etag != null) {
+                    result.addProperty(ODATA_ETAG, etag);
+                }
+            }
+            item.result.complete(new Fetched(result, bodySize));
+        } else if (status == 304 && item.ifNoneMatch != null) {
+            item.result.complete(null);
+        } else if (status == 429 || status == 503 || status == 504) {
+            throttledCounter.increment();
+            final var retryAfterHeader = getHeader(itemResponse, "Retry-After");
+            final long retryAfter =
+                    GraphRateLimiter.getRetryAfterMillis(retryAfterHeader, item.attempts);
+            if (status != 504) {
+                // Let the rate limiter slow down everything else for this mailbox too, for as
+                // long as Graph asked
+                rateLimiter.onThrottled(item.principal, retryAfterHeader != null ? retryAfter : 0);
+            }
+            retryOrFail(item, retryAfter,
+                    new IOException("Graph returned " + status + " for " + item.url));
+        } else {
+            failedCounter.increment();
+            item.result.completeExceptionally(new ApiExceptionBuilder()
+                    .withMessage("Graph returned " + status + " for " + item.url)
+                    .withResponseStatusCode(status)
+                    .build());
+        }
+    }
+
+    private void retryOrFail(final PendingFetch item, final long delayMillis,
+            final Exception cause) {
+        if (++item.attempts > maxRetries) {
+            failedCounter.increment();
+            item.result.completeExceptionally(cause);
+            return;
+        }
+        try {
+            scheduler.schedule(() -> enqueue(item), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            item.result.completeExceptionally(cause);
+        }
+    }
+
+    private static JsonObject bodyOf(final Fetched fetched) {
+        return fetched == null ? null : fetched.body();
+    }
+
+    private static String getHeader(final JsonObject itemResponse, final String name) {
+        final var headers = itemResponse.getAsJsonObject("headers");
+        if (headers != null) {
+            for (final var header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())
+                        && header.getValue().isJsonPrimitive()) {
+                    return header.getValue().getAsString();
+                }
+            }
+        }
+        return null;
+    }
+}
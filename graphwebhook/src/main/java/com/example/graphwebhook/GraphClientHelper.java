@@ -3,17 +3,106 @@
 
 package com.example.graphwebhook;
 
+import java.net.URI;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import com.microsoft.graph.core.requests.GraphClientFactory;
 import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiClientBuilder;
+import com.microsoft.kiota.RequestOption;
+import com.microsoft.kiota.http.middleware.options.RetryHandlerOption;
+import com.microsoft.kiota.serialization.JsonParseNodeFactory;
+import jakarta.annotation.PreDestroy;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.NonNull;
+import org.springframework.security.oauth2.client.AuthorizedClientServiceOAuth2AuthorizedClientManager;
+import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientProviderBuilder;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.stereotype.Component;
 
+/**
+ * Creates Graph clients that all share one HTTP client, and with it one connection pool,
+ * dispatcher and middleware chain. Clients are cached per principal and only differ in their
+ * authentication provider and the {@link GraphRateLimiter} limits applied to their requests
+ */
+@Component
 public class GraphClientHelper {
 
     /**
-     * private constructor to hide the implicit public one
+     * A cached Graph client and the authentication provider it was built with
      */
-    private GraphClientHelper() {
-        throw new IllegalStateException("Static class");
+    private static final class CachedClient {
+        final SpringOAuth2AuthProvider authProvider;
+        final GraphServiceClient graphClient;
+
+        CachedClient(final SpringOAuth2AuthProvider authProvider,
+                final GraphServiceClient graphClient) {
+            this.authProvider = authProvider;
+            this.graphClient = graphClient;
+        }
+    }
+
+    private final OkHttpClient httpClient;
+    private final Map<String, CachedClient> clients;
+    private final GraphRateLimiter rateLimiter;
+    private final AuthorizedClientServiceOAuth2AuthorizedClientManager authorizedClientManager;
+
+    public GraphClientHelper(GraphRateLimiter rateLimiter,
+            ClientRegistrationRepository clientRegistrationRepository,
+            OAuth2AuthorizedClientService authorizedClientService,
+            @Value("${graph.http.max-idle-connections:20}") final int maxIdleConnections,
+            @Value("${graph.http.keep-alive:5m}") final Duration keepAlive,
+            @Value("${graph.http.max-requests:128}") final int maxRequests,
+            @Value("${graph.http.max-requests-per-host:64}") final int maxRequestsPerHost,
+            @Value("${graph.client.cache-size:1000}") final int clientCacheSize) {
+        // Register the JSON deserializer up front so KiotaJsonSerialization also
+        // works for payloads that arrive before the first Graph client is created
+        ApiClientBuilder.registerDefaultDeserializer(JsonParseNodeFactory::new);
+        this.rateLimiter = Objects.requireNonNull(rateLimiter);
+
+        // Refreshes delegated tokens and gets app-only tokens without an incoming request
+        this.authorizedClientManager = new AuthorizedClientServiceOAuth2AuthorizedClientManager(
+                clientRegistrationRepository, authorizedClientService);
+        authorizedClientManager.setAuthorizedClientProvider(
+                OAuth2AuthorizedClientProviderBuilder.builder()
+                        .refreshToken()
+                        .clientCredentials()
+                        .build());
+
+        final var dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        // Start from the Graph defaults so every client gets the same
+        // retry, redirect and telemetry middleware. The rate limiter runs inside
+        // the RetryHandler and already sends throttled requests again once their
+        // Retry-After pause is over, so the RetryHandler leaves those alone
+        final var retryOption = new RetryHandlerOption(
+                (delay, executionCount, request, response) -> !rateLimiter
+                        .requeues(response.code()),
+                RetryHandlerOption.DEFAULT_MAX_RETRIES, RetryHandlerOption.DEFAULT_DELAY);
+        this.httpClient = GraphClientFactory.create(new RequestOption[] {retryOption})
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAlive.toMillis(),
+                        TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .build();
+
+        this.clients = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedClient> eldest) {
+                return size() > clientCacheSize;
+            }
+        };
     }
 
 
@@ -21,10 +110,83 @@ public class GraphClientHelper {
      * @param oauthClient the authorized OAuth2 client to authenticate Graph requests with
      * @return A Graph client object that uses the provided OAuth2 client for access tokens
      */
-    public static GraphServiceClient getGraphClient(
-            @NonNull final OAuth2AuthorizedClient oauthClient) {
-        final var authProvider = new SpringOAuth2AuthProvider(oauthClient);
+    public GraphServiceClient getGraphClient(@NonNull final OAuth2AuthorizedClient oauthClient) {
+        Objects.requireNonNull(oauthClient);
+        final var key = oauthClient.getClientRegistration().getRegistrationId() + ":"
+                + oauthClient.getPrincipalName();
+
+        CachedClient cached;
+        synchronized (clients) {
+            cached = clients.computeIfAbsent(key, k -> {
+                final var authProvider = new SpringOAuth2AuthProvider(oauthClient);
+                // Derived clients share the connection pool and dispatcher, this only
+                // adds the principal's rate limits behind the Graph middleware
+                final var limitedClient = httpClient.newBuilder()
+                        .addInterceptor(rateLimiter.interceptor(oauthClient.getPrincipalName(),
+                                getTenant(oauthClient.getClientRegistration())))
+                        .build();
+                return new CachedClient(authProvider,
+                        new GraphServiceClient(authProvider, limitedClient));
+            });
+        }
+
+        // The authorized client is replaced whenever its token is refreshed,
+        // so always hand the latest one to the cached client
+        cached.authProvider.setAuthorizedClient(oauthClient);
+        return cached.graphClient;
+    }
+
+
+    /**
+     * Gets a Graph client outside of a web request, like from a background job. Expired delegated
+     * tokens are refreshed and app-only tokens are requested as needed
+     *
+     * @param registrationId the OAuth2 client registration, graph or apponly
+     * @param principalName the user the client was authorized for. For app-only auth this only
+     *        names the cached client
+     * @return a Graph client, or null if the user has no authorized client to use
+     */
+    public GraphServiceClient getGraphClient(@NonNull final String registrationId,
+            @NonNull final String principalName) {
+        final var oauthClient = authorizedClientManager.authorize(OAuth2AuthorizeRequest
+                .withClientRegistrationId(Objects.requireNonNull(registrationId))
+                .principal(Objects.requireNonNull(principalName))
+                .build());
+        return oauthClient == null ? null : getGraphClient(oauthClient);
+    }
+
+
+    /**
+     * @param registration the client registration
+     * @return the tenant the registration signs in to, taken from its token endpoint, for example
+     *         https://login.microsoftonline.com/{tenant}/oauth2/v2.0/token
+     */
+    private static String getTenant(final ClientRegistration registration) {
+        final var tokenUri = registration.getProviderDetails().getTokenUri();
+        if (tokenUri != null) {
+            try {
+                final var path = URI.create(tokenUri).getPath();
+                if (path != null) {
+                    for (final var segment : path.split("/")) {
+                        if (!segment.isEmpty()) {
+                            return segment;
+                        }
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // Fall back to the registration
+            }
+        }
+        return registration.getRegistrationId();
+    }
 
-        return new GraphServiceClient(authProvider);
+
+    /**
+     * Releases the pooled connections and dispatcher threads
+     */
+    @PreDestroy
+    public void shutdown() {
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
     }
 }
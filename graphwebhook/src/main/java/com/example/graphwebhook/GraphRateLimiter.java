@@ -0,0 +1,380 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Adaptive client-side rate limiter for Graph requests. Every request takes a permit from a token
+ * bucket and a concurrency limit for its mailbox and for its tenant. Concurrency limits follow
+ * AIMD: they grow by one per limit's worth of successful requests and halve when Graph throttles.
+ * A 429 or 503 also pauses the mailbox for the Retry-After delay, and the request is sent again
+ * once the pause is over instead of failing the caller. Kiota's RetryHandler must not retry these
+ * responses as well, see {@link #requeues}
+ */
+@Component
+public class GraphRateLimiter {
+
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000L;
+
+    /**
+     * Token bucket, AIMD concurrency limit and Retry-After pause for one mailbox or tenant
+     */
+    private static final class Limit {
+        final String tenant;
+        final double ratePerMilli;
+        final double burst;
+        final double maxConcurrency;
+        double tokens;
+        long refilledAt;
+        double concurrencyLimit;
+        int inFlight;
+        long pausedUntil;
+        long lastUsed;
+
+        /**
+         * @param tenant the tenant a mailbox belongs to, or null for a tenant's own limit
+         */
+        Limit(final String tenant, final double requestsPerSecond, final int maxConcurrency,
+                final long now) {
+            this.tenant = tenant;
+            this.ratePerMilli = requestsPerSecond / 1000.0;
+            this.burst = Math.max(1.0, requestsPerSecond);
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            this.tokens = burst;
+            this.refilledAt = now;
+            this.concurrencyLimit = this.maxConcurrency;
+            this.lastUsed = now;
+        }
+
+        /**
+         * Takes a permit, waiting for a token, a free slot and the end of any pause
+         *
+         * @return false if the permit couldn't be had before the deadline
+         */
+        synchronized boolean acquire(final long deadline) throws InterruptedIOException {
+            while (true) {
+                final long now = now();
+                tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerMilli);
+                refilledAt = now;
+                lastUsed = now;
+
+                final long wait;
+                if (pausedUntil > now) {
+                    wait = pausedUntil - now;
+                } else if (inFlight >= (int) concurrencyLimit) {
+                    // Woken up by release
+                    wait = deadline - now;
+                } else if (tokens < 1.0) {
+                    wait = (long) Math.ceil((1.0 - tokens) / ratePerMilli);
+                } else {
+                    tokens -= 1.0;
+                    inFlight++;
+                    return true;
+                }
+
+                if (now >= deadline) {
+                    return false;
+                }
+                try {
+                    wait(Math.max(1L, Math.min(wait, deadline - now)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a Graph rate limit");
+                }
+            }
+        }
+
+        /**
+         * Returns a permit and adjusts the concurrency limit to the outcome
+         *
+         * @param throttled whether Graph throttled the request
+         * @param retryAfterMillis how long Graph asked to wait when throttled
+         */
+        synchronized void release(final boolean throttled, final long retryAfterMillis) {
+            inFlight--;
+            if (throttled) {
+                throttle(retryAfterMillis);
+            } else {
+                concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1.0 / concurrencyLimit);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Halves the concurrency limit and pauses for the Retry-After delay
+         */
+        synchronized void throttle(final long retryAfterMillis) {
+            concurrencyLimit = Math.max(1.0, concurrencyLimit / 2);
+            pausedUntil = Math.max(pausedUntil, now() + retryAfterMillis);
+            notifyAll();
+        }
+
+        synchronized boolean isPaused(final long now) {
+            return pausedUntil > now;
+        }
+
+        synchronized boolean isIdle(final long idleSince) {
+            return inFlight == 0 && lastUsed < idleSince && pausedUntil < idleSince;
+        }
+
+        synchronized double getConcurrencyLimit() {
+            return concurrencyLimit;
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final double mailboxRate;
+    private final int mailboxConcurrency;
+    private final double tenantRate;
+    private final int tenantConcurrency;
+    private final long maxWaitMillis;
+    private final int maxRequeues;
+    private final long idleTimeoutMillis;
+    private final Map<String, Limit> mailboxes = new ConcurrentHashMap<>();
+    private final Map<String, Limit> tenants = new ConcurrentHashMap<>();
+    private final Counter requeuedCounter;
+    private final Counter returnedCounter;
+    private final Counter batchThrottledCounter;
+    private final Counter rejectedCounter;
+    private final Timer waitTimer;
+
+    public GraphRateLimiter(MeterRegistry meterRegistry,
+            @Value("${graph.rate-limit.enabled:true}") final boolean enabled,
+            @Value("${graph.rate-limit.mailbox.requests-per-second:16}") final double mailboxRate,
+            @Value("${graph.rate-limit.mailbox.max-concurrency:4}") final int mailboxConcurrency,
+            @Value("${graph.rate-limit.tenant.requests-per-second:200}") final double tenantRate,
+            @Value("${graph.rate-limit.tenant.max-concurrency:64}") final int tenantConcurrency,
+            @Value("${graph.rate-limit.max-wait:60s}") final Duration maxWait,
+            @Value("${graph.rate-limit.max-requeues:3}") final int maxRequeues,
+            @Value("${graph.rate-limit.idle-timeout:10m}") final Duration idleTimeout) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.mailboxRate = mailboxRate;
+        this.mailboxConcurrency = mailboxConcurrency;
+        this.tenantRate = tenantRate;
+        this.tenantConcurrency = tenantConcurrency;
+        this.maxWaitMillis = maxWait.toMillis();
+        this.maxRequeues = maxRequeues;
+        this.idleTimeoutMillis = idleTimeout.toMillis();
+
+        requeuedCounter = throttledCounter(meterRegistry, "requeued");
+        returnedCounter = throttledCounter(meterRegistry, "returned");
+        batchThrottledCounter = throttledCounter(meterRegistry, "batch");
+        rejectedCounter = Counter.builder("graph.ratelimit.rejected")
+                .description("Graph requests that gave up waiting for a rate limit permit")
+                .register(meterRegistry);
+        waitTimer = Timer.builder("graph.ratelimit.wait")
+                .description("Time Graph requests waited for a rate limit permit")
+                .register(meterRegistry);
+        Gauge.builder("graph.ratelimit.mailboxes.paused", this, GraphRateLimiter::pausedMailboxes)
+                .description("Mailboxes waiting out a Retry-After delay")
+                .register(meterRegistry);
+        Gauge.builder("graph.ratelimit.mailboxes.tracked", mailboxes, Map::size)
+                .description("Mailboxes with rate limit state")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * @param mailbox the mailbox, or principal, the requests are made for
+     * @param tenant the tenant the mailbox belongs to
+     * @return an interceptor that applies the mailbox's and tenant's limits to every request
+     */
+    public Interceptor interceptor(@NonNull final String mailbox, @NonNull final String tenant) {
+        Objects.requireNonNull(mailbox);
+        Objects.requireNonNull(tenant);
+        if (!enabled) {
+            return chain -> chain.proceed(chain.request());
+        }
+
+        return chain -> {
+            for (int attempt = 0;; attempt++) {
+                final var mailboxLimit = mailboxLimit(mailbox, tenant);
+                final var tenantLimit = tenantLimit(tenant);
+                acquire(mailboxLimit, tenantLimit);
+
+                final Response response;
+                try {
+                    response = chain.proceed(chain.request());
+                } catch (IOException | RuntimeException e) {
+                    mailboxLimit.release(false, 0);
+                    tenantLimit.release(false, 0);
+                    throw e;
+                }
+
+                final int code = response.code();
+                if (code != 429 && code != 503) {
+                    mailboxLimit.release(false, 0);
+                    tenantLimit.release(false, 0);
+                    return response;
+                }
+
+                final long retryAfter = getRetryAfterMillis(response.header("Retry-After"),
+                        attempt);
+                // Mailbox throttling is the common case, so only the mailbox waits out the
+                // Retry-After delay while the whole tenant just backs off its concurrency
+                mailboxLimit.release(true, retryAfter);
+                tenantLimit.release(true, 0);
+
+                // Send it again once the pause is over rather than failing the caller
+                if (attempt >= maxRequeues || retryAfter > maxWaitMillis) {
+                    returnedCounter.increment();
+                    return response;
+                }
+                log.debug("Graph throttled {} for {}, retrying in {} ms", chain.request().url(),
+                        mailbox, retryAfter);
+                response.close();
+                requeuedCounter.increment();
+            }
+        };
+    }
+
+
+    /**
+     * @param statusCode the status of a response to a request made through an interceptor
+     * @return true if the interceptor already sends requests answered with this status again, so
+     *         retry middleware in front of it shouldn't
+     */
+    public boolean requeues(final int statusCode) {
+        return enabled && (statusCode == 429 || statusCode == 503);
+    }
+
+
+    /**
+     * Records throttling Graph reported for a request that didn't go through the interceptor on
+     * its own, like one request inside a $batch. The $batch request itself went through the
+     * mailbox's interceptor, so the mailbox's limit and tenant are known
+     *
+     * @param mailbox the mailbox, or principal, the request was made for
+     * @param retryAfterMillis how long Graph asked to wait, or 0 if it didn't say
+     */
+    public void onThrottled(@NonNull final String mailbox, final long retryAfterMillis) {
+        if (!enabled) {
+            return;
+        }
+        batchThrottledCounter.increment();
+        final var mailboxLimit = mailboxes.get(Objects.requireNonNull(mailbox));
+        if (mailboxLimit == null) {
+            return;
+        }
+        final long delay = retryAfterMillis > 0 ? retryAfterMillis : DEFAULT_RETRY_AFTER_MILLIS;
+        mailboxLimit.throttle(delay);
+        tenantLimit(mailboxLimit.tenant).throttle(0);
+    }
+
+
+    /**
+     * Forgets mailboxes that haven't made a request for a while, along with the tenant they belong
+     * to, so the state kept is bounded by the mailboxes in use
+     */
+    @Scheduled(fixedDelayString = "${graph.rate-limit.idle-timeout:10m}")
+    public void evictIdle() {
+        final long idleSince = now() - idleTimeoutMillis;
+        mailboxes.values().removeIf(limit -> limit.isIdle(idleSince));
+    }
+
+    private void acquire(final Limit mailboxLimit, final Limit tenantLimit)
+            throws IOException {
+        final long start = now();
+        final long deadline = start + maxWaitMillis;
+        // Take the narrower mailbox permit first so a busy mailbox doesn't hold tenant slots
+        if (!mailboxLimit.acquire(deadline)) {
+            rejectedCounter.increment();
+            throw new IOException("Timed out waiting for the Graph mailbox rate limit");
+        }
+        if (!tenantLimit.acquire(deadline)) {
+            mailboxLimit.release(false, 0);
+            rejectedCounter.increment();
+            throw new IOException("Timed out waiting for the Graph tenant rate limit");
+        }
+        waitTimer.record(now() - start, TimeUnit.MILLISECONDS);
+    }
+
+    private Limit mailboxLimit(final String mailbox, final String tenant) {
+        return mailboxes.computeIfAbsent(mailbox,
+                key -> new Limit(tenant, mailboxRate, mailboxConcurrency, now()));
+    }
+
+    private Limit tenantLimit(final String tenant) {
+        return tenants.computeIfAbsent(tenant, key -> {
+            final var limit = new Limit(null, tenantRate, tenantConcurrency, now());
+            // Few tenants, so each gets its own gauge
+            Gauge.builder("graph.ratelimit.tenant.concurrency", limit, Limit::getConcurrencyLimit)
+                    .description("Current concurrent Graph request limit for a tenant")
+                    .tag("tenant", key)
+                    .register(meterRegistry);
+            return limit;
+        });
+    }
+
+    /**
+     * @param meterRegistry the registry to add the counter to
+     * @param outcome what became of the throttled request: requeued, returned to the caller, or
+     *        reported inside a $batch
+     * @return the counter of throttled requests with the outcome
+     */
+    private static Counter throttledCounter(final MeterRegistry meterRegistry,
+            final String outcome) {
+        return Counter.builder("graph.ratelimit.throttled")
+                .description("Graph responses with 429 or 503 that reduced a rate limit")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private double pausedMailboxes() {
+        final long now = now();
+        return mailboxes.values().stream().filter(limit -> limit.isPaused(now)).count();
+    }
+
+    /**
+     * @param retryAfter the Retry-After header, in seconds or as an HTTP date
+     * @param attempt how many times the request has been throttled before
+     * @return the delay Graph asked for, or an exponential backoff if it didn't say
+     */
+    static long getRetryAfterMillis(final String retryAfter, final int attempt) {
+        if (retryAfter != null) {
+            try {
+                return Math.max(0L, Long.parseLong(retryAfter.trim()) * 1000L);
+            } catch (NumberFormatException e) {
+                try {
+                    final var date = ZonedDateTime.parse(retryAfter.trim(),
+                            DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0L, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+                } catch (DateTimeParseException ignored) {
+                    // Fall back to backing off
+                }
+            }
+        }
+        return DEFAULT_RETRY_AFTER_MILLIS << Math.min(attempt, 5);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,183 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded LRU cache of resources fetched from Microsoft Graph, keyed by the principal and the resource
+ * path that was fetched, so redelivered and closely spaced notifications for the same message don't fetch it
+ * again. Entries are served from memory for the TTL, after that they are revalidated with
+ * If-None-Match and only downloaded again if their ETag changed.
+ * <p>
+ * Cached bodies are shared between callers and must not be modified
+ */
+@Component
+public class GraphResourceCache {
+
+    private static final String ODATA_ETAG = "@odata.etag";
+
+    /**
+     * A cached resource body
+     *
+     * @param body the JSON body as returned by Graph
+     * @param etag the ETag of the body, or null if Graph didn't send one
+     * @param bytes the size of the body, counted as saved whenever the entry is used
+     * @param validatedAt when Graph last confirmed the body, in epoch milliseconds
+     */
+    private record Entry(JsonObject body, String etag, int bytes, long validatedAt) {
+    }
+
+    /**
+     * Identifies a cached body. The same path can resolve to a different resource, or one the
+     * principal may not read, for another principal
+     */
+    private record Key(String principal, String resourcePath) {
+    }
+
+    private final GraphBatchFetcher batchFetcher;
+    private final Clock clock;
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final Map<Key, Entry> entries;
+    private final Counter hitCounter;
+    private final Counter revalidatedCounter;
+    private final Counter missCounter;
+    private final Counter bytesSavedCounter;
+
+    @Autowired
+    public GraphResourceCache(GraphBatchFetcher batchFetcher, MeterRegistry meterRegistry,
+            @Value("${graph.cache.enabled:true}") final boolean enabled,
+            @Value("${graph.cache.max-entries:10000}") final int maxEntries,
+            @Value("${graph.cache.ttl:30s}") final Duration ttl) {
+        this(batchFetcher, meterRegistry, enabled, maxEntries, ttl, Clock.systemUTC());
+    }
+
+    GraphResourceCache(final GraphBatchFetcher batchFetcher, final MeterRegistry meterRegistry,
+            final boolean enabled, final int maxEntries, final Duration ttl, final Clock clock) {
+        this.batchFetcher = Objects.requireNonNull(batchFetcher);
+        this.clock = Objects.requireNonNull(clock);
+        this.enabled = enabled && maxEntries > 0;
+        this.ttlMillis = ttl.toMillis();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        hitCounter = Counter.builder("graph.cache.requests")
+                .description("Graph resource lookups by how the cache answered them")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        revalidatedCounter = Counter.builder("graph.cache.requests")
+                .description("Graph resource lookups by how the cache answered them")
+                .tag("result", "revalidated")
+                .register(meterRegistry);
+        missCounter = Counter.builder("graph.cache.requests")
+                .description("Graph resource lookups by how the cache answered them")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        bytesSavedCounter = Counter.builder("graph.cache.bytes-saved")
+                .description("Resource bytes served from the cache instead of downloaded from Graph")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("graph.cache.size", this, GraphResourceCache::size)
+                .description("Graph resources in the cache")
+                .register(meterRegistry);
+        Gauge.builder("graph.cache.hit-ratio", this, GraphResourceCache::hitRatio)
+                .description("Share of Graph resource lookups answered without downloading the resource")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * Gets a Graph resource from the cache, or through the batch fetcher if it isn't cached or
+     * its ETag changed
+     *
+     * @param principal identifies whose credentials are used to fetch the resource
+     * @param graphClient a Graph client authenticated as the principal
+     * @param resourcePath the resource path relative to the Graph version root, including any
+     *        query options
+     * @return a future completed with the JSON body of the resource
+     */
+    public CompletableFuture<JsonObject> fetch(@NonNull final String principal,
+            @NonNull final GraphServiceClient graphClient, @NonNull final String resourcePath) {
+        Objects.requireNonNull(resourcePath);
+        if (!enabled) {
+            return batchFetcher.fetch(principal, graphClient, resourcePath);
+        }
+
+        final var key = new Key(Objects.requireNonNull(principal), resourcePath);
+        final Entry cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+        }
+        if (cached != null && clock.millis() - cached.validatedAt() < ttlMillis) {
+            hitCounter.increment();
+            bytesSavedCounter.increment(cached.bytes());
+            return CompletableFuture.completedFuture(cached.body());
+        }
+
+        if (cached == null || cached.etag() == null) {
+            missCounter.increment();
+            return batchFetcher.fetchWithSize(principal, graphClient, resourcePath, null)
+                    .thenApply(fetched -> store(key, fetched));
+        }
+
+        return batchFetcher.fetchWithSize(principal, graphClient, resourcePath, cached.etag())
+                .thenApply(fetched -> {
+                    if (fetched != null) {
+                        missCounter.increment();
+                        return store(key, fetched);
+                    }
+                    // Not modified, keep serving the cached body for another TTL
+                    revalidatedCounter.increment();
+                    bytesSavedCounter.increment(cached.bytes());
+                    put(key, new Entry(cached.body(), cached.etag(), cached.bytes(),
+                            clock.millis()));
+                    return cached.body();
+                });
+    }
+
+    private JsonObject store(final Key key, final GraphBatchFetcher.Fetched fetched) {
+        final var body = fetched.body();
+        final var etag = body.get(ODATA_ETAG);
+        put(key, new Entry(body, etag != null && etag.isJsonPrimitive() ? etag.getAsString() : null,
+                fetched.bytes(), clock.millis()));
+        return body;
+    }
+
+    private void put(final Key key, final Entry entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    private int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private double hitRatio() {
+        final double served = hitCounter.count() + revalidatedCounter.count();
+        final double total = served + missCounter.count();
+        return total == 0 ? 0 : served / total;
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.lang.NonNull;
+
+/**
+ * Hashed timing wheel: a ring of slots, each holding the items due in one tick of any revolution.
+ * Scheduling is O(1) and each tick only looks at one slot, so it holds hundreds of thousands of
+ * deadlines with no per-item timer. Deadlines are rounded up to the next tick.
+ * <p>
+ * Items can be scheduled from any thread, {@link #advance(long)} must only be called from one
+ *
+ * @param <T> the type of the scheduled items
+ */
+public class HashedTimingWheel<T> {
+
+    /**
+     * An item, its deadline and the revolutions left before its slot is due
+     */
+    private static final class Entry<T> {
+        final T item;
+        final long deadline;
+        long rounds;
+
+        Entry(final T item, final long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final int mask;
+    private final List<ArrayDeque<Entry<T>>> slots;
+    private final Queue<Entry<T>> scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Only touched from the thread calling advance
+    private long tick;
+
+    /**
+     * @param tickMillis the length of one tick
+     * @param slotCount the number of slots, rounded up to a power of two
+     * @param startMillis the time of the first tick
+     */
+    public HashedTimingWheel(final long tickMillis, final int slotCount, final long startMillis) {
+        if (tickMillis <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("Tick and slot count must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        final int capacity = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.mask = capacity - 1;
+        this.slots = new ArrayList<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+    }
+
+
+    /**
+     * @param item the item to schedule. The same item can be scheduled more than once
+     * @param deadlineMillis when the item is due
+     */
+    public void schedule(@NonNull final T item, final long deadlineMillis) {
+        // Placed in a slot by the next advance so slots are only touched from one thread
+        scheduled.add(new Entry<>(Objects.requireNonNull(item), deadlineMillis));
+        size.incrementAndGet();
+    }
+
+
+    /**
+     * Moves the wheel forward through every tick that has ended by now
+     *
+     * @param nowMillis the current time
+     * @return the items that became due, in no particular order
+     */
+    public List<T> advance(final long nowMillis) {
+        final List<T> due = new ArrayList<>();
+        // A tick is processed once it has fully passed
+        while (startMillis + (tick + 1) * tickMillis <= nowMillis) {
+            placeScheduled(due);
+            expire(slots.get((int) (tick & mask)), due);
+            tick++;
+        }
+        size.addAndGet(-due.size());
+        return due;
+    }
+
+
+    /**
+     * @return the number of scheduled items
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private void placeScheduled(final List<T> due) {
+        Entry<T> entry;
+        while ((entry = scheduled.poll()) != null) {
+            final long deadlineTick = Math.floorDiv(entry.deadline - startMillis - 1, tickMillis);
+            if (deadlineTick < tick) {
+                // Already past, due in the tick being processed
+                due.add(entry.item);
+                continue;
+            }
+            entry.rounds = (deadlineTick - tick) >> Integer.bitCount(mask);
+            slots.get((int) (deadlineTick & mask)).add(entry);
+        }
+    }
+
+    private static <T> void expire(final ArrayDeque<Entry<T>> slot, final List<T> due) {
+        final Iterator<Entry<T>> iterator = slot.iterator();
+        while (iterator.hasNext()) {
+            final var entry = iterator.next();
+            if (entry.rounds <= 0) {
+                iterator.remove();
+                due.add(entry.item);
+            } else {
+                entry.rounds--;
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import com.example.graphwebhook.notifications.NotificationItem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds notifications for subscriptions whose Socket.IO room has no connected clients, so nobody
+ * pays for decrypting messages or fetching them from Graph when there is no one to send them to.
+ * Depending on the policy the notifications are dropped, or kept as received, still encrypted, in
+ * a small per-subscription buffer and processed once a client joins the room
+ */
+@Component
+public class IdleRoomBuffer {
+
+    /**
+     * What to do with a notification for a room with no clients
+     */
+    public enum Policy {
+        /**
+         * Process the notification anyway
+         */
+        PROCESS,
+
+        /**
+         * Keep the notification and process it when a client joins the room
+         */
+        DEFER,
+
+        /**
+         * Drop the notification
+         */
+        DROP
+    }
+
+    /**
+     * A notification waiting for a client
+     */
+    private record Deferred(NotificationItem notification, long deferredAt) {
+    }
+
+    private final Policy policy;
+    private final int maxPerSubscription;
+    private final long maxAgeMillis;
+    private final Map<String, ArrayDeque<Deferred>> buffers = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Counter skippedCounter;
+    private final Counter replayedCounter;
+    private final Counter expiredCounter;
+
+    public IdleRoomBuffer(MeterRegistry meterRegistry,
+            @Value("${notifications.idle-rooms.policy:DEFER}") final Policy policy,
+            @Value("${notifications.idle-rooms.buffer-size:100}") final int maxPerSubscription,
+            @Value("${notifications.idle-rooms.max-age:10m}") final Duration maxAge) {
+        this.policy = Objects.requireNonNull(policy);
+        this.maxPerSubscription = maxPerSubscription;
+        this.maxAgeMillis = maxAge.toMillis();
+
+        Gauge.builder("notifications.idle-rooms.buffered", size, AtomicInteger::get)
+                .description("Notifications waiting for a client to join their room")
+                .register(meterRegistry);
+        skippedCounter = Counter.builder("notifications.idle-rooms.skipped")
+                .description("Notifications not decrypted or fetched because their room had no clients")
+                .tag("policy", policy.name())
+                .register(meterRegistry);
+        replayedCounter = Counter.builder("notifications.idle-rooms.replayed")
+                .description("Deferred notifications processed after a client joined their room")
+                .register(meterRegistry);
+        expiredCounter = Counter.builder("notifications.idle-rooms.expired")
+                .description("Deferred notifications dropped because they were too old or the buffer was full")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * Handles a notification for a room that may have no connected clients. For a deferred
+     * notification, checking the room and buffering the notification are atomic with respect to
+     * {@link #drain}, so a client joining at the same time either gets the notification processed
+     * right away or finds it in the buffer
+     *
+     * @param subscriptionId the subscription, and room, the notification is for
+     * @param notification the notification
+     * @param hasClients checks whether the room has connected clients
+     * @return true if the notification was deferred or dropped, false if it should be processed
+     */
+    public boolean skip(@NonNull final String subscriptionId,
+            @NonNull final NotificationItem notification,
+            @NonNull final BooleanSupplier hasClients) {
+        Objects.requireNonNull(subscriptionId);
+        Objects.requireNonNull(notification);
+        Objects.requireNonNull(hasClients);
+        switch (policy) {
+            case DROP:
+                if (hasClients.getAsBoolean()) {
+                    return false;
+                }
+                skippedCounter.increment();
+                return true;
+            case DEFER:
+                if (maxPerSubscription <= 0 || hasClients.getAsBoolean()) {
+                    return false;
+                }
+                final var deferred = new Deferred(notification, System.currentTimeMillis());
+                final boolean[] skipped = new boolean[1];
+                buffers.compute(subscriptionId, (id, buffer) -> {
+                    // A client that joined since the first check drains after this, or has
+                    // already drained and needs the notification processed now
+                    if (hasClients.getAsBoolean()) {
+                        return buffer;
+                    }
+                    final var result = buffer == null ? new ArrayDeque<Deferred>() : buffer;
+                    if (result.size() >= maxPerSubscription) {
+                        // Keep the most recent notifications
+                        result.pollFirst();
+                        size.decrementAndGet();
+                        expiredCounter.increment();
+                    }
+                    result.addLast(deferred);
+                    size.incrementAndGet();
+                    skipped[0] = true;
+                    return result;
+                });
+                if (skipped[0]) {
+                    skippedCounter.increment();
+                }
+                return skipped[0];
+            case PROCESS:
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Removes the notifications deferred for a subscription
+     *
+     * @param subscriptionId the subscription whose room a client joined
+     * @return the deferred notifications that haven't expired, oldest first
+     */
+    public List<NotificationItem> drain(@NonNull final String subscriptionId) {
+        final var buffer = buffers.remove(Objects.requireNonNull(subscriptionId));
+        if (buffer == null) {
+            return List.of();
+        }
+
+        final var oldest = System.currentTimeMillis() - maxAgeMillis;
+        final List<NotificationItem> notifications = new ArrayList<>(buffer.size());
+        // Once removed from the map the buffer can't be modified by skip or purgeExpired
+        for (final var deferred : buffer) {
+            if (deferred.deferredAt() >= oldest) {
+                notifications.add(deferred.notification());
+            } else {
+                expiredCounter.increment();
+            }
+        }
+        size.addAndGet(-buffer.size());
+        replayedCounter.increment(notifications.size());
+        return notifications;
+    }
+
+
+    /**
+     * Moves the notifications deferred for a subscription to its replacement, so a client joining
+     * the replacement's room still gets them. They are kept ahead of any already deferred for the
+     * replacement, and the oldest are dropped if the two don't fit in one buffer
+     *
+     * @param fromSubscriptionId the replaced subscription
+     * @param toSubscriptionId the replacement subscription
+     */
+    public void move(@NonNull final String fromSubscriptionId,
+            @NonNull final String toSubscriptionId) {
+        final var moved = buffers.remove(Objects.requireNonNull(fromSubscriptionId));
+        if (moved == null) {
+            return;
+        }
+
+        buffers.compute(Objects.requireNonNull(toSubscriptionId), (id, buffer) -> {
+            if (buffer != null) {
+                moved.addAll(buffer);
+            }
+            while (moved.size() > maxPerSubscription) {
+                moved.pollFirst();
+                size.decrementAndGet();
+                expiredCounter.increment();
+            }
+            return moved;
+        });
+    }
+
+
+    /**
+     * Drops deferred notifications that are too old to be worth processing
+     */
+    @Scheduled(fixedDelayString = "${notifications.idle-rooms.max-age:10m}")
+    public void purgeExpired() {
+        final var oldest = System.currentTimeMillis() - maxAgeMillis;
+        for (final var subscriptionId : buffers.keySet()) {
+            buffers.computeIfPresent(subscriptionId, (id, buffer) -> {
+                while (!buffer.isEmpty() && buffer.peekFirst().deferredAt() < oldest) {
+                    buffer.pollFirst();
+                    size.decrementAndGet();
+                    expiredCounter.increment();
+                }
+                return buffer.isEmpty() ? null : buffer;
+            });
+        }
+    }
+}
@@ -0,0 +1,199 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * Striped executor that hashes a key, the subscription ID, to one of a fixed number of lanes. Each
+ * lane has its own bounded queue and thread, so tasks for the same key run in submission order
+ * while different keys proceed in parallel with no lock shared between lanes.
+ * <p>
+ * A task returns a stage that completes with the action that emits its result. Emit actions for a
+ * key run in submission order even when the stages complete out of order, so asynchronous work like
+ * Graph fetches doesn't hold up the lane. Each key has its own chain of emit actions, a stage that
+ * is slow or never completes only holds up its own key, and only until the emit timeout.
+ * <p>
+ * Order is kept among tasks submitted for a key, which is the order a single notification worker
+ * reaches them in. Payloads for the same subscription taken by different pipeline workers at the
+ * same time can be submitted in either order, as can Graph's own redeliveries
+ */
+@Component
+public class KeyedLaneExecutor {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * A task waiting in a lane
+     */
+    private record Task(String key, Supplier<? extends CompletionStage<Runnable>> task) {
+    }
+
+    /**
+     * A single-threaded lane with its own queue
+     */
+    private final class Lane implements Runnable {
+        final BlockingQueue<Task> queue;
+        final Thread thread;
+        final Counter processedCounter;
+
+        // The last emit action of each key with one still waiting. Only the lane's thread adds
+        // entries, an entry removes itself once it has run and no later action was chained to it
+        final ConcurrentHashMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+        Lane(final int index, final int capacity, final MeterRegistry meterRegistry) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, "notification-lane-" + index);
+            this.thread.setDaemon(true);
+
+            final var lane = Integer.toString(index);
+            Gauge.builder("notifications.lane.queue.depth", queue, BlockingQueue::size)
+                    .description("Notifications waiting in a processing lane")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+            processedCounter = Counter.builder("notifications.lane.processed")
+                    .description("Notifications processed by a processing lane")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                CompletionStage<Runnable> result;
+                try {
+                    result = task.task().get();
+                } catch (RuntimeException e) {
+                    result = CompletableFuture.failedFuture(e);
+                }
+                processedCounter.increment();
+
+                // Chain the emit action behind the previous one for the same key. The task's own
+                // stage is timed out, so whoever else watches it sees the timeout too
+                final var emit = result.toCompletableFuture()
+                        .orTimeout(emitTimeoutMillis, TimeUnit.MILLISECONDS)
+                        .exceptionally(e -> {
+                            if (e instanceof TimeoutException
+                                    || e.getCause() instanceof TimeoutException) {
+                                timedOutCounter.increment();
+                            }
+                            log.error("Error processing notification", e);
+                            return null;
+                        });
+                final var tail = new CompletableFuture<Void>();
+                final var previous = tails.put(task.key(), tail);
+                final var chained = previous == null ? emit
+                        : previous.thenCombine(emit, (ignored, action) -> action);
+                chained.thenAccept(action -> {
+                    if (action != null) {
+                        try {
+                            action.run();
+                        } catch (RuntimeException e) {
+                            log.error("Error emitting notification", e);
+                        }
+                    }
+                }).whenComplete((ignored, e) -> {
+                    tails.remove(task.key(), tail);
+                    tail.complete(null);
+                });
+            }
+        }
+    }
+
+    private final Lane[] lanes;
+    private final long emitTimeoutMillis;
+    private final Counter timedOutCounter;
+
+    public KeyedLaneExecutor(MeterRegistry meterRegistry,
+            @Value("${notifications.lanes.count:0}") final int laneCount,
+            @Value("${notifications.lanes.queue-capacity:1000}") final int queueCapacity,
+            @Value("${notifications.lanes.emit-timeout:2m}") final Duration emitTimeout) {
+        this.emitTimeoutMillis = emitTimeout.toMillis();
+        timedOutCounter = Counter.builder("notifications.lane.timed-out")
+                .description("Notifications dropped because processing them took too long")
+                .register(meterRegistry);
+
+        // Default to one lane per core
+        final int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        this.lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane(i, queueCapacity, meterRegistry);
+            lanes[i].thread.start();
+        }
+    }
+
+
+    /**
+     * Queues a task on the lane for the given key. Blocks while that lane is full, which pushes
+     * back on the notification pipeline
+     *
+     * @param key the key that selects the lane
+     * @param task the task to run, returning a stage that completes with the emit action, or with
+     *        null if there is nothing to emit. The lane completes the stage with a
+     *        TimeoutException if it takes longer than the emit timeout, so it must be one the
+     *        task owns rather than one shared with other work
+     * @throws InterruptedException if interrupted while waiting for space in the lane
+     */
+    public void submit(@NonNull final String key,
+            @NonNull final Supplier<? extends CompletionStage<Runnable>> task)
+            throws InterruptedException {
+        lanes[laneFor(Objects.requireNonNull(key))].queue
+                .put(new Task(key, Objects.requireNonNull(task)));
+    }
+
+
+    /**
+     * @return the number of keys with emit actions waiting on an earlier one
+     */
+    int chainedKeys() {
+        int count = 0;
+        for (final var lane : lanes) {
+            count += lane.tails.size();
+        }
+        return count;
+    }
+
+
+    /**
+     * Stops the lane threads
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (final var lane : lanes) {
+            lane.thread.interrupt();
+        }
+    }
+
+    private int laneFor(final String key) {
+        // Spread the hash so keys that only differ in their high bits don't collide
+        final int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+    }
+}
@@ -0,0 +1,265 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import com.example.graphwebhook.notifications.NotificationEnvelope;
+import com.example.graphwebhook.notifications.NotificationItem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Priority lane for lifecycle notifications. They are split off in the /listen endpoint and run on
+ * their own workers with their own queue, so they never wait behind the notification pipeline, the
+ * processing lanes or Graph fetches for data notifications.
+ * <ul>
+ * <li>reauthorizationRequired renews the subscription right away, which reauthorizes it</li>
+ * <li>subscriptionRemoved creates a replacement subscription for the same resource and moves the
+ * clients listening on the old one over, then catches up on what happened in between</li>
+ * <li>missed queues a {@link CatchUpEngine} run for the subscription</li>
+ * </ul>
+ */
+@Service
+public class LifecycleNotificationHandler {
+
+    private static final String REAUTHORIZATION_REQUIRED = "reauthorizationRequired";
+    private static final String SUBSCRIPTION_REMOVED = "subscriptionRemoved";
+    private static final String MISSED = "missed";
+    private static final String OTHER = "other";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final SubscriptionStore subscriptionStore;
+    private final SubscriptionRenewalScheduler renewalScheduler;
+    private final SubscriptionFactory subscriptionFactory;
+    private final GraphClientHelper graphClientHelper;
+    private final NotificationProcessor processor;
+    private final CatchUpEngine catchUp;
+    private final NotificationDeduplicator deduplicator;
+    private final TokenHelper tokenHelper;
+    private final BlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    private final Counter rejectedCounter;
+    private final Timer queueWaitTimer;
+    private final Map<String, Timer> handledTimers;
+    private final Map<String, Timer> failedTimers;
+
+    public LifecycleNotificationHandler(SubscriptionStore subscriptionStore,
+            SubscriptionRenewalScheduler renewalScheduler, SubscriptionFactory subscriptionFactory,
+            GraphClientHelper graphClientHelper, NotificationProcessor processor,
+            CatchUpEngine catchUp,
+            NotificationDeduplicator deduplicator, TokenHelper tokenHelper,
+            MeterRegistry meterRegistry,
+            @Value("${notifications.lifecycle.workers:2}") final int workers,
+            @Value("${notifications.lifecycle.queue-capacity:1000}") final int queueCapacity) {
+        this.subscriptionStore = Objects.requireNonNull(subscriptionStore);
+        this.renewalScheduler = Objects.requireNonNull(renewalScheduler);
+        this.subscriptionFactory = Objects.requireNonNull(subscriptionFactory);
+        this.graphClientHelper = Objects.requireNonNull(graphClientHelper);
+        this.processor = Objects.requireNonNull(processor);
+        this.catchUp = Objects.requireNonNull(catchUp);
+        this.deduplicator = Objects.requireNonNull(deduplicator);
+        this.tokenHelper = Objects.requireNonNull(tokenHelper);
+
+        final var threadFactory = new CustomizableThreadFactory("lifecycle-worker-");
+        threadFactory.setThreadPriority(Thread.MAX_PRIORITY);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, queue,
+                threadFactory);
+        this.executor.prestartAllCoreThreads();
+
+        Gauge.builder("notifications.lifecycle.queue.depth", queue, BlockingQueue::size)
+                .description("Lifecycle notification payloads waiting for a lifecycle worker")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("notifications.lifecycle.rejected")
+                .description("Lifecycle notification payloads that did not fit on the queue")
+                .register(meterRegistry);
+        queueWaitTimer = Timer.builder("notifications.lifecycle.queue.wait")
+                .description("Time lifecycle notifications waited for a lifecycle worker")
+                .register(meterRegistry);
+        handledTimers = latencyTimers(meterRegistry, "success");
+        failedTimers = latencyTimers(meterRegistry, "failure");
+    }
+
+
+    /**
+     * Enqueues lifecycle notifications on the priority lane
+     *
+     * @param notifications the lifecycle notifications from one /listen request
+     * @param receivedAt when the request was received, from {@link System#nanoTime()}
+     * @return true if the payload was accepted, false if it should be redelivered by Microsoft Graph
+     */
+    public boolean submit(@NonNull final NotificationEnvelope notifications,
+            final long receivedAt) {
+        Objects.requireNonNull(notifications);
+        try {
+            executor.execute(() -> processNotifications(notifications, receivedAt));
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            log.warn("Lifecycle notification queue is full, asking Microsoft Graph to redeliver");
+            return false;
+        }
+    }
+
+
+    /**
+     * Stops accepting payloads and gives the workers a chance to drain the queue
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Dropping {} queued lifecycle notification payloads on shutdown",
+                    executor.shutdownNow().size());
+        }
+    }
+
+    private void processNotifications(final NotificationEnvelope notifications,
+            final long receivedAt) {
+        queueWaitTimer.record(System.nanoTime() - receivedAt, TimeUnit.NANOSECONDS);
+
+        try {
+            final var validationTokens = notifications.validationTokens();
+            if (!validationTokens.isEmpty()
+                    && !tokenHelper.areValidationTokensValid(validationTokens)) {
+                log.warn("Dropping lifecycle notifications with invalid validation tokens");
+                return;
+            }
+
+            for (final var notification : notifications.items()) {
+                processNotification(notification, receivedAt);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error processing lifecycle notifications", e);
+        }
+    }
+
+    private void processNotification(final NotificationItem notification, final long receivedAt) {
+        if (notification.subscriptionId() == null) {
+            return;
+        }
+        final var subscription = subscriptionStore.getSubscription(notification.subscriptionId());
+        if (subscription == null
+                || !subscription.clientState.equals(notification.clientState())) {
+            return;
+        }
+        // Graph retries lifecycle notifications too, the expiration tells repeats apart
+        if (deduplicator.isDuplicate(notification.subscriptionId(), null,
+                notification.lifecycleEvent(), notification.subscriptionExpirationDateTime())) {
+            return;
+        }
+
+        final var event = notification.lifecycleEvent();
+        boolean handled;
+        try {
+            handled = switch (event) {
+                case REAUTHORIZATION_REQUIRED -> reauthorize(subscription);
+                case SUBSCRIPTION_REMOVED -> recreate(subscription);
+                case MISSED -> {
+                    log.warn("Microsoft Graph missed notifications for subscription {}",
+                            subscription.subscriptionId);
+                    catchUp.trigger(subscription);
+                    yield true;
+                }
+                default -> {
+                    log.info("Ignoring lifecycle event {} for subscription {}", event,
+                            subscription.subscriptionId);
+                    yield true;
+                }
+            };
+        } catch (RuntimeException e) {
+            log.error("Error handling {} for subscription {}", event, subscription.subscriptionId,
+                    e);
+            handled = false;
+        }
+        if (!handled) {
+            // Let Graph's retry, or the next notification, have another go
+            deduplicator.forget(notification.subscriptionId(), null, event,
+                    notification.subscriptionExpirationDateTime());
+        }
+
+        final var timers = handled ? handledTimers : failedTimers;
+        timers.getOrDefault(event, timers.get(OTHER))
+                .record(System.nanoTime() - receivedAt, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Renewing a subscription also reauthorizes it
+     */
+    private boolean reauthorize(final SubscriptionRecord subscription) {
+        log.info("Reauthorizing subscription {}", subscription.subscriptionId);
+        return renewalScheduler.renewNow(subscription);
+    }
+
+    /**
+     * Creates a subscription to replace one Graph removed
+     */
+    private boolean recreate(final SubscriptionRecord subscription) {
+        final var graphClient = graphClientHelper.getGraphClient(
+                subscription.getRegistrationId(), subscription.userId);
+        if (graphClient == null) {
+            log.warn("No authorized client to re-create subscription {}",
+                    subscription.subscriptionId);
+            subscriptionStore.deleteSubscription(subscription.subscriptionId);
+            return false;
+        }
+
+        final var replacement = graphClient.subscriptions().post(subscriptionFactory.newSubscription(
+                Objects.requireNonNull(subscription.resource), subscription.clientState,
+                subscription.includeResourceData));
+        final var replacementId = Objects.requireNonNull(replacement.getId());
+
+        subscriptionStore.deleteSubscription(subscription.subscriptionId);
+        subscriptionStore.addSubscription(replacement, subscription.userId);
+        final var replacementRecord =
+                Objects.requireNonNull(subscriptionStore.getSubscription(replacementId));
+        renewalScheduler.schedule(replacementRecord);
+        processor.moveRoom(subscription.subscriptionId, replacementId);
+        // Pick up where the removed subscription's delta left off
+        catchUp.moveDeltaLink(subscription.subscriptionId, replacementId);
+        catchUp.trigger(replacementRecord);
+
+        log.info("Re-created removed subscription {} as {}", subscription.subscriptionId,
+                replacementId);
+        return true;
+    }
+
+    /**
+     * @param meterRegistry the registry to add the timers to
+     * @param result the result the timers are tagged with
+     * @return the latency timer of each known event, and of other events
+     */
+    private static Map<String, Timer> latencyTimers(final MeterRegistry meterRegistry,
+            final String result) {
+        // Allows looking up a null event
+        final Map<String, Timer> timers = new HashMap<>();
+        for (final var event : List.of(REAUTHORIZATION_REQUIRED, SUBSCRIPTION_REMOVED, MISSED,
+                OTHER)) {
+            timers.put(event, Timer.builder("notifications.lifecycle.latency")
+                    .description("Time from receiving a lifecycle notification to handling it")
+                    .tag("event", event)
+                    .tag("result", result)
+                    .register(meterRegistry));
+        }
+        return timers;
+    }
+}
@@ -3,6 +3,8 @@
 
 package com.example.graphwebhook;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Objects;
 import com.microsoft.graph.models.ChatMessage;
 import org.springframework.lang.NonNull;
@@ -13,6 +15,16 @@ import org.springframework.lang.NonNull;
  */
 public class NewChatMessageNotification {
 
+    /**
+     * The path of the sender's display name in a chatMessage
+     */
+    public static final String SENDER_PATH = "from.user.displayName";
+
+    /**
+     * The path of the message content in a chatMessage
+     */
+    public static final String BODY_PATH = "body.content";
+
     /**
      * The display name of the sender
      */
@@ -23,8 +35,22 @@ public class NewChatMessageNotification {
      */
     public final String body;
 
+    /**
+     * Every field projected from the message, keyed by its path. Empty when the message was parsed
+     * into the full model
+     */
+    public final Map<String, String> fields;
+
     public NewChatMessageNotification(@NonNull ChatMessage message) {
         sender = Objects.requireNonNull(Objects.requireNonNull(message.getFrom()).getUser()).getDisplayName();
         body = Objects.requireNonNull(message.getBody()).getContent();
+        fields = Map.of();
+    }
+
+    public NewChatMessageNotification(@NonNull Map<String, String> projectedFields) {
+        Objects.requireNonNull(projectedFields);
+        sender = projectedFields.get(SENDER_PATH);
+        body = projectedFields.get(BODY_PATH);
+        fields = Collections.unmodifiableMap(projectedFields);
     }
 }
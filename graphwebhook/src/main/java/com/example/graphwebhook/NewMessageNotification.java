@@ -3,6 +3,8 @@
 
 package com.example.graphwebhook;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Objects;
 import com.microsoft.graph.models.Message;
 import org.springframework.lang.NonNull;
@@ -13,6 +15,16 @@ import org.springframework.lang.NonNull;
  */
 public class NewMessageNotification {
 
+    /**
+     * The message property holding the ID
+     */
+    public static final String ID_PROPERTY = "id";
+
+    /**
+     * The message property holding the subject
+     */
+    public static final String SUBJECT_PROPERTY = "subject";
+
     /**
      * The subject of the message
      */
@@ -23,9 +35,23 @@ public class NewMessageNotification {
      */
     public final String id;
 
+    /**
+     * Every property selected when fetching the message, keyed by name. Empty when the message was
+     * parsed into the full model
+     */
+    public final Map<String, String> fields;
+
     public NewMessageNotification(@NonNull Message message) {
         Objects.requireNonNull(message);
         subject = message.getSubject();
         id = message.getId();
+        fields = Map.of();
+    }
+
+    public NewMessageNotification(@NonNull Map<String, String> selectedFields) {
+        Objects.requireNonNull(selectedFields);
+        subject = selectedFields.get(SUBJECT_PROPERTY);
+        id = selectedFields.get(ID_PROPERTY);
+        fields = Collections.unmodifiableMap(selectedFields);
     }
 }
@@ -0,0 +1,219 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.codec.digest.MurmurHash3;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Time-windowed filter for change notifications that Microsoft Graph redelivers. Each notification
+ * is reduced to a 64-bit fingerprint of its subscription ID, change type and resource data ID, or
+ * its resource when there is no resource data ID, and fingerprints are kept in two generations of
+ * open-addressing tables. The current generation is rotated out once it is half the TTL old or
+ * full, so a notification is remembered for between half and all of the TTL using 8 bytes per slot
+ */
+@Component
+public class NotificationDeduplicator {
+
+    /**
+     * Fixed size open-addressing set of fingerprints. 0 marks an empty slot
+     */
+    private static final class Generation {
+        final long[] slots;
+        final int maxEntries;
+        int size;
+        long startedAt;
+
+        Generation(final int maxEntries) {
+            // Keep the load factor at or below 0.5 so probes stay short
+            this.slots = new long[Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1];
+            this.maxEntries = maxEntries;
+        }
+
+        boolean contains(final long fingerprint) {
+            final int mask = slots.length - 1;
+            for (int i = (int) fingerprint & mask;; i = (i + 1) & mask) {
+                if (slots[i] == fingerprint) {
+                    return true;
+                }
+                if (slots[i] == 0L) {
+                    return false;
+                }
+            }
+        }
+
+        void add(final long fingerprint) {
+            final int mask = slots.length - 1;
+            int i = (int) fingerprint & mask;
+            while (slots[i] != 0L) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = fingerprint;
+            size++;
+        }
+
+        void remove(final long fingerprint) {
+            final int mask = slots.length - 1;
+            int i = (int) fingerprint & mask;
+            while (slots[i] != fingerprint) {
+                if (slots[i] == 0L) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = 0L;
+            size--;
+
+            // Shift later entries of the probe run back so lookups still reach them
+            for (int j = (i + 1) & mask; slots[j] != 0L; j = (j + 1) & mask) {
+                final int home = (int) slots[j] & mask;
+                final boolean reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!reachable) {
+                    slots[i] = slots[j];
+                    slots[j] = 0L;
+                    i = j;
+                }
+            }
+        }
+
+        void clear(final long now) {
+            Arrays.fill(slots, 0L);
+            size = 0;
+            startedAt = now;
+        }
+    }
+
+    private final Clock clock;
+    private final long generationMillis;
+    private Generation current;
+    private Generation previous;
+    private final Counter duplicateCounter;
+    private final Counter uniqueCounter;
+
+    @Autowired
+    public NotificationDeduplicator(MeterRegistry meterRegistry,
+            @Value("${notifications.dedup.ttl:10m}") final Duration ttl,
+            @Value("${notifications.dedup.capacity:100000}") final int capacity) {
+        this(meterRegistry, ttl, capacity, Clock.systemUTC());
+    }
+
+    NotificationDeduplicator(final MeterRegistry meterRegistry, final Duration ttl,
+            final int capacity, final Clock clock) {
+        this.clock = Objects.requireNonNull(clock);
+        this.generationMillis = Math.max(1L, ttl.toMillis() / 2);
+        final int generationCapacity = Math.max(1, capacity / 2);
+        final long now = clock.millis();
+        this.current = new Generation(generationCapacity);
+        this.previous = new Generation(generationCapacity);
+        this.current.startedAt = now;
+        this.previous.startedAt = now;
+
+        Gauge.builder("notifications.dedup.size", this, NotificationDeduplicator::size)
+                .description("Notification fingerprints currently remembered")
+                .register(meterRegistry);
+        duplicateCounter = Counter.builder("notifications.dedup.checks").tag("result", "duplicate")
+                .description("Notifications dropped as redeliveries")
+                .register(meterRegistry);
+        uniqueCounter = Counter.builder("notifications.dedup.checks").tag("result", "unique")
+                .description("Notifications seen for the first time")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * Records a notification and reports whether it was already seen within the TTL
+     *
+     * @param subscriptionId the subscription ID of the notification
+     * @param resource the resource of the notification
+     * @param changeType the change type of the notification
+     * @param resourceDataId the ID in the notification's resource data, if any
+     * @return true if the notification is a redelivery and should be dropped
+     */
+    public boolean isDuplicate(final String subscriptionId, final String resource,
+            final String changeType, final String resourceDataId) {
+        final long fingerprint =
+                fingerprint(subscriptionId, resource, changeType, resourceDataId);
+        final long now = clock.millis();
+
+        synchronized (this) {
+            if (now - current.startedAt >= generationMillis || current.size >= current.maxEntries) {
+                rotate(now);
+            }
+            if (previous.size > 0 && now - previous.startedAt >= 2 * generationMillis) {
+                // Rotations only happen as notifications arrive, after a quiet spell everything in
+                // the previous generation can be older than the TTL
+                previous.clear(previous.startedAt);
+            }
+            if (current.contains(fingerprint) || previous.contains(fingerprint)) {
+                duplicateCounter.increment();
+                return true;
+            }
+            current.add(fingerprint);
+        }
+        uniqueCounter.increment();
+        return false;
+    }
+
+
+    /**
+     * Forgets a notification recorded by {@link #isDuplicate}, so a redelivery of one that failed
+     * to process is processed again
+     *
+     * @param subscriptionId the subscription ID of the notification
+     * @param resource the resource of the notification
+     * @param changeType the change type of the notification
+     * @param resourceDataId the ID in the notification's resource data, if any
+     */
+    public void forget(final String subscriptionId, final String resource,
+            final String changeType, final String resourceDataId) {
+        final long fingerprint =
+                fingerprint(subscriptionId, resource, changeType, resourceDataId);
+        synchronized (this) {
+            current.remove(fingerprint);
+            previous.remove(fingerprint);
+        }
+    }
+
+
+    /**
+     * @return the number of fingerprints currently remembered
+     */
+    public synchronized int size() {
+        return current.size + previous.size;
+    }
+
+    private void rotate(final long now) {
+        final var expired = previous;
+        previous = current;
+        expired.clear(now);
+        current = expired;
+    }
+
+    /**
+     * @return the 64-bit fingerprint of a notification, never 0
+     */
+    static long fingerprint(final String subscriptionId, final String resource,
+            final String changeType, final String resourceDataId) {
+        // The resource data ID identifies the resource on its own, while the resource path is
+        // spelled differently depending on where it came from, like Users/{id}/Messages/{id} in a
+        // notification and me/mailfolders/inbox/messages/{id} from a delta query
+        final var key = String.join("\n", String.valueOf(subscriptionId),
+                resourceDataId == null ? String.valueOf(resource) : "",
+                String.valueOf(changeType), String.valueOf(resourceDataId));
+        final long fingerprint =
+                MurmurHash3.hash128x64(key.getBytes(StandardCharsets.UTF_8))[0];
+        // 0 marks an empty slot
+        return fingerprint == 0L ? 1L : fingerprint;
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import com.example.graphwebhook.notifications.NotificationEnvelope;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Bounded, in-process ingestion queue that decouples acknowledging a notification from processing
+ * it. The /listen endpoint only parses and enqueues the payload and a pool of worker threads does
+ * the validation, decryption, Graph calls and SocketIO emission
+ */
+@Service
+public class NotificationPipeline {
+
+    /**
+     * What to do with a payload when the ingestion queue is full
+     */
+    public enum RejectionPolicy {
+        /**
+         * Refuse the payload so /listen answers 503 and Microsoft Graph redelivers it later
+         */
+        REJECT,
+
+        /**
+         * Process the payload on the request thread, slowing the caller down
+         */
+        CALLER_RUNS,
+
+        /**
+         * Acknowledge the payload but drop it
+         */
+        DISCARD
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final NotificationProcessor processor;
+    private final RejectionPolicy rejectionPolicy;
+    private final BlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    private final Counter acceptedCounter;
+    private final Counter rejectedCounter;
+
+    public NotificationPipeline(NotificationProcessor processor, MeterRegistry meterRegistry,
+            @Value("${notifications.pipeline.queue-capacity:1000}") int queueCapacity,
+            @Value("${notifications.pipeline.workers:4}") int workers,
+            @Value("${notifications.pipeline.rejection-policy:REJECT}") RejectionPolicy rejectionPolicy) {
+        this.processor = Objects.requireNonNull(processor);
+        this.rejectionPolicy = Objects.requireNonNull(rejectionPolicy);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, queue,
+                new CustomizableThreadFactory("notification-worker-"));
+        this.executor.prestartAllCoreThreads();
+
+        Gauge.builder("notifications.pipeline.queue.depth", queue, BlockingQueue::size)
+                .description("Payloads waiting for a notification worker")
+                .register(meterRegistry);
+        Gauge.builder("notifications.pipeline.workers.active", executor,
+                ThreadPoolExecutor::getActiveCount)
+                .description("Notification workers currently processing a payload")
+                .register(meterRegistry);
+        acceptedCounter = Counter.builder("notifications.pipeline.accepted")
+                .description("Payloads accepted onto the ingestion queue")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("notifications.pipeline.rejected")
+                .description("Payloads that did not fit on the ingestion queue")
+                .tag("policy", rejectionPolicy.name())
+                .register(meterRegistry);
+
+        log.info("Notification pipeline started with {} workers and a queue of {} ({})", workers,
+                queueCapacity, rejectionPolicy);
+    }
+
+
+    /**
+     * Enqueues notifications for asynchronous processing
+     *
+     * @param notifications the parsed body received by the /listen endpoint
+     * @return true if the payload was accepted, false if it should be redelivered by Microsoft Graph
+     */
+    public boolean submit(@NonNull final NotificationEnvelope notifications) {
+        Objects.requireNonNull(notifications);
+        try {
+            executor.execute(() -> processor.processNotifications(notifications));
+            acceptedCounter.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            switch (rejectionPolicy) {
+                case CALLER_RUNS:
+                    processor.processNotifications(notifications);
+                    return true;
+                case DISCARD:
+                    log.warn("Notification queue is full, discarding payload");
+                    return true;
+                case REJECT:
+                default:
+                    log.warn("Notification queue is full, asking Microsoft Graph to redeliver");
+                    return false;
+            }
+        }
+    }
+
+
+    /**
+     * Stops accepting payloads and gives the workers a chance to drain the queue
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Dropping {} queued notification payloads on shutdown",
+                    executor.shutdownNow().size());
+        }
+    }
+}
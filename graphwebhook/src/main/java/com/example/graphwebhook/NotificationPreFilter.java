@@ -0,0 +1,107 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import com.example.graphwebhook.notifications.ChangeNotificationParser;
+import com.example.graphwebhook.notifications.NotificationEnvelope;
+import com.example.graphwebhook.notifications.NotificationItem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * Early-reject stage for the /listen endpoint. Checks the subscription ID and client state of each
+ * notification against the subscription store while the body is being parsed, so notifications
+ * that aren't for one of our subscriptions are dropped before they are queued, and before any
+ * token validation, decryption or Graph call is spent on them
+ */
+@Component
+public class NotificationPreFilter implements ChangeNotificationParser.ItemFilter {
+
+    private final SubscriptionStore subscriptionStore;
+    private final boolean enabled;
+    private final Counter passedCounter;
+    private final Counter missingCounter;
+    private final Counter unknownCounter;
+    private final Counter mismatchCounter;
+
+    public NotificationPreFilter(SubscriptionStore subscriptionStore, MeterRegistry meterRegistry,
+            @Value("${notifications.prefilter.enabled:true}") final boolean enabled) {
+        this.subscriptionStore = Objects.requireNonNull(subscriptionStore);
+        this.enabled = enabled;
+
+        passedCounter = Counter.builder("notifications.prefilter.passed")
+                .description("Notifications that matched a known subscription")
+                .register(meterRegistry);
+        missingCounter = droppedCounter(meterRegistry, "missing-subscription-id");
+        unknownCounter = droppedCounter(meterRegistry, "unknown-subscription");
+        mismatchCounter = droppedCounter(meterRegistry, "client-state-mismatch");
+    }
+
+
+    /**
+     * @param subscriptionId the subscription ID of the notification
+     * @param clientState the client state of the notification
+     * @return true if the notification is for a known subscription with a matching client state
+     */
+    @Override
+    public boolean accept(final String subscriptionId, final String clientState) {
+        if (!enabled) {
+            return true;
+        }
+
+        if (subscriptionId == null) {
+            missingCounter.increment();
+            return false;
+        }
+
+        final var subscription = subscriptionStore.getSubscription(subscriptionId);
+        if (subscription == null) {
+            unknownCounter.increment();
+            return false;
+        }
+
+        if (!subscription.clientState.equals(clientState)) {
+            mismatchCounter.increment();
+            return false;
+        }
+
+        passedCounter.increment();
+        return true;
+    }
+
+
+    /**
+     * Drops the notifications of an already parsed body that aren't for a known subscription
+     *
+     * @param notifications the parsed body of the request
+     * @return the notifications that passed the filter
+     */
+    public NotificationEnvelope filter(@NonNull final NotificationEnvelope notifications) {
+        Objects.requireNonNull(notifications);
+        if (!enabled) {
+            return notifications;
+        }
+
+        final List<NotificationItem> items = new ArrayList<>(notifications.items().size());
+        for (final var item : notifications.items()) {
+            if (accept(item.subscriptionId(), item.clientState())) {
+                items.add(item);
+            }
+        }
+        return new NotificationEnvelope(notifications.validationTokens(), items);
+    }
+
+    private static Counter droppedCounter(final MeterRegistry meterRegistry, final String reason) {
+        return Counter.builder("notifications.prefilter.dropped")
+                .description("Notifications dropped before processing")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,470 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import com.corundumstudio.socketio.AckRequest;
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.SocketIONamespace;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.listener.DataListener;
+import com.example.graphwebhook.notifications.EncryptedContent;
+import com.example.graphwebhook.notifications.NotificationEnvelope;
+import com.example.graphwebhook.notifications.NotificationItem;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.ChatMessage;
+import com.microsoft.graph.models.Message;
+import com.microsoft.kiota.serialization.JsonParseNodeFactory;
+import com.microsoft.kiota.serialization.KiotaJsonSerialization;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service responsible for processing the change notifications accepted by the /listen endpoint.
+ * This runs on the notification pipeline's worker threads, never on the request thread
+ */
+@Service
+public class NotificationProcessor {
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final JsonParseNodeFactory parseNodeFactory = new JsonParseNodeFactory();
+
+    @Autowired
+    private SubscriptionStore subscriptionStore;
+
+    @Autowired
+    private CertificateStoreService certificateStore;
+
+    @Autowired
+    private DecryptionEngine decryptionEngine;
+
+    @Autowired
+    private DecryptionPool decryptionPool;
+
+    @Autowired
+    private PayloadProjections projections;
+
+    @Autowired
+    private OAuth2AuthorizedClientService authorizedClientService;
+
+    @Autowired
+    private GraphClientHelper graphClientHelper;
+
+    @Autowired
+    private GraphResourceCache resourceCache;
+
+    @Autowired
+    private NotificationDeduplicator deduplicator;
+
+    @Autowired
+    private KeyedLaneExecutor lanes;
+
+    @Autowired
+    private TokenHelper tokenHelper;
+
+    @Autowired
+    private IdleRoomBuffer idleRooms;
+
+    private SocketIONamespace socketIONamespace;
+
+    // Replays one room at a time, so a slow lane can't tie up more than this thread
+    private final ExecutorService replayExecutor = Executors.newSingleThreadExecutor(
+            new CustomizableThreadFactory("idle-room-replay-"));
+
+    public NotificationProcessor(SocketIOServer socketIOServer) {
+        // Set up a SocketIO server namespace to broadcast
+        // incoming notifications to clients (browser)
+        socketIONamespace = socketIOServer.addNamespace("/emitNotification");
+        socketIONamespace.addEventListener("create_room", String.class, new DataListener<String>() {
+            @Override
+            public void onData(SocketIOClient client, String roomName, AckRequest ackSender)
+                    throws Exception {
+                log.info("Client {} creating room for subscription {}", client.getSessionId(),
+                        roomName);
+                client.joinRoom(roomName);
+
+                // Catch the client up off the Socket.IO thread, since queuing on a lane can block
+                replayExecutor.execute(() -> replayDeferred(roomName));
+            }
+        });
+    }
+
+
+    /**
+     * Stops replaying deferred notifications
+     */
+    @PreDestroy
+    public void shutdown() {
+        replayExecutor.shutdownNow();
+    }
+
+
+    /**
+     * Validates and processes the notifications received by the /listen endpoint
+     *
+     * @param notifications the parsed body of the request
+     */
+    public void processNotifications(@NonNull final NotificationEnvelope notifications) {
+        try {
+            // Check for validation tokens
+            boolean areTokensValid = true;
+            final List<String> validationTokens = notifications.validationTokens();
+            if (!validationTokens.isEmpty()) {
+                areTokensValid = tokenHelper.areValidationTokensValid(validationTokens);
+            }
+
+            if (areTokensValid) {
+                // Large batches of encrypted notifications are decrypted in parallel
+                final boolean parallelDecryption =
+                        decryptionPool.isParallel(countEncrypted(notifications));
+
+                for (NotificationItem notification : notifications.items()) {
+                    if (notification.subscriptionId() == null) {
+                        continue;
+                    }
+
+                    // Look up subscription in store
+                    var subscription = subscriptionStore.getSubscription(notification.subscriptionId());
+
+                    // Only process if we know about this subscription AND
+                    // the client state in the notification matches
+                    if (subscription != null
+                            && subscription.clientState.equals(notification.clientState())) {
+                        // Graph retries deliveries, skip anything we have already processed or
+                        // are processing. Notifications that fail are forgotten again
+                        if (deduplicator.isDuplicate(notification.subscriptionId(),
+                                notification.resource(), notification.changeType(),
+                                notification.resourceDataId())) {
+                            continue;
+                        }
+
+                        // Notifications for one subscription are processed in order
+                        // on the same lane, different subscriptions run in parallel
+                        try {
+                            lanes.submit(subscription.subscriptionId,
+                                    () -> forgetOnFailure(notification,
+                                            () -> processNotification(notification,
+                                                    subscription, parallelDecryption)));
+                        } catch (InterruptedException e) {
+                            forget(notification);
+                            throw e;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Nothing upstream will see this once the request has been acknowledged,
+            // so log it here rather than letting it take down the worker
+            log.error("Error processing notifications", e);
+        }
+    }
+
+
+    /**
+     * Processes a notification on its subscription's lane, unless no client is listening for it
+     *
+     * @param notification the notification
+     * @param subscription the matching subscription record
+     * @param parallelDecryption whether to decrypt on the decryption pool
+     * @return a stage that completes with the action that emits the notification, or with null if
+     *         there is nothing to emit
+     */
+    private CompletableFuture<Runnable> processNotification(
+            @NonNull final NotificationItem notification,
+            @NonNull final SubscriptionRecord subscription, final boolean parallelDecryption) {
+        // Don't decrypt or fetch anything if nobody is in the room to receive it
+        if (idleRooms.skip(subscription.subscriptionId, notification,
+                () -> hasClients(subscription.subscriptionId))) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (notification.encryptedContent() == null) {
+            // No encrypted content, this is a new message notification
+            // without resource data
+            return processNewMessageNotification(notification, subscription);
+        }
+        // With encrypted content, this is a new channel message
+        // notification with encrypted resource data
+        return processNewChannelMessageNotification(notification, subscription,
+                parallelDecryption);
+    }
+
+
+    /**
+     * Lets a redelivery of a notification through again if processing it fails
+     *
+     * @param notification the notification to process
+     * @param task processes the notification
+     * @return a copy of the stage returned by the task, which the lane may time out without
+     *         failing work shared with other notifications, like a batched Graph fetch
+     */
+    private CompletableFuture<Runnable> forgetOnFailure(
+            @NonNull final NotificationItem notification,
+            @NonNull final Supplier<CompletableFuture<Runnable>> task) {
+        CompletableFuture<Runnable> result;
+        try {
+            result = task.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        final var watched = result.copy();
+        watched.whenComplete((action, error) -> {
+            if (error != null) {
+                forget(notification);
+            }
+        });
+        return watched;
+    }
+
+
+    private void forget(@NonNull final NotificationItem notification) {
+        deduplicator.forget(notification.subscriptionId(), notification.resource(),
+                notification.changeType(), notification.resourceDataId());
+    }
+
+
+    /**
+     * Processes the notifications that were deferred while a subscription's room had no clients
+     *
+     * @param subscriptionId the subscription whose room a client joined
+     */
+    private void replayDeferred(@NonNull final String subscriptionId) {
+        final var notifications = idleRooms.drain(subscriptionId);
+        final var subscription = subscriptionStore.getSubscription(subscriptionId);
+        if (notifications.isEmpty() || subscription == null) {
+            return;
+        }
+
+        log.info("Processing {} deferred notifications for subscription {}",
+                notifications.size(), subscriptionId);
+        final boolean parallelDecryption = decryptionPool.isParallel(notifications.size());
+        try {
+            for (final var notification : notifications) {
+                // Like a live notification, one that fails is let through when redelivered
+                try {
+                    lanes.submit(subscriptionId, () -> forgetOnFailure(notification,
+                            () -> notification.encryptedContent() == null
+                                    ? processNewMessageNotification(notification, subscription)
+                                    : processNewChannelMessageNotification(notification,
+                                            subscription, parallelDecryption)));
+                } catch (InterruptedException e) {
+                    forget(notification);
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Moves the clients in one subscription's room to another's, for a subscription that was
+     * replaced, along with the notifications deferred while the room had no clients
+     *
+     * @param fromSubscriptionId the replaced subscription
+     * @param toSubscriptionId the replacement subscription
+     */
+    public void moveRoom(@NonNull final String fromSubscriptionId,
+            @NonNull final String toSubscriptionId) {
+        for (final var client : socketIONamespace.getRoomOperations(fromSubscriptionId)
+                .getClients()) {
+            client.joinRoom(toSubscriptionId);
+            client.leaveRoom(fromSubscriptionId);
+        }
+
+        idleRooms.move(fromSubscriptionId, toSubscriptionId);
+        // Moved clients don't join the room themselves, so nothing else would replay the buffer
+        if (hasClients(toSubscriptionId)) {
+            replayExecutor.execute(() -> replayDeferred(toSubscriptionId));
+        }
+    }
+
+
+    /**
+     * @param subscriptionId the subscription whose room to check
+     * @return true if at least one client is in the subscription's room
+     */
+    private boolean hasClients(@NonNull final String subscriptionId) {
+        return !socketIONamespace.getRoomOperations(subscriptionId).getClients().isEmpty();
+    }
+
+
+    /**
+     * Processes a new message notification by getting the message from Microsoft Graph
+     *
+     * @param notification the new message notification
+     * @param subscription the matching subscription record
+     * @return a stage that completes with the action that emits the message to subscribed clients
+     */
+    private CompletableFuture<Runnable> processNewMessageNotification(
+            @NonNull final NotificationItem notification,
+            @NonNull final SubscriptionRecord subscription) {
+        // Get the authorized OAuth2 client for the relevant user
+        // This allows the service to access the user's mailbox with delegated auth
+        final var oauthClient =
+                authorizedClientService.loadAuthorizedClient("graph", subscription.userId);
+
+        final var graphClient =
+                graphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
+
+        // The notification contains the relative URL to the message, repeated
+        // notifications for it are answered from the cache and GETs for the
+        // same user are batched together into Graph $batch requests
+        // Once message has been retrieved, send the information via SocketIO
+        // to subscribed clients
+        // Only the properties the client is sent are selected
+        final var resource = Objects.requireNonNull(notification.resource());
+        final var projection = projections.forResource(resource);
+        return resourceCache
+                .fetch(subscription.userId, graphClient,
+                        projection == null ? resource : projection.apply(resource))
+                .thenApply(body -> messageEmitter(subscription, projection, body));
+    }
+
+
+    /**
+     * Emits a message that was read from Graph without a change notification, like by a delta
+     * query, through the subscription's lane and room just like a notified one
+     *
+     * @param subscription the subscription the message belongs to
+     * @param projection the properties selected when reading the message, or null if the body is
+     *        the full message
+     * @param body the JSON body of the message
+     * @throws InterruptedException if interrupted waiting for room on the lane
+     */
+    public void emitMessage(@NonNull final SubscriptionRecord subscription,
+            final ResourceProjection projection, @NonNull final JsonObject body)
+            throws InterruptedException {
+        lanes.submit(subscription.subscriptionId, () -> CompletableFuture
+                .completedFuture(messageEmitter(subscription, projection, body)));
+    }
+
+
+    /**
+     * @param subscription the subscription the message belongs to
+     * @param projection the properties selected when fetching the message, or null if the body is
+     *        the full message
+     * @param body the JSON body of the message
+     * @return the action that emits the message to subscribed clients, or null if it is empty
+     */
+    private Runnable messageEmitter(@NonNull final SubscriptionRecord subscription,
+            final ResourceProjection projection, @NonNull final JsonObject body) {
+        if (projection != null) {
+            return emitter(subscription, new NewMessageNotification(projection.extract(body)));
+        }
+        final Message message;
+        try {
+            message = KiotaJsonSerialization.deserialize(body.toString(),
+                    Message::createFromDiscriminatorValue);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (message == null) {
+            return null;
+        }
+        return emitter(subscription, new NewMessageNotification(message));
+    }
+
+
+    /**
+     * Processes a new channel message notification by decrypting the included resource data
+     *
+     * @param notification the new channel message notification
+     * @param subscription the matching subscription record
+     * @param parallel whether to decrypt on the decryption pool instead of the calling lane
+     * @return a stage that completes with the action that emits the message to subscribed clients
+     */
+    private CompletableFuture<Runnable> processNewChannelMessageNotification(
+            @NonNull final NotificationItem notification,
+            @NonNull final SubscriptionRecord subscription, final boolean parallel) {
+        if (parallel) {
+            return decryptionPool.submit(() -> decryptChannelMessage(notification, subscription));
+        }
+        return CompletableFuture.completedFuture(decryptChannelMessage(notification, subscription));
+    }
+
+
+    /**
+     * @param notification the new channel message notification
+     * @param subscription the matching subscription record
+     * @return the action that emits the message to subscribed clients, or null if the content
+     *         couldn't be validated or decrypted
+     */
+    private Runnable decryptChannelMessage(@NonNull final NotificationItem notification,
+            @NonNull final SubscriptionRecord subscription) {
+        // Decrypt the encrypted key from the notification
+        final EncryptedContent encryptedContent =
+                Objects.requireNonNull(notification.encryptedContent());
+        final var decryptedKey = Objects.requireNonNull(certificateStore.getEncryptionKey(
+                Objects.requireNonNull(encryptedContent.dataKey()),
+                encryptedContent.encryptionCertificateId(),
+                encryptedContent.encryptionCertificateThumbprint()));
+
+        try {
+            // Validate the signature, decrypt the data using the decrypted key
+            // and read the fields clients need from the decrypted JSON
+            final var projection = projections.chatMessage();
+            final NewChatMessageNotification payload = decryptionEngine.decrypt(decryptedKey,
+                    Objects.requireNonNull(encryptedContent.data()),
+                    Objects.requireNonNull(encryptedContent.dataSignature()),
+                    content -> projection != null
+                            ? new NewChatMessageNotification(projection.extract(content))
+                            // Deserialize the full ChatMessage model
+                            : new NewChatMessageNotification(parseNodeFactory
+                                    .getParseNode(JSON_CONTENT_TYPE, content)
+                                    .getObjectValue(ChatMessage::createFromDiscriminatorValue)));
+            if (payload == null) {
+                return null;
+            }
+            // Send the information to subscribed clients
+            return emitter(subscription, payload);
+        } finally {
+            // The key is our own copy, don't leave it in memory
+            Arrays.fill(decryptedKey, (byte) 0);
+        }
+    }
+
+
+    private static int countEncrypted(final NotificationEnvelope notifications) {
+        int count = 0;
+        for (final var notification : notifications.items()) {
+            if (notification.encryptedContent() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * @param subscription the subscription whose room receives the event
+     * @param payload the event payload
+     * @return an action that sends the payload to the clients subscribed to the subscription
+     */
+    private Runnable emitter(@NonNull final SubscriptionRecord subscription,
+            @NonNull final Object payload) {
+        return () -> socketIONamespace.getRoomOperations(subscription.subscriptionId)
+                .sendEvent("notificationReceived", payload);
+    }
+}
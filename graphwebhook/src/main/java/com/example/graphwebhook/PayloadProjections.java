@@ -0,0 +1,87 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import com.example.graphwebhook.notifications.JsonProjection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * The fields read for each resource type, both the JSON paths extracted from decrypted resource
+ * data and the properties selected when a resource is fetched from Graph. Only these fields are
+ * read instead of deserializing the full Kiota model, and adding one to the configuration adds it
+ * to the notification sent to clients
+ */
+@Component
+public class PayloadProjections {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final JsonProjection chatMessage;
+    private final Map<String, ResourceProjection> fetched;
+
+    public PayloadProjections(
+            @Value("${notifications.projection.enabled:true}") final boolean enabled,
+            @Value("${notifications.projection.chat-message:}") final List<String> chatMessagePaths,
+            @Value("${notifications.projection.message.select:}") final List<String> messageSelect,
+            @Value("${notifications.projection.message.expand:}") final List<String> messageExpand) {
+        if (enabled) {
+            // The sender and body are always sent to clients
+            final List<String> paths = new ArrayList<>(List.of(
+                    NewChatMessageNotification.SENDER_PATH, NewChatMessageNotification.BODY_PATH));
+            paths.addAll(chatMessagePaths);
+            this.chatMessage = JsonProjection.of(paths);
+            log.info("Projecting chatMessage payloads to {}", chatMessage.paths());
+
+            // The subject and ID are always sent to clients
+            final List<String> select = new ArrayList<>(
+                    List.of(NewMessageNotification.ID_PROPERTY, NewMessageNotification.SUBJECT_PROPERTY));
+            select.addAll(messageSelect);
+            final var message = new ResourceProjection(select, messageExpand);
+            log.info("Fetching messages with {}", message.apply(""));
+
+            // Keyed by the collection the resource is in
+            this.fetched = Map.of("messages", message);
+        } else {
+            this.chatMessage = null;
+            this.fetched = Map.of();
+        }
+    }
+
+
+    /**
+     * @return the projection for chatMessage resource data, or null to parse the full model
+     */
+    public JsonProjection chatMessage() {
+        return chatMessage;
+    }
+
+
+    /**
+     * @param resourcePath the resource path from a notification, for example
+     *        Users/{user-id}/Messages/{message-id}
+     * @return the projection for the type of the resource, or null to fetch every property
+     */
+    public ResourceProjection forResource(@NonNull final String resourcePath) {
+        Objects.requireNonNull(resourcePath);
+        if (fetched.isEmpty()) {
+            return null;
+        }
+        // The collection is the segment before the ID
+        final int end = resourcePath.lastIndexOf('/');
+        if (end <= 0) {
+            return null;
+        }
+        final int start = resourcePath.lastIndexOf('/', end - 1) + 1;
+        return fetched.get(resourcePath.substring(start, end).toLowerCase(Locale.ROOT));
+    }
+}
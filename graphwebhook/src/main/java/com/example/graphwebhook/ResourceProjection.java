@@ -0,0 +1,87 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import com.google.gson.JsonObject;
+import org.springframework.lang.NonNull;
+
+/**
+ * The properties fetched from Microsoft Graph for one resource type. The same projection adds
+ * $select and $expand to the resource GET and reads the fields of the payload sent to clients, so
+ * Graph only returns what is used
+ *
+ * @param select the properties to $select
+ * @param expand the navigation properties to $expand
+ */
+public record ResourceProjection(List<String> select, List<String> expand) {
+
+    public ResourceProjection {
+        select = select == null ? List.of() : select.stream().distinct().toList();
+        expand = expand == null ? List.of() : expand.stream().distinct().toList();
+    }
+
+
+    /**
+     * @param resourcePath the resource path from a notification
+     * @return the resource path with the $select and $expand query options
+     */
+    public String apply(@NonNull final String resourcePath) {
+        Objects.requireNonNull(resourcePath);
+        final var query = new StringBuilder();
+        appendOption(query, "$select", select);
+        appendOption(query, "$expand", expand);
+        if (query.length() == 0) {
+            return resourcePath;
+        }
+        return resourcePath + (resourcePath.contains("?") ? "&" : "?") + query;
+    }
+
+
+    /**
+     * @param resource the JSON body of the resource
+     * @return the selected and expanded properties, keyed by name. Scalars are kept as strings,
+     *         objects and arrays as JSON, and missing or null properties are left out
+     */
+    public Map<String, String> extract(@NonNull final JsonObject resource) {
+        Objects.requireNonNull(resource);
+        final Map<String, String> fields = new LinkedHashMap<>();
+        addFields(fields, resource, select);
+        addFields(fields, resource, expand);
+        return fields;
+    }
+
+    private static void addFields(final Map<String, String> fields, final JsonObject resource,
+            final List<String> properties) {
+        for (final var property : properties) {
+            // Strip nested query options, like attachments($select=name)
+            final int options = property.indexOf('(');
+            final var name = options < 0 ? property : property.substring(0, options);
+            final var value = resource.get(name);
+            if (value == null || value.isJsonNull()) {
+                continue;
+            }
+            fields.put(name, value.isJsonPrimitive() ? value.getAsString() : value.toString());
+        }
+    }
+
+    private static void appendOption(final StringBuilder query, final String option,
+            final List<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (query.length() > 0) {
+            query.append('&');
+        }
+        query.append(option).append('=').append(values.stream()
+                .map(value -> URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20"))
+                .collect(Collectors.joining(",")));
+    }
+}
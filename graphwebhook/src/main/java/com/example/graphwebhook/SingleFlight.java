@@ -0,0 +1,78 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.springframework.lang.NonNull;
+
+/**
+ * Registry of asynchronous calls in flight, so callers asking for the same key while a call is
+ * running share its result instead of making their own. A key is forgotten as soon as its call
+ * completes, results are never cached.
+ * <p>
+ * Each caller gets its own copy of the shared future, cancelling or completing it doesn't affect
+ * the others
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder collapsed = new LongAdder();
+
+    /**
+     * Joins the call in flight for a key, or starts one
+     *
+     * @param key identifies the call
+     * @param call starts the call, only invoked if none is in flight for the key
+     * @return a future completed with the result of the call
+     */
+    public CompletableFuture<V> execute(@NonNull final K key,
+            @NonNull final Supplier<CompletableFuture<V>> call) {
+        Objects.requireNonNull(call);
+        final var shared = new CompletableFuture<V>();
+        final var existing = inFlight.putIfAbsent(Objects.requireNonNull(key), shared);
+        if (existing != null) {
+            collapsed.increment();
+            return existing.copy();
+        }
+
+        try {
+            call.get().whenComplete((result, error) -> {
+                // Forgotten first so callers arriving from now on start a new call
+                inFlight.remove(key, shared);
+                if (error != null) {
+                    shared.completeExceptionally(error);
+                } else {
+                    shared.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, shared);
+            shared.completeExceptionally(e);
+        }
+        return shared.copy();
+    }
+
+
+    /**
+     * @return the number of calls in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+
+    /**
+     * @return the number of callers that joined a call in flight instead of starting one
+     */
+    public long collapsed() {
+        return collapsed.sum();
+    }
+}
@@ -13,16 +13,24 @@ import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 
 /**
  * An implementation of IAuthenticationProvider that uses Spring's OAuth2AuthorizedClient to get
- * access tokens
+ * access tokens. The authorized client can be swapped when its token is refreshed, so the provider
+ * can live as long as the cached Graph client it belongs to
  */
 public class SpringOAuth2AuthProvider implements AuthenticationProvider {
 
-    private OAuth2AuthorizedClient oauthClient;
+    private volatile OAuth2AuthorizedClient oauthClient;
 
     public SpringOAuth2AuthProvider(@NonNull OAuth2AuthorizedClient oauthClient) {
         this.oauthClient = Objects.requireNonNull(oauthClient);
     }
 
+    /**
+     * @param oauthClient the authorized client to get access tokens from
+     */
+    public void setAuthorizedClient(@NonNull OAuth2AuthorizedClient oauthClient) {
+        this.oauthClient = Objects.requireNonNull(oauthClient);
+    }
+
     @Override
     public void authenticateRequest(RequestInformation request,
             Map<String, Object> additionalAuthenticationContext) {
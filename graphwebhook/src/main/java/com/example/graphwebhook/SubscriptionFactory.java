@@ -0,0 +1,60 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.time.OffsetDateTime;
+import java.util.Objects;
+import com.microsoft.graph.models.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the subscription requests sent to Microsoft Graph, both for new subscriptions and for
+ * re-creating one Graph removed. Every subscription is for created changes, delivers lifecycle
+ * notifications to the same /listen endpoint, and starts with the longest lifetime its resource
+ * type allows
+ */
+@Component
+public class SubscriptionFactory {
+
+    private final CertificateStoreService certificateStore;
+    private final String notificationHost;
+
+    public SubscriptionFactory(CertificateStoreService certificateStore,
+            @Value("${notifications.host}") final String notificationHost) {
+        this.certificateStore = Objects.requireNonNull(certificateStore);
+        this.notificationHost = Objects.requireNonNull(notificationHost);
+    }
+
+
+    /**
+     * @param resource the resource to subscribe to
+     * @param clientState the client state Graph sends with every notification
+     * @param includeResourceData whether notifications include encrypted resource data
+     * @return the request to POST to /subscriptions
+     */
+    public Subscription newSubscription(@NonNull final String resource,
+            @NonNull final String clientState, final boolean includeResourceData) {
+        final var subscriptionRequest = new Subscription();
+        subscriptionRequest.setChangeType("created");
+        subscriptionRequest.setNotificationUrl(notificationHost + "/listen");
+        subscriptionRequest.setLifecycleNotificationUrl(notificationHost + "/listen");
+        subscriptionRequest.setResource(Objects.requireNonNull(resource));
+        subscriptionRequest.setClientState(Objects.requireNonNull(clientState));
+        subscriptionRequest.setIncludeResourceData(includeResourceData);
+        // Start with the longest lifetime allowed, the renewal scheduler extends it from there
+        subscriptionRequest.setExpirationDateTime(
+                OffsetDateTime.now().plus(SubscriptionLifetimes.maxLifetime(resource)));
+
+        if (includeResourceData) {
+            // Read the certificate once so the ID matches the certificate across a reload
+            final var certificate =
+                    Objects.requireNonNull(certificateStore.getActiveCertificate());
+            subscriptionRequest.setEncryptionCertificate(certificate.base64EncodedCertificate());
+            subscriptionRequest.setEncryptionCertificateId(certificate.id());
+        }
+        return subscriptionRequest;
+    }
+}
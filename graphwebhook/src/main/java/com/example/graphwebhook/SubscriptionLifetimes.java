@@ -0,0 +1,69 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The longest expiration Microsoft Graph allows for subscriptions on each resource type. See
+ * https://learn.microsoft.com/graph/api/resources/subscription#subscription-lifetime
+ */
+public final class SubscriptionLifetimes {
+
+    /**
+     * Kept off every maximum so clock skew between the app and Graph can't push a new expiration
+     * past what Graph accepts
+     */
+    private static final Duration MARGIN = Duration.ofMinutes(1);
+
+    /**
+     * Used for resources not matched below, every resource type allows at least this
+     */
+    private static final Duration DEFAULT_LIFETIME = Duration.ofMinutes(60);
+
+    private record Rule(Pattern resource, Duration lifetime) {
+    }
+
+    // The first match wins, so more specific resources come first
+    private static final List<Rule> RULES = List.of(
+            // Past an hour Teams requires a lifecycle notification URL, which every
+            // subscription from SubscriptionFactory has
+            rule("(^|/)(teams|chats|channels)(/|$)|getallmessages", Duration.ofMinutes(4320)),
+            rule("(^|/)communications/presences", Duration.ofMinutes(60)),
+            rule("(^|/)(messages|events|contacts|mailfolders)(/|$)", Duration.ofMinutes(10080)),
+            rule("(^|/)todo/lists", Duration.ofMinutes(10080)),
+            rule("(^|/)security/alerts", Duration.ofMinutes(43200)),
+            rule("(^|/)(drives?|root|lists)(/|$)", Duration.ofMinutes(42300)),
+            rule("^/?(users|groups)(/|$)", Duration.ofMinutes(41760)));
+
+    private SubscriptionLifetimes() {
+    }
+
+
+    /**
+     * Outlook messages, events and contacts with resource data in the notification only allow a
+     * day, this app subscribes to messages without it
+     *
+     * @param resource the resource the subscription watches, or null if it isn't known
+     * @return how long past now the subscription's expiration can be set
+     */
+    public static Duration maxLifetime(final String resource) {
+        if (resource != null) {
+            final var path = resource.toLowerCase(Locale.ROOT);
+            for (final var rule : RULES) {
+                if (rule.resource().matcher(path).find()) {
+                    return rule.lifetime().minus(MARGIN);
+                }
+            }
+        }
+        return DEFAULT_LIFETIME.minus(MARGIN);
+    }
+
+    private static Rule rule(final String resource, final Duration lifetime) {
+        return new Rule(Pattern.compile(resource), lifetime);
+    }
+}
@@ -3,7 +3,10 @@
 
 package com.example.graphwebhook;
 
+import java.time.OffsetDateTime;
+import com.microsoft.graph.models.Subscription;
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
 import org.springframework.lang.NonNull;
 
 /**
@@ -11,6 +14,8 @@ import org.springframework.lang.NonNull;
  */
 public class SubscriptionRecord {
 
+    private static final String APP_ONLY = "APP-ONLY";
+
     /**
      * The subscription ID returned by Microsoft Graph when the subscription is created
      */
@@ -28,10 +33,65 @@ public class SubscriptionRecord {
      */
     public final @Nonnull String clientState;
 
+    /**
+     * The resource the subscription watches, or null if it wasn't recorded
+     */
+    public final @Nullable String resource;
+
+    /**
+     * When the subscription expires unless it is renewed, or null if it wasn't recorded
+     */
+    public final @Nullable OffsetDateTime expirationDateTime;
+
+    /**
+     * Whether notifications include encrypted resource data
+     */
+    public final boolean includeResourceData;
+
     public SubscriptionRecord(@Nonnull final String subscriptionId, @Nonnull final String userId,
             @NonNull final String clientState) {
+        this(subscriptionId, userId, clientState, null, null, false);
+    }
+
+    public SubscriptionRecord(@Nonnull final String subscriptionId, @Nonnull final String userId,
+            @NonNull final String clientState, @Nullable final String resource,
+            @Nullable final OffsetDateTime expirationDateTime, final boolean includeResourceData) {
         this.subscriptionId = subscriptionId;
         this.userId = userId;
         this.clientState = clientState;
+        this.resource = resource;
+        this.expirationDateTime = expirationDateTime;
+        this.includeResourceData = includeResourceData;
+    }
+
+
+    /**
+     * @param subscription the subscription returned by Microsoft Graph
+     * @param userId the user's ID
+     * @return a record of the subscription
+     */
+    public static SubscriptionRecord of(@NonNull @Nonnull final Subscription subscription,
+            @NonNull final String userId) {
+        return new SubscriptionRecord(subscription.getId(), userId, subscription.getClientState(),
+                subscription.getResource(), subscription.getExpirationDateTime(),
+                Boolean.TRUE.equals(subscription.getIncludeResourceData()));
+    }
+
+
+    /**
+     * @param newExpirationDateTime the expiration after a renewal
+     * @return a copy of this record with the new expiration
+     */
+    public SubscriptionRecord withExpiration(@Nullable final OffsetDateTime newExpirationDateTime) {
+        return new SubscriptionRecord(subscriptionId, userId, clientState, resource,
+                newExpirationDateTime, includeResourceData);
+    }
+
+
+    /**
+     * @return the OAuth2 client registration used for this subscription's Graph requests
+     */
+    public String getRegistrationId() {
+        return APP_ONLY.equals(userId) ? "apponly" : "graph";
     }
 }
@@ -0,0 +1,374 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.Subscription;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Renews subscriptions before they expire. Every subscription in the {@link SubscriptionStore} has
+ * one deadline in a {@link HashedTimingWheel}, a little before its expiration minus a random
+ * jitter so subscriptions created together don't all renew together. Due renewals are PATCHed
+ * through the {@link GraphBatchFetcher}, which groups them per principal into $batch requests, and
+ * each renewal extends the subscription by the longest lifetime its resource type allows. Tokens
+ * come from {@link GraphClientHelper#getGraphClient(String, String)}, so no request is needed.
+ * <p>
+ * The wheel only holds subscription IDs and deadlines. When a deadline comes up the current record
+ * is read from the store, so deleted subscriptions simply drop out and replaced ones are
+ * rescheduled
+ */
+@Component
+public class SubscriptionRenewalScheduler {
+
+    /**
+     * A deadline in the wheel. Only the latest deadline for a subscription is acted on
+     */
+    private record Renewal(String subscriptionId, long deadline) {
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Clock clock;
+    private final SubscriptionStore subscriptionStore;
+    private final GraphClientHelper graphClientHelper;
+    private final GraphBatchFetcher batchFetcher;
+    private final boolean enabled;
+    private final long tickMillis;
+    private final long renewBeforeMillis;
+    private final double jitterRatio;
+    private final long retryDelayMillis;
+    private final int maxInFlight;
+    private final HashedTimingWheel<Renewal> wheel;
+    private final ScheduledExecutorService ticker;
+
+    // The deadline each subscription is currently scheduled for, older wheel entries are stale.
+    // A subscription has no entry while its renewal is out
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Counter renewedCounter;
+    private final Counter failedCounter;
+    private final Counter removedCounter;
+
+    @Autowired
+    public SubscriptionRenewalScheduler(SubscriptionStore subscriptionStore,
+            GraphClientHelper graphClientHelper, GraphBatchFetcher batchFetcher,
+            MeterRegistry meterRegistry,
+            @Value("${subscriptions.renewal.enabled:true}") final boolean enabled,
+            @Value("${subscriptions.renewal.tick:1s}") final Duration tick,
+            @Value("${subscriptions.renewal.wheel-size:4096}") final int wheelSize,
+            @Value("${subscriptions.renewal.renew-before:5m}") final Duration renewBefore,
+            @Value("${subscriptions.renewal.jitter-ratio:0.1}") final double jitterRatio,
+            @Value("${subscriptions.renewal.retry-delay:1m}") final Duration retryDelay,
+            @Value("${subscriptions.renewal.max-in-flight:1000}") final int maxInFlight) {
+        this(subscriptionStore, graphClientHelper, batchFetcher, meterRegistry, enabled, tick,
+                wheelSize, renewBefore, jitterRatio, retryDelay, maxInFlight, Clock.systemUTC());
+    }
+
+    SubscriptionRenewalScheduler(final SubscriptionStore subscriptionStore,
+            final GraphClientHelper graphClientHelper, final GraphBatchFetcher batchFetcher,
+            final MeterRegistry meterRegistry, final boolean enabled, final Duration tick,
+            final int wheelSize, final Duration renewBefore, final double jitterRatio,
+            final Duration retryDelay, final int maxInFlight, final Clock clock) {
+        this.clock = Objects.requireNonNull(clock);
+        this.subscriptionStore = Objects.requireNonNull(subscriptionStore);
+        this.graphClientHelper = Objects.requireNonNull(graphClientHelper);
+        this.batchFetcher = Objects.requireNonNull(batchFetcher);
+        this.enabled = enabled;
+        this.tickMillis = tick.toMillis();
+        this.renewBeforeMillis = renewBefore.toMillis();
+        this.jitterRatio = Math.max(0.0, Math.min(jitterRatio, 0.5));
+        this.retryDelayMillis = retryDelay.toMillis();
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.wheel = new HashedTimingWheel<>(tickMillis, wheelSize, clock.millis());
+        this.ticker = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("subscription-renewal-"));
+
+        Gauge.builder("subscriptions.renewal.scheduled", wheel, HashedTimingWheel::size)
+                .description("Renewal deadlines waiting in the timing wheel")
+                .register(meterRegistry);
+        Gauge.builder("subscriptions.renewal.in-flight", inFlight, AtomicInteger::get)
+                .description("Subscription renewals sent to Graph and not yet answered")
+                .register(meterRegistry);
+        renewedCounter = Counter.builder("subscriptions.renewal.renewed")
+                .description("Subscriptions renewed")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("subscriptions.renewal.failed")
+                .description("Subscription renewals that failed and were retried")
+                .register(meterRegistry);
+        removedCounter = Counter.builder("subscriptions.renewal.removed")
+                .description("Subscriptions removed from the store because Graph no longer has them")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * Schedules every subscription already in the store and starts the wheel
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            log.info("Subscription renewal is disabled");
+            return;
+        }
+        final var records = subscriptionStore.getAllSubscriptions();
+        for (final var record : records) {
+            schedule(record);
+        }
+        log.info("Scheduled renewal for {} subscriptions", records.size());
+        ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stops the wheel. Renewals already sent still complete
+     */
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+
+    /**
+     * Schedules the renewal of a subscription, replacing any earlier schedule for it. Records
+     * without an expiration are renewed right away
+     *
+     * @param record the subscription to renew
+     */
+    public void schedule(@NonNull final SubscriptionRecord record) {
+        Objects.requireNonNull(record);
+        if (!enabled) {
+            return;
+        }
+        final long now = clock.millis();
+        long deadline = now;
+        if (record.expirationDateTime != null) {
+            final long expiresAt = record.expirationDateTime.toInstant().toEpochMilli();
+            final long lifetime = Math.max(0, expiresAt - now);
+            final long jitter = (long) (lifetime * jitterRatio);
+            deadline = expiresAt - Math.min(renewBeforeMillis, lifetime / 2)
+                    - (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0);
+        }
+        scheduleAt(record.subscriptionId, Math.max(now, deadline));
+    }
+
+    /**
+     * @param subscriptionId the subscription
+     * @return the time its renewal is due in epoch milliseconds, or null if it isn't scheduled,
+     *         like while its renewal is out
+     */
+    Long getDeadline(@NonNull final String subscriptionId) {
+        return deadlines.get(subscriptionId);
+    }
+
+    private void scheduleAt(final String subscriptionId, final long deadline) {
+        deadlines.put(subscriptionId, deadline);
+        wheel.schedule(new Renewal(subscriptionId, deadline), deadline);
+    }
+
+    /**
+     * Renews the subscriptions that are due
+     */
+    void tick() {
+        try {
+            final long now = clock.millis();
+            final var due = wheel.advance(now);
+            if (due.isEmpty()) {
+                return;
+            }
+
+            // Group by principal so each needs only one authorized client lookup
+            final Map<String, List<SubscriptionRecord>> byUser = new HashMap<>();
+            for (final var renewal : due) {
+                // Claiming the deadline skips entries that were rescheduled since
+                if (!deadlines.remove(renewal.subscriptionId(), renewal.deadline())) {
+                    continue;
+                }
+                final var record = subscriptionStore.getSubscription(renewal.subscriptionId());
+                if (record == null) {
+                    continue;
+                }
+                if (inFlight.get() >= maxInFlight) {
+                    // Spread the overflow over the next ticks instead of piling onto Graph
+                    scheduleAt(record.subscriptionId, now + tickMillis);
+                    continue;
+                }
+                inFlight.incrementAndGet();
+                byUser.computeIfAbsent(record.userId, key -> new ArrayList<>()).add(record);
+            }
+
+            byUser.forEach(this::renew);
+        } catch (RuntimeException e) {
+            // Keep the ticker alive
+            log.error("Error renewing subscriptions", e);
+        }
+    }
+
+    /**
+     * Renews a subscription right away on the calling thread, bypassing the wheel and the batcher.
+     * Renewing also reauthorizes the subscription
+     *
+     * @param record the subscription to renew
+     * @return true if Graph renewed the subscription
+     */
+    public boolean renewNow(@NonNull final SubscriptionRecord record) {
+        Objects.requireNonNull(record);
+        final GraphServiceClient graphClient;
+        try {
+            graphClient = graphClientHelper.getGraphClient(record.getRegistrationId(),
+                    record.userId);
+        } catch (RuntimeException e) {
+            log.warn("Could not authorize renewal of {}: {}", record.subscriptionId,
+                    e.getMessage());
+            retry(record);
+            return false;
+        }
+        if (graphClient == null) {
+            log.warn("No authorized client to renew subscription {}", record.subscriptionId);
+            retry(record);
+            return false;
+        }
+
+        final var expiration = OffsetDateTime.now(clock.withZone(ZoneOffset.UTC))
+                .plus(SubscriptionLifetimes.maxLifetime(record.resource));
+        final var request = new Subscription();
+        request.setExpirationDateTime(expiration);
+        try {
+            final var renewed =
+                    graphClient.subscriptions().bySubscriptionId(record.subscriptionId).patch(request);
+            onRenewed(record, renewed == null || renewed.getExpirationDateTime() == null
+                    ? expiration
+                    : renewed.getExpirationDateTime());
+            return true;
+        } catch (RuntimeException e) {
+            onFailed(record, e);
+            return false;
+        }
+    }
+
+    private void renew(final String userId, final List<SubscriptionRecord> records) {
+        final GraphServiceClient graphClient;
+        try {
+            // Records for the same user all use the same registration
+            graphClient = graphClientHelper.getGraphClient(records.get(0).getRegistrationId(),
+                    userId);
+        } catch (RuntimeException e) {
+            log.warn("Could not authorize renewals for {}: {}", userId, e.getMessage());
+            inFlight.addAndGet(-records.size());
+            records.forEach(this::retry);
+            return;
+        }
+        if (graphClient == null) {
+            // The user's authorized client is gone, for example after a restart with the
+            // in-memory client service, so there is no token to renew with
+            log.warn("No authorized client to renew {} subscriptions for {}", records.size(),
+                    userId);
+            inFlight.addAndGet(-records.size());
+            records.forEach(this::retry);
+            return;
+        }
+
+        for (final var record : records) {
+            final var expiration = OffsetDateTime.now(clock.withZone(ZoneOffset.UTC))
+                    .plus(SubscriptionLifetimes.maxLifetime(record.resource));
+            final var body = new JsonObject();
+            body.addProperty("expirationDateTime",
+                    DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(expiration));
+
+            batchFetcher.patch(userId, graphClient, "/subscriptions/" + record.subscriptionId, body)
+                    .whenComplete((response, error) -> {
+                        inFlight.decrementAndGet();
+                        if (error == null) {
+                            onRenewed(record, getExpiration(response, expiration));
+                        } else {
+                            onFailed(record, error);
+                        }
+                    });
+        }
+    }
+
+    private void onRenewed(final SubscriptionRecord record, final OffsetDateTime expiration) {
+        renewedCounter.increment();
+        // Only update the record if it wasn't deleted or replaced while the renewal was out
+        final var current = subscriptionStore.getSubscription(record.subscriptionId);
+        if (current != record) {
+            if (current != null) {
+                schedule(current);
+            }
+            return;
+        }
+        final var renewed = record.withExpiration(expiration);
+        subscriptionStore.addRecord(renewed);
+        schedule(renewed);
+        log.debug("Renewed subscription {} until {}", record.subscriptionId, expiration);
+    }
+
+    private void onFailed(final SubscriptionRecord record, final Throwable error) {
+        final var cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+        if (cause instanceof ApiException apiException
+                && apiException.getResponseStatusCode() == 404) {
+            // Graph already deleted it, most likely because it expired
+            removedCounter.increment();
+            log.info("Subscription {} no longer exists, removing it", record.subscriptionId);
+            subscriptionStore.deleteSubscription(record.subscriptionId);
+            return;
+        }
+        failedCounter.increment();
+        log.warn("Error renewing subscription {}: {}", record.subscriptionId, cause.getMessage());
+        retry(record);
+    }
+
+    private void retry(final SubscriptionRecord record) {
+        // Graph answers 404 once the subscription has expired, which ends the retries
+        if (subscriptionStore.getSubscription(record.subscriptionId) != null) {
+            scheduleAt(record.subscriptionId, clock.millis() + retryDelayMillis);
+        }
+    }
+
+    private static OffsetDateTime getExpiration(final JsonObject response,
+            final OffsetDateTime requested) {
+        final var value = response.get("expirationDateTime");
+        if (value != null && value.isJsonPrimitive()) {
+            try {
+                return OffsetDateTime.parse(value.getAsString());
+            } catch (DateTimeParseException e) {
+                // Fall back to what was asked for
+            }
+        }
+        return requested;
+    }
+}
@@ -0,0 +1,70 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.util.List;
+import com.microsoft.graph.models.Subscription;
+import jakarta.annotation.Nonnull;
+import org.springframework.lang.NonNull;
+
+/**
+ * Records all subscriptions created by the application. The implementation is selected with the
+ * subscriptions.store.type property
+ */
+public interface SubscriptionStore {
+
+    /**
+     * Adds a subscription to the store
+     *
+     * @param subscription the subscription to add
+     * @param userId the user's ID
+     */
+    void addSubscription(@NonNull @Nonnull Subscription subscription, @NonNull String userId);
+
+
+    /**
+     * Adds or replaces a subscription record
+     *
+     * @param newRecord the record to add
+     */
+    void addRecord(@NonNull SubscriptionRecord newRecord);
+
+
+    /**
+     * Get a subscription by ID. This is called for every incoming notification and must not block
+     *
+     * @param id the ID of the subscription
+     * @return the subscription with the matching ID
+     */
+    SubscriptionRecord getSubscription(@NonNull String id);
+
+
+    /**
+     * Delete a subscription
+     *
+     * @param id the ID of the subscription
+     */
+    void deleteSubscription(@NonNull String id);
+
+
+    /**
+     * Get all subscriptions for a given user ID
+     *
+     * @param userId The user ID to match
+     * @return A list of subscriptions with the specified user ID
+     */
+    List<SubscriptionRecord> getSubscriptionsForUser(@NonNull String userId);
+
+
+    /**
+     * @return all subscriptions in the store
+     */
+    List<SubscriptionRecord> getAllSubscriptions();
+
+
+    /**
+     * @return the number of subscriptions in the store
+     */
+    int size();
+}
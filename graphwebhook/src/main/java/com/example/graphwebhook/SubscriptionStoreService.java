@@ -4,23 +4,32 @@
 package com.example.graphwebhook;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import com.microsoft.graph.models.Subscription;
 import jakarta.annotation.Nonnull;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Service;
 
 /**
  * Service responsible for recording all subscriptions created by the application This
- * implementation is in-memory, so all records are lost if the app is restarted
+ * implementation is in-memory, so all records are lost if the app is restarted. Lookups by
+ * subscription ID never lock, and an index from user ID to subscription IDs keeps per-user lookups
+ * proportional to that user's subscriptions
  */
 @Service
-public class SubscriptionStoreService {
+@ConditionalOnProperty(name = "subscriptions.store.type", havingValue = "memory",
+        matchIfMissing = true)
+public class SubscriptionStoreService implements SubscriptionStore {
 
-    private static Map<String, SubscriptionRecord> subscriptions = new HashMap<>();
+    private final ConcurrentHashMap<String, SubscriptionRecord> subscriptions =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Set<String>> subscriptionsByUser =
+            new ConcurrentHashMap<>();
 
 
     /**
@@ -29,11 +38,35 @@ public class SubscriptionStoreService {
      * @param subscription the subscription to add
      * @param userId the user's ID
      */
+    @Override
     public void addSubscription(@NonNull @Nonnull final Subscription subscription,
             @NonNull final String userId) {
-        var newRecord = new SubscriptionRecord(subscription.getId(), Objects.requireNonNull(userId),
-                Objects.requireNonNull(subscription.getClientState()));
-        subscriptions.put(subscription.getId(), newRecord);
+        Objects.requireNonNull(subscription.getClientState());
+        addRecord(SubscriptionRecord.of(subscription, Objects.requireNonNull(userId)));
+    }
+
+
+    /**
+     * Adds or replaces a subscription record
+     *
+     * @param newRecord the record to add
+     */
+    @Override
+    public void addRecord(@NonNull final SubscriptionRecord newRecord) {
+        Objects.requireNonNull(newRecord);
+        // compute() serializes all changes to the same subscription ID, which keeps
+        // the user index consistent with the primary map
+        subscriptions.compute(newRecord.subscriptionId, (id, existing) -> {
+            if (existing != null && !existing.userId.equals(newRecord.userId)) {
+                unindex(existing.userId, id);
+            }
+            subscriptionsByUser.compute(newRecord.userId, (user, ids) -> {
+                final Set<String> userIds = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+                userIds.add(id);
+                return userIds;
+            });
+            return newRecord;
+        });
     }
 
 
@@ -43,6 +76,7 @@ public class SubscriptionStoreService {
      * @param id the ID of the subscription
      * @return the subscription with the matching ID
      */
+    @Override
     public SubscriptionRecord getSubscription(@NonNull final String id) {
         return subscriptions.get(Objects.requireNonNull(id));
     }
@@ -53,8 +87,12 @@ public class SubscriptionStoreService {
      *
      * @param id the ID of the subscription
      */
+    @Override
     public void deleteSubscription(@NonNull final String id) {
-        subscriptions.remove(Objects.requireNonNull(id));
+        subscriptions.computeIfPresent(Objects.requireNonNull(id), (key, existing) -> {
+            unindex(existing.userId, key);
+            return null;
+        });
     }
 
 
@@ -64,15 +102,46 @@ public class SubscriptionStoreService {
      * @param userId The user ID to match
      * @return A list of subscriptions with the specified user ID
      */
+    @Override
     public List<SubscriptionRecord> getSubscriptionsForUser(@NonNull final String userId) {
         final List<SubscriptionRecord> userSubscriptions = new ArrayList<>();
 
-        subscriptions.forEach((id, subscription) -> {
-            if (subscription.userId.equals(userId)) {
-                userSubscriptions.add(subscription);
+        final var ids = subscriptionsByUser.get(Objects.requireNonNull(userId));
+        if (ids != null) {
+            for (final String id : ids) {
+                final var subscription = subscriptions.get(id);
+                // Skip records deleted or moved to another user since we read the index
+                if (subscription != null && subscription.userId.equals(userId)) {
+                    userSubscriptions.add(subscription);
+                }
             }
-        });
+        }
 
         return userSubscriptions;
     }
+
+
+    /**
+     * @return all subscriptions in the store
+     */
+    @Override
+    public List<SubscriptionRecord> getAllSubscriptions() {
+        return new ArrayList<>(subscriptions.values());
+    }
+
+
+    /**
+     * @return the number of subscriptions in the store
+     */
+    @Override
+    public int size() {
+        return subscriptions.size();
+    }
+
+    private void unindex(final String userId, final String id) {
+        subscriptionsByUser.computeIfPresent(userId, (user, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
 }
@@ -3,51 +3,66 @@
 
 package com.example.graphwebhook;
 
-import java.security.Key;
 import java.util.List;
 import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.Locator;
 
 /**
  * Helper class for validating the JSON web token included in Microsoft Graph change notifications
- * with encrypted content
+ * with encrypted content. The parser is built once and is safe to share between threads, and
+ * tokens that already passed validation are answered from a cache until they expire
  */
+@Component
 public class TokenHelper {
 
-    private static Locator<Key> keyLocator;
     private static final Logger log = LoggerFactory.getLogger(TokenHelper.class);
 
-    private TokenHelper() {
-        throw new IllegalStateException("Static class");
+    private final JwtParser parser;
+    private final ValidatedTokenCache validatedTokens;
+    private final String[] validAudiences;
+    private final String[] validTenantIds;
+
+    /**
+     * @param keyLocator the locator used to find the signing key for a token
+     * @param validatedTokens the cache of tokens that already passed validation
+     * @param clientId the app's client ID, the only valid audience
+     * @param tenantId the only valid tenant ID
+     */
+    public TokenHelper(@NonNull final DiscoverUrlAdapter keyLocator,
+            @NonNull final ValidatedTokenCache validatedTokens,
+            @Value("${spring.cloud.azure.active-directory.credential.client-id}") @NonNull final String clientId,
+            @Value("${spring.cloud.azure.active-directory.profile.tenant-id}") @NonNull final String tenantId) {
+        this.parser = Jwts.parser().keyLocator(Objects.requireNonNull(keyLocator)).build();
+        this.validatedTokens = Objects.requireNonNull(validatedTokens);
+        this.validAudiences = new String[] {Objects.requireNonNull(clientId)};
+        this.validTenantIds = new String[] {Objects.requireNonNull(tenantId)};
     }
 
 
     /**
      * Validate a JSON web token.
      *
-     * @param validAudiences list of valid audiences - in this case, the app's client ID
-     * @param validTenantIds list of valid tenant IDs
      * @param serializedToken the raw token
-     * @param keyDiscoveryUrl the JWKS endpoint to use to retrieve signing keys
      * @return true if the token is valid, false if not
      */
-    public static boolean isValidationTokenValid(@NonNull final String[] validAudiences,
-            @NonNull final String[] validTenantIds, @NonNull final String serializedToken,
-            @NonNull final String keyDiscoveryUrl) {
-        try {
-            if (keyLocator == null) {
-                keyLocator = new DiscoverUrlAdapter(keyDiscoveryUrl);
-            }
+    public boolean isValidationTokenValid(@NonNull final String serializedToken) {
+        // Graph repeats the same tokens across batches, skip the signature check
+        // for any we have already validated
+        if (validatedTokens.isKnownValid(Objects.requireNonNull(serializedToken))) {
+            return true;
+        }
 
+        try {
             // Parse the serialized token
             // As part of this process, the signature is validated
             // This throws if the signature is invalid
-            var token = Jwts.parser().keyLocator(keyLocator).build()
-                    .parseSignedClaims(Objects.requireNonNull(serializedToken));
+            var token = parser.parseSignedClaims(Objects.requireNonNull(serializedToken));
 
             var body = token.getPayload();
             var audience = body.getAudience();
@@ -66,6 +81,11 @@ public class TokenHelper {
                 isIssuerValid = isIssuerValid || issuer.endsWith(validTenantId + "/");
             }
 
+            var expiration = body.getExpiration();
+            if (isAudienceValid && isIssuerValid && expiration != null) {
+                validatedTokens.addValidToken(serializedToken, expiration.getTime());
+            }
+
             return isAudienceValid && isIssuerValid;
         } catch (final Exception e) {
             log.error(e.getMessage());
@@ -77,18 +97,12 @@ public class TokenHelper {
     /**
      * Validates a list of JSON web tokens
      *
-     * @param validAudiences list of valid audiences - in this case, the app's client ID
-     * @param validTenantIds list of valid tenant IDs
-     * @param serializedToken the raw token
-     * @param keyDiscoveryUrl the JWKS endpoint to use to retrieve signing keys
+     * @param serializedTokens the raw tokens
      * @return true if all tokens are valid, false if one or more are invalid
      */
-    public static boolean areValidationTokensValid(@NonNull final String[] validAudiences,
-            @NonNull final String[] validTenantIds, @NonNull final List<String> serializedTokens,
-            @NonNull final String keyDiscoveryUrl) {
+    public boolean areValidationTokensValid(@NonNull final List<String> serializedTokens) {
         for (final String serializedToken : serializedTokens) {
-            if (!isValidationTokenValid(validAudiences, validTenantIds,
-                Objects.requireNonNull(serializedToken), keyDiscoveryUrl)) {
+            if (!isValidationTokenValid(Objects.requireNonNull(serializedToken))) {
                 return false;
             }
         }
@@ -0,0 +1,138 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded cache of validation tokens that have already passed signature, audience and issuer
+ * checks. Tokens are keyed by their SHA-256 digest and remembered until their exp claim, so a token
+ * Microsoft Graph repeats across batches is only verified once
+ */
+@Component
+public class ValidatedTokenCache {
+
+    /**
+     * Which entry to evict when the cache is full
+     */
+    public enum EvictionPolicy {
+        /**
+         * Evict the token that was looked up least recently
+         */
+        LRU,
+
+        /**
+         * Evict the token that was validated first
+         */
+        FIFO
+    }
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Map<ByteBuffer, Long> expirations;
+    private final Clock clock;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    @Autowired
+    public ValidatedTokenCache(MeterRegistry meterRegistry,
+            @Value("${token-validation.cache.max-size:1000}") final int maxSize,
+            @Value("${token-validation.cache.eviction-policy:LRU}") final EvictionPolicy evictionPolicy) {
+        this(meterRegistry, maxSize, evictionPolicy, Clock.systemUTC());
+    }
+
+    ValidatedTokenCache(final MeterRegistry meterRegistry, final int maxSize,
+            final EvictionPolicy evictionPolicy, final Clock clock) {
+        this.clock = Objects.requireNonNull(clock);
+        this.expirations = new LinkedHashMap<>(16, 0.75f, evictionPolicy == EvictionPolicy.LRU) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        Gauge.builder("token.validation.cache.size", this, ValidatedTokenCache::size)
+                .description("Validated tokens currently cached")
+                .register(meterRegistry);
+        hitCounter = Counter.builder("token.validation.cache.requests").tag("result", "hit")
+                .description("Token validations answered from the cache")
+                .register(meterRegistry);
+        missCounter = Counter.builder("token.validation.cache.requests").tag("result", "miss")
+                .description("Token validations that required a full signature check")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * @param serializedToken the raw token
+     * @return true if the token was validated before and hasn't expired yet
+     */
+    public boolean isKnownValid(@NonNull final String serializedToken) {
+        final var key = digest(Objects.requireNonNull(serializedToken));
+        final var now = clock.millis();
+        synchronized (expirations) {
+            final Long expiration = expirations.get(key);
+            if (expiration != null && expiration > now) {
+                hitCounter.increment();
+                return true;
+            }
+            if (expiration != null) {
+                expirations.remove(key);
+            }
+        }
+        missCounter.increment();
+        return false;
+    }
+
+
+    /**
+     * Remembers a token that passed validation
+     *
+     * @param serializedToken the raw token
+     * @param expiration the token's exp claim, in milliseconds since the epoch
+     */
+    public void addValidToken(@NonNull final String serializedToken, final long expiration) {
+        if (expiration <= clock.millis()) {
+            return;
+        }
+        final var key = digest(Objects.requireNonNull(serializedToken));
+        synchronized (expirations) {
+            expirations.put(key, expiration);
+        }
+    }
+
+
+    /**
+     * @return the number of cached tokens, including any that have expired but not been evicted
+     */
+    public int size() {
+        synchronized (expirations) {
+            return expirations.size();
+        }
+    }
+
+    private static ByteBuffer digest(final String serializedToken) {
+        return ByteBuffer.wrap(DIGEST.get().digest(serializedToken.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
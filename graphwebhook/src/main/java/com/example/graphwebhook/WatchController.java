@@ -3,7 +3,6 @@
 
 package com.example.graphwebhook;
 
-import java.time.OffsetDateTime;
 import java.util.UUID;
 import java.util.Objects;
 
@@ -15,7 +14,6 @@ import com.microsoft.kiota.serialization.KiotaJsonSerialization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.annotation.RegisteredOAuth2AuthorizedClient;
@@ -37,16 +35,22 @@ public class WatchController {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     @Autowired
-    private SubscriptionStoreService subscriptionStore;
+    private SubscriptionStore subscriptionStore;
 
     @Autowired
-    private CertificateStoreService certificateStore;
+    private SubscriptionFactory subscriptionFactory;
 
     @Autowired
     private OAuth2AuthorizedClientService authorizedClientService;
 
-    @Value("${notifications.host}")
-    private String notificationHost;
+    @Autowired
+    private GraphClientHelper graphClientHelper;
+
+    @Autowired
+    private SubscriptionRenewalScheduler renewalScheduler;
+
+    @Autowired
+    private CatchUpEngine catchUp;
 
     /**
      * The delegated auth page of the app. This will subscribe for the authenticated user's inbox on
@@ -65,7 +69,7 @@ public class WatchController {
 
         try {
             final var graphClient =
-                    GraphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
+                    graphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
 
             // Get the authenticated user's info
             final var user = graphClient.me().get(config -> {
@@ -73,13 +77,8 @@ public class WatchController {
             });
 
             // Create the subscription
-            final var subscriptionRequest = new Subscription();
-            subscriptionRequest.setChangeType("created");
-            subscriptionRequest.setNotificationUrl(notificationHost + "/listen");
-            subscriptionRequest.setResource("me/mailfolders/inbox/messages");
-            subscriptionRequest.setClientState(UUID.randomUUID().toString());
-            subscriptionRequest.setIncludeResourceData(false);
-            subscriptionRequest.setExpirationDateTime(OffsetDateTime.now().plusHours(1));
+            final var subscriptionRequest = subscriptionFactory.newSubscription(
+                    "me/mailfolders/inbox/messages", UUID.randomUUID().toString(), false);
 
             final Subscription subscription = graphClient.subscriptions().post(subscriptionRequest);
 
@@ -99,6 +98,11 @@ public class WatchController {
             // Add record in subscription store
             subscriptionStore.addSubscription(subscription,
                     Objects.requireNonNull(authentication.getName()));
+            final var subscriptionRecord = Objects.requireNonNull(
+                    subscriptionStore.getSubscription(Objects.requireNonNull(subscription.getId())));
+            renewalScheduler.schedule(subscriptionRecord);
+            // Establish the delta link that missed notifications are caught up from
+            catchUp.trigger(subscriptionRecord);
 
             model.addAttribute("success", "Subscription created.");
 
@@ -127,7 +131,7 @@ public class WatchController {
 
         try {
             final var graphClient =
-                    GraphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
+                    graphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
 
             // Apps are only allowed one subscription to the /teams/getAllMessages resource
             // If we already had one, delete it so we can create a new one
@@ -135,18 +139,13 @@ public class WatchController {
             for (final var sub : existingSubscriptions) {
 
                 graphClient.subscriptions().bySubscriptionId(sub.subscriptionId).delete();
+                subscriptionStore.deleteSubscription(sub.subscriptionId);
             }
 
             // Create the subscription
-            final var subscriptionRequest = new Subscription();
-            subscriptionRequest.setChangeType("created");
-            subscriptionRequest.setNotificationUrl(notificationHost + "/listen");
-            subscriptionRequest.setResource("/teams/getAllMessages");
-            subscriptionRequest.setClientState(UUID.randomUUID().toString());
-            subscriptionRequest.setIncludeResourceData(true);
-            subscriptionRequest.setExpirationDateTime(OffsetDateTime.now().plusHours(1));
-            subscriptionRequest.setEncryptionCertificate(certificateStore.getBase64EncodedCertificate());
-            subscriptionRequest.setEncryptionCertificateId(certificateStore.getCertificateId());
+            // With resource data the request includes the active encryption certificate
+            final var subscriptionRequest = subscriptionFactory.newSubscription(
+                    "/teams/getAllMessages", UUID.randomUUID().toString(), true);
 
             final var subscription = graphClient.subscriptions().post(subscriptionRequest);
 
@@ -160,6 +159,8 @@ public class WatchController {
 
             // Add record in subscription store
             subscriptionStore.addSubscription(subscription, APP_ONLY);
+            renewalScheduler.schedule(Objects.requireNonNull(
+                    subscriptionStore.getSubscription(Objects.requireNonNull(subscription.getId()))));
 
             model.addAttribute("success", "Subscription created.");
             return "apponly";
@@ -185,7 +186,7 @@ public class WatchController {
             @RegisteredOAuth2AuthorizedClient("graph") OAuth2AuthorizedClient oauthClient) {
 
         final var graphClient =
-                GraphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
+                graphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
 
         graphClient.subscriptions().bySubscriptionId(subscriptionId).delete();
         subscriptionStore.deleteSubscription(Objects.requireNonNull(subscriptionId));
@@ -206,7 +207,7 @@ public class WatchController {
             @RegisteredOAuth2AuthorizedClient("apponly") OAuth2AuthorizedClient oauthClient) {
 
         final var graphClient =
-                GraphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
+                graphClientHelper.getGraphClient(Objects.requireNonNull(oauthClient));
 
         graphClient.subscriptions().bySubscriptionId(subscriptionId).delete();
         // Remove subscription from store
@@ -0,0 +1,247 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT license.
+
+package com.example.graphwebhook.notifications;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming parser for change notification collections. Reads the body token by token straight
+ * into {@link NotificationEnvelope} records, skipping anything the app doesn't use, instead of
+ * building the Kiota backing-store models. An optional filter drops items as soon as their
+ * subscription ID and client state have been read, so the rest of a rejected item is skipped
+ * without being materialized
+ */
+public final class ChangeNotificationParser {
+
+    /**
+     * Decides early whether a notification is worth parsing further
+     */
+    @FunctionalInterface
+    public interface ItemFilter {
+
+        /**
+         * @param subscriptionId the subscription ID of the notification
+         * @param clientState the client state of the notification
+         * @return true to keep the notification, false to drop it
+         */
+        boolean accept(String subscriptionId, String clientState);
+    }
+
+    private static final ItemFilter ACCEPT_ALL = (subscriptionId, clientState) -> true;
+
+    private ChangeNotificationParser() {
+        throw new IllegalStateException("Static class");
+    }
+
+
+    /**
+     * @param body the JSON body of a notification request
+     * @return the parsed notifications, or an empty envelope if the body is empty
+     * @throws IOException if the body isn't a valid change notification collection
+     */
+    public static NotificationEnvelope parse(final InputStream body) throws IOException {
+        return parse(body, ACCEPT_ALL);
+    }
+
+
+    /**
+     * @param body the JSON body of a notification request
+     * @param filter decides which notifications to keep
+     * @return the parsed notifications that passed the filter, or an empty envelope if the body is
+     *         empty
+     * @throws IOException if the body isn't a valid change notification collection
+     */
+    public static NotificationEnvelope parse(final InputStream body, final ItemFilter filter)
+            throws IOException {
+        Objects.requireNonNull(body);
+        Objects.requireNonNull(filter);
+        try (var reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            try {
+                if (reader.peek() == JsonToken.END_DOCUMENT) {
+                    return NotificationEnvelope.EMPTY;
+                }
+            } catch (EOFException e) {
+                return NotificationEnvelope.EMPTY;
+            }
+
+            List<String> validationTokens = null;
+            List<NotificationItem> items = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "value" -> items = readItems(reader, filter);
+                    case "validationTokens" -> validationTokens = readStrings(reader);
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            return new NotificationEnvelope(validationTokens, items);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Gson reports unexpected tokens this way
+            throw new IOException("Invalid change notification collection", e);
+        }
+    }
+
+    private static List<NotificationItem> readItems(final JsonReader reader,
+            final ItemFilter filter) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        final List<NotificationItem> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            final var item = readItem(reader, filter);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        reader.endArray();
+        return items;
+    }
+
+    /**
+     * @return the notification, or null if the filter dropped it
+     */
+    private static NotificationItem readItem(final JsonReader reader, final ItemFilter filter)
+            throws IOException {
+        String subscriptionId = null;
+        String clientState = null;
+        String changeType = null;
+        String resource = null;
+        String resourceDataId = null;
+        String tenantId = null;
+        String lifecycleEvent = null;
+        String subscriptionExpirationDateTime = null;
+        EncryptedContent encryptedContent = null;
+        boolean hasSubscriptionId = false;
+        boolean hasClientState = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "subscriptionId" -> {
+                    subscriptionId = nextString(reader);
+                    hasSubscriptionId = true;
+                }
+                case "clientState" -> {
+                    clientState = nextString(reader);
+                    hasClientState = true;
+                }
+                case "changeType" -> changeType = nextString(reader);
+                case "resource" -> resource = nextString(reader);
+                case "resourceData" -> resourceDataId = readResourceDataId(reader);
+                case "tenantId" -> tenantId = nextString(reader);
+                case "lifecycleEvent" -> lifecycleEvent = nextString(reader);
+                case "subscriptionExpirationDateTime" ->
+                    subscriptionExpirationDateTime = nextString(reader);
+                case "encryptedContent" -> encryptedContent = readEncryptedContent(reader);
+                default -> reader.skipValue();
+            }
+
+            // Drop as soon as we know the notification isn't ours
+            if (hasSubscriptionId && hasClientState && !filter.accept(subscriptionId, clientState)) {
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endObject();
+                return null;
+            }
+        }
+        reader.endObject();
+
+        // Filter items that arrived without a subscription ID or client state
+        if (!(hasSubscriptionId && hasClientState) && !filter.accept(subscriptionId, clientState)) {
+            return null;
+        }
+
+        return new NotificationItem(subscriptionId, clientState, changeType, resource,
+                resourceDataId, tenantId, lifecycleEvent, subscriptionExpirationDateTime,
+                encryptedContent);
+    }
+
+    private static String readResourceDataId(final JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        String id = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("id".equals(reader.nextName())) {
+                id = nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return id;
+    }
+
+    private static EncryptedContent readEncryptedContent(final JsonReader reader)
+            throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        String data = null;
+        String dataKey = null;
+        String dataSignature = null;
+        String encryptionCertificateId = null;
+        String encryptionCertificateThumbprint = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "data" -> data = nextString(reader);
+                case "dataKey" -> dataKey = nextString(reader);
+                case "dataSignature" -> dataSignature = nextString(reader);
+                case "encryptionCertificateId" -> encryptionCertificateId = nextString(reader);
+                case "encryptionCertificateThumbprint" ->
+                    encryptionCertificateThumbprint = nextString(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new EncryptedContent(data, dataKey, dataSignature, encryptionCertificateId,
+                encryptionCertificateThumbprint);
+    }
+
+    private static List<String> readStrings(final JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        final List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            final var value = nextString(reader);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        reader.endArray();
+        return values;
+    }
+
+    private static String nextString(final JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,30 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT license.
+
+package com.example.graphwebhook.notifications;
+
+/**
+ * Compact, immutable form of the encryptedContent of a change notification
+ *
+ * @param data the base64-encoded encrypted resource data
+ * @param dataKey the base64-encoded symmetric key, encrypted with the app's certificate
+ * @param dataSignature the base64-encoded HMAC-SHA256 signature of the data
+ * @param encryptionCertificateId the ID of the certificate used to encrypt the key
+ * @param encryptionCertificateThumbprint the thumbprint of the certificate used to encrypt the key
+ */
+public record EncryptedContent(String data, String dataKey, String dataSignature,
+        String encryptionCertificateId, String encryptionCertificateThumbprint) {
+
+    /**
+     * @param content the Kiota model to convert
+     * @return the compact form of the content, or null if there is none
+     */
+    public static EncryptedContent fromModel(final ChangeNotificationEncryptedContent content) {
+        if (content == null) {
+            return null;
+        }
+        return new EncryptedContent(content.getData(), content.getDataKey(),
+                content.getDataSignature(), content.getEncryptionCertificateId(),
+                content.getEncryptionCertificateThumbprint());
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT license.
+
+package com.example.graphwebhook.notifications;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Extracts a fixed set of dotted paths, like from.user.displayName, from a JSON document while it
+ * streams in. Only the objects along the requested paths are descended into, everything else is
+ * skipped without being materialized, and reading stops as soon as every path has been found
+ */
+public final class JsonProjection {
+
+    /**
+     * A step along one or more paths
+     */
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        String path;
+    }
+
+    /**
+     * Tracks how many paths are still missing while reading one document
+     */
+    private static final class State {
+        final Map<String, String> values = new LinkedHashMap<>();
+        int remaining;
+
+        State(final int remaining) {
+            this.remaining = remaining;
+        }
+    }
+
+    private final Node root = new Node();
+    private final List<String> paths;
+
+    private JsonProjection(final List<String> paths) {
+        this.paths = List.copyOf(paths);
+        for (final var path : this.paths) {
+            var node = root;
+            for (final var name : path.split("\\.")) {
+                node = node.children.computeIfAbsent(name, n -> new Node());
+            }
+            node.path = path;
+        }
+    }
+
+
+    /**
+     * @param paths the dotted paths to extract
+     * @return a projection that extracts the paths
+     */
+    public static JsonProjection of(final List<String> paths) {
+        Objects.requireNonNull(paths);
+        for (final var path : paths) {
+            if (path == null || path.isBlank() || path.startsWith(".") || path.endsWith(".")
+                    || path.contains("..")) {
+                throw new IllegalArgumentException("Invalid projection path: " + path);
+            }
+        }
+        return new JsonProjection(paths.stream().distinct().toList());
+    }
+
+
+    /**
+     * @return the paths this projection extracts
+     */
+    public List<String> paths() {
+        return paths;
+    }
+
+
+    /**
+     * @param content the JSON document as UTF-8 bytes
+     * @return the scalar values found at the projected paths, as strings, keyed by path. Paths
+     *         that are missing or don't end at a scalar are left out, JSON nulls map to null
+     * @throws IOException if the content isn't a JSON object
+     */
+    public Map<String, String> extract(final InputStream content) throws IOException {
+        Objects.requireNonNull(content);
+        final var state = new State(paths.size());
+        try {
+            // Not closed, the caller owns the stream
+            final var reader = new JsonReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+            if (state.remaining > 0) {
+                readObject(reader, root, state);
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Gson reports unexpected tokens this way
+            throw new IOException("Invalid JSON content", e);
+        }
+        return state.values;
+    }
+
+    /**
+     * Reads an object, descending only into projected children. Returns early, leaving the rest of
+     * the document unread, once every path has been found
+     */
+    private static void readObject(final JsonReader reader, final Node node, final State state)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final var child = node.children.get(reader.nextName());
+            if (child == null) {
+                reader.skipValue();
+                continue;
+            }
+
+            final var token = reader.peek();
+            if (token == JsonToken.BEGIN_OBJECT && !child.children.isEmpty()) {
+                readObject(reader, child, state);
+            } else if (child.path != null && isScalar(token)) {
+                state.values.put(child.path, nextScalar(reader, token));
+                state.remaining--;
+            } else {
+                reader.skipValue();
+            }
+
+            if (state.remaining == 0) {
+                return;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static boolean isScalar(final JsonToken token) {
+        return token == JsonToken.STRING || token == JsonToken.NUMBER
+                || token == JsonToken.BOOLEAN || token == JsonToken.NULL;
+    }
+
+    private static String nextScalar(final JsonReader reader, final JsonToken token)
+            throws IOException {
+        switch (token) {
+            case NULL:
+                reader.nextNull();
+                return null;
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            default:
+                return reader.nextString();
+        }
+    }
+}
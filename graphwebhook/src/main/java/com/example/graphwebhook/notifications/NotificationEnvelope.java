@@ -0,0 +1,70 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT license.
+
+package com.example.graphwebhook.notifications;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact, immutable form of a change notification collection as posted to the notification URL
+ *
+ * @param validationTokens the validation tokens sent with notifications that include resource data
+ * @param items the notifications
+ */
+public record NotificationEnvelope(List<String> validationTokens, List<NotificationItem> items) {
+
+    /**
+     * An envelope with no notifications
+     */
+    public static final NotificationEnvelope EMPTY = new NotificationEnvelope(List.of(), List.of());
+
+    public NotificationEnvelope {
+        validationTokens = validationTokens == null ? List.of() : List.copyOf(validationTokens);
+        items = items == null ? List.of() : List.copyOf(items);
+    }
+
+    /**
+     * @return the lifecycle notifications, with this envelope's validation tokens
+     */
+    public NotificationEnvelope lifecycleNotifications() {
+        return select(true);
+    }
+
+
+    /**
+     * @return the resource change notifications, with this envelope's validation tokens
+     */
+    public NotificationEnvelope changeNotifications() {
+        return select(false);
+    }
+
+    private NotificationEnvelope select(final boolean lifecycle) {
+        final List<NotificationItem> selected = new ArrayList<>(items.size());
+        for (final var item : items) {
+            if (item.isLifecycleNotification() == lifecycle) {
+                selected.add(item);
+            }
+        }
+        return selected.size() == items.size() ? this
+                : new NotificationEnvelope(validationTokens, selected);
+    }
+
+
+    /**
+     * @param collection the Kiota model to convert
+     * @return the compact form of the collection
+     */
+    public static NotificationEnvelope fromModel(final ChangeNotificationCollection collection) {
+        if (collection == null) {
+            return EMPTY;
+        }
+        final List<NotificationItem> items = new ArrayList<>();
+        if (collection.getValue() != null) {
+            for (final var notification : collection.getValue()) {
+                items.add(NotificationItem.fromModel(notification));
+            }
+        }
+        return new NotificationEnvelope(collection.getValidationTokens(), items);
+    }
+}
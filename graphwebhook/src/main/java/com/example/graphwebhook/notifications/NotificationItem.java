@@ -0,0 +1,49 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT license.
+
+package com.example.graphwebhook.notifications;
+
+/**
+ * Compact, immutable form of a single change notification. Only the fields the app uses are kept
+ *
+ * @param subscriptionId the ID of the subscription that generated the notification
+ * @param clientState the client state the subscription was created with
+ * @param changeType the type of change, for example created
+ * @param resource the resource that changed, relative to the Graph version root
+ * @param resourceDataId the ID in the notification's resource data, if any
+ * @param tenantId the tenant the notification came from
+ * @param lifecycleEvent the lifecycle event, for lifecycle notifications
+ * @param subscriptionExpirationDateTime the subscription's expiration, as sent by Graph
+ * @param encryptedContent the encrypted resource data, if the subscription includes it
+ */
+public record NotificationItem(String subscriptionId, String clientState, String changeType,
+        String resource, String resourceDataId, String tenantId, String lifecycleEvent,
+        String subscriptionExpirationDateTime, EncryptedContent encryptedContent) {
+
+    /**
+     * @return true if this is a lifecycle notification about the subscription rather than a change
+     *         to a resource
+     */
+    public boolean isLifecycleNotification() {
+        return lifecycleEvent != null;
+    }
+
+
+    /**
+     * @param notification the Kiota model to convert
+     * @return the compact form of the notification
+     */
+    public static NotificationItem fromModel(final ChangeNotification notification) {
+        final var resourceData = notification.getResourceData();
+        final var additionalData = resourceData == null ? null : resourceData.getAdditionalData();
+        final var resourceDataId = additionalData == null ? null : additionalData.get("id");
+        final var expiration = notification.getSubscriptionExpirationDateTime();
+        return new NotificationItem(notification.getSubscriptionId(),
+                notification.getClientState(), notification.getChangeType(),
+                notification.getResource(),
+                resourceDataId == null ? null : resourceDataId.toString(),
+                notification.getTenantId(), notification.getLifecycleEvent(),
+                expiration == null ? null : expiration.toString(),
+                EncryptedContent.fromModel(notification.getEncryptedContent()));
+    }
+}
@@ -0,0 +1,233 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.authentication.AnonymousAuthenticationProvider;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CatchUpEngineTests {
+
+    private static final String DELTA =
+            "https://graph.microsoft.com/v1.0/me/mailfolders/inbox/messages/delta";
+    private static final String SAVED = DELTA + "?$deltatoken=saved";
+    private static final String NEXT = DELTA + "?$skiptoken=next";
+    private static final String LATEST = DELTA + "?$deltatoken=latest";
+
+    @TempDir
+    Path directory;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SubscriptionStoreService store = new SubscriptionStoreService();
+    private final FakeProcessor processor = new FakeProcessor();
+    private final NotificationDeduplicator deduplicator =
+            new NotificationDeduplicator(meterRegistry, Duration.ofMinutes(10), 1000);
+    private final Map<String, String> pages = new ConcurrentHashMap<>();
+    private final List<String> requested = new CopyOnWriteArrayList<>();
+    private final SubscriptionRecord subscription = new SubscriptionRecord("sub", "user",
+            "state", "me/mailfolders/inbox/messages", null, false);
+    private DeltaLinkStore deltaLinks;
+    private CatchUpEngine engine;
+
+    @BeforeEach
+    void addSubscription() {
+        store.addRecord(subscription);
+        deltaLinks = new DeltaLinkStore(directory.toString());
+    }
+
+    @AfterEach
+    void shutdown() {
+        engine.shutdown();
+        processor.shutdown();
+    }
+
+    @Test
+    void firstRunOnlyEstablishesTheDeltaLink() throws InterruptedException {
+        engine = create(10);
+        pages.put(DELTA, page(List.of(message("a")), "@odata.nextLink", NEXT));
+        pages.put(NEXT, page(List.of(message("b")), "@odata.deltaLink", LATEST));
+
+        engine.trigger(subscription);
+        awaitRuns(1);
+
+        assertEquals(List.of(), processor.emitted);
+        assertEquals(LATEST, deltaLinks.get("sub"));
+        // Only messages from now on
+        assertTrue(requested.get(0).contains("$filter=receivedDateTime%20ge%20"),
+                requested.get(0));
+        assertEquals(NEXT, requested.get(1));
+    }
+
+    @Test
+    void emitsNewMessagesAndSavesTheDeltaLink() throws InterruptedException {
+        engine = create(10);
+        deltaLinks.put("sub", SAVED);
+        final var removed = message("b");
+        removed.add("@removed", new JsonObject());
+        pages.put(SAVED, page(List.of(message("a"), removed), "@odata.nextLink", NEXT));
+        pages.put(NEXT, page(List.of(message("c")), "@odata.deltaLink", LATEST));
+
+        engine.trigger(subscription);
+        awaitRuns(1);
+
+        assertEquals(List.of("a", "c"), processor.emitted);
+        assertEquals(List.of(SAVED, NEXT), requested);
+        assertEquals(LATEST, deltaLinks.get("sub"));
+    }
+
+    @Test
+    void continuesFromTheNextLinkAfterMaxPages() throws InterruptedException {
+        engine = create(1);
+        deltaLinks.put("sub", SAVED);
+        pages.put(SAVED, page(List.of(message("a")), "@odata.nextLink", NEXT));
+        pages.put(NEXT, page(List.of(message("b")), "@odata.deltaLink", LATEST));
+
+        engine.trigger(subscription);
+        awaitRuns(2);
+
+        // The second run started from the next link saved by the first
+        assertEquals(List.of(SAVED, NEXT), requested);
+        assertEquals(List.of("a", "b"), processor.emitted);
+        assertEquals(LATEST, deltaLinks.get("sub"));
+        assertEquals(1, runs("partial"));
+        assertEquals(1, runs("success"));
+    }
+
+    @Test
+    void startsOverWhenTheDeltaLinkExpired() throws InterruptedException {
+        engine = create(10);
+        deltaLinks.put("sub", SAVED);
+        pages.put(DELTA, page(List.of(message("a")), "@odata.deltaLink", LATEST));
+
+        engine.trigger(subscription);
+        awaitRuns(2);
+
+        assertEquals(SAVED, requested.get(0));
+        assertTrue(requested.get(1).startsWith(DELTA + "?$filter="), requested.get(1));
+        assertEquals(List.of(), processor.emitted);
+        assertEquals(LATEST, deltaLinks.get("sub"));
+        assertEquals(1, runs("reset"));
+    }
+
+    @Test
+    void skipsMessagesLiveNotificationsDelivered() throws InterruptedException {
+        engine = create(10);
+        deltaLinks.put("sub", SAVED);
+        pages.put(SAVED, page(List.of(message("a"), message("b")), "@odata.deltaLink", LATEST));
+        assertFalse(deduplicator.isDuplicate("sub", "Users/u/Messages/a", "created", "a"));
+
+        engine.trigger(subscription);
+        awaitRuns(1);
+
+        assertEquals(List.of("b"), processor.emitted);
+        assertEquals(1.0,
+                meterRegistry.get("notifications.catch-up.duplicates").counter().count());
+        // And a live notification for a message catch-up delivered is dropped
+        assertTrue(deduplicator.isDuplicate("sub", "Users/u/Messages/b", "created", "b"));
+    }
+
+    private CatchUpEngine create(final int maxPages) {
+        final var graphClient = graphClient();
+        return new CatchUpEngine(store, deltaLinks, new TestGraphClientHelper(() -> graphClient),
+                new PayloadProjections(false, List.of(), List.of(), List.of()), processor,
+                deduplicator, meterRegistry, true, false, 1, 10, maxPages);
+    }
+
+    private long runs(final String result) {
+        final Timer timer = meterRegistry.find("notifications.catch-up.duration")
+                .tag("result", result).timer();
+        return timer == null ? 0 : timer.count();
+    }
+
+    private void awaitRuns(final int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            final long runs = meterRegistry.find("notifications.catch-up.duration").timers()
+                    .stream().mapToLong(Timer::count).sum();
+            if (runs >= count) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Answers delta queries from the pages map, with 410 Gone for URLs it doesn't have
+     */
+    private GraphServiceClient graphClient() {
+        final var httpClient = new OkHttpClient.Builder().addInterceptor(chain -> {
+            final var url = chain.request().url().toString();
+            requested.add(url);
+            final var body = pages.get(url.startsWith(DELTA + "?$filter=") ? DELTA : url);
+            return new Response.Builder()
+                    .request(chain.request())
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(body == null ? 410 : 200)
+                    .message("")
+                    .body(ResponseBody.create(body == null ? "{}" : body,
+                            MediaType.get("application/json")))
+                    .build();
+        }).build();
+        return new GraphServiceClient(new AnonymousAuthenticationProvider(), httpClient);
+    }
+
+    private static JsonObject message(final String id) {
+        final var message = new JsonObject();
+        message.addProperty("id", id);
+        message.addProperty("subject", "Message " + id);
+        return message;
+    }
+
+    private static String page(final List<JsonObject> messages, final String linkName,
+            final String link) {
+        final var page = new JsonObject();
+        final var value = new JsonArray();
+        messages.forEach(value::add);
+        page.add("value", value);
+        page.addProperty(linkName, link);
+        return page.toString();
+    }
+
+    /**
+     * Records the IDs of emitted messages instead of sending them to Socket.IO clients
+     */
+    private static final class FakeProcessor extends NotificationProcessor {
+        final List<String> emitted = new CopyOnWriteArrayList<>();
+
+        FakeProcessor() {
+            super(new SocketIOServer(new Configuration()));
+        }
+
+        @Override
+        public void emitMessage(final SubscriptionRecord subscription,
+                final ResourceProjection projection, final JsonObject body) {
+            emitted.add(body.get("id").getAsString());
+        }
+    }
+}
@@ -0,0 +1,230 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import javax.crypto.Cipher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class CertificateStoreServiceTests {
+
+    private static final String PASSWORD = "storepass";
+    private static final Instant ISSUED = Instant.parse("2024-01-01T00:00:00Z");
+    private static final byte[] DATA_KEY = new byte[32];
+
+    private static KeyPair firstKeys;
+    private static KeyPair secondKeys;
+    private static KeyPair thirdKeys;
+
+    @TempDir
+    Path directory;
+
+    private final DataKeyCache dataKeyCache =
+            new DataKeyCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(10));
+    private final CertificateStoreService service = new CertificateStoreService();
+    private Path keystore;
+
+    @BeforeAll
+    static void generateKeys() throws GeneralSecurityException {
+        final var generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        firstKeys = generator.generateKeyPair();
+        secondKeys = generator.generateKeyPair();
+        thirdKeys = generator.generateKeyPair();
+        for (int i = 0; i < DATA_KEY.length; i++) {
+            DATA_KEY[i] = (byte) i;
+        }
+    }
+
+    @BeforeEach
+    void configureService() {
+        keystore = directory.resolve("keystore.jks");
+        ReflectionTestUtils.setField(service, "storeName", keystore.toString());
+        ReflectionTestUtils.setField(service, "storePassword", PASSWORD);
+        ReflectionTestUtils.setField(service, "activeAlias", "");
+        ReflectionTestUtils.setField(service, "aliases", List.of());
+        ReflectionTestUtils.setField(service, "dataKeyCache", dataKeyCache);
+    }
+
+    @Test
+    void reloadsAChangedKeystore() throws Exception {
+        final var first = certificate("first", firstKeys, ISSUED);
+        writeKeystore(new Entry("first", firstKeys, first));
+        service.loadKeyMaterial();
+        assertEquals("first", service.getCertificateId());
+
+        final var second = certificate("second", secondKeys, ISSUED);
+        writeKeystore(new Entry("second", secondKeys, second));
+        service.reloadIfChanged();
+
+        assertEquals("second", service.getCertificateId());
+        assertEquals(thumbprint(second), service.getCertificateThumbprint());
+        assertArrayEquals(DATA_KEY, service.getEncryptionKey(wrap(second), null, null));
+    }
+
+    @Test
+    void keepsTheLoadedKeysWhenTheNewKeystoreIsUnreadable() throws Exception {
+        final var first = certificate("first", firstKeys, ISSUED);
+        writeKeystore(new Entry("first", firstKeys, first));
+        service.loadKeyMaterial();
+
+        Files.write(keystore, new byte[] {1, 2, 3, 4});
+        touch();
+        service.reloadIfChanged();
+
+        assertEquals("first", service.getCertificateId());
+        assertArrayEquals(DATA_KEY,
+                service.getEncryptionKey(wrap(first), "first", thumbprint(first)));
+    }
+
+    @Test
+    void forgetsUnwrappedKeysOnlyWhenTheKeystoreChanges() throws Exception {
+        final var first = certificate("first", firstKeys, ISSUED);
+        writeKeystore(new Entry("first", firstKeys, first));
+        service.loadKeyMaterial();
+        service.getEncryptionKey(wrap(first), "first", thumbprint(first));
+        assertEquals(1, dataKeyCache.size());
+
+        // Unchanged, nothing is reloaded
+        service.reloadIfChanged();
+        assertEquals(1, dataKeyCache.size());
+
+        writeKeystore(new Entry("second", secondKeys, certificate("second", secondKeys, ISSUED)));
+        service.reloadIfChanged();
+        assertEquals(0, dataKeyCache.size());
+    }
+
+    @Test
+    void findsRotatedKeysByThumbprintAndId() throws Exception {
+        final var previous = certificate("previous", firstKeys, ISSUED);
+        final var current = certificate("current", secondKeys, ISSUED.plus(Duration.ofDays(30)));
+        writeKeystore(new Entry("previous", firstKeys, previous),
+                new Entry("current", secondKeys, current));
+        service.loadKeyMaterial();
+
+        // New subscriptions use the most recently issued certificate
+        assertEquals("current", service.getCertificateId());
+
+        // Notifications for subscriptions created before the rotation still decrypt
+        assertArrayEquals(DATA_KEY,
+                service.getEncryptionKey(wrap(previous), "previous", thumbprint(previous)));
+        assertArrayEquals(DATA_KEY, service.getEncryptionKey(wrap(previous), "previous", null));
+        assertArrayEquals(DATA_KEY, service.getEncryptionKey(wrap(previous), null,
+                thumbprint(previous).toLowerCase(Locale.ROOT)));
+        assertArrayEquals(DATA_KEY, service.getEncryptionKey(wrap(current), null, null));
+
+        // The thumbprint names the certificate, even if the ID was reused
+        assertArrayEquals(DATA_KEY,
+                service.getEncryptionKey(wrap(previous), "current", thumbprint(previous)));
+        assertArrayEquals(new byte[0], service.getEncryptionKey(wrap(previous), "unknown",
+                thumbprint(certificate("unknown", thirdKeys, ISSUED))));
+    }
+
+    @Test
+    void skipsKeysItCantRead() throws Exception {
+        final var readable = certificate("readable", firstKeys, ISSUED);
+        final var unreadable = certificate("unreadable", secondKeys,
+                ISSUED.plus(Duration.ofDays(30)));
+        writeKeystore(new Entry("readable", firstKeys, readable),
+                new Entry("unreadable", secondKeys, unreadable, "other"));
+        service.loadKeyMaterial();
+
+        assertEquals("readable", service.getCertificateId());
+        assertArrayEquals(DATA_KEY,
+                service.getEncryptionKey(wrap(readable), "readable", thumbprint(readable)));
+        assertArrayEquals(new byte[0],
+                service.getEncryptionKey(wrap(unreadable), "unreadable", thumbprint(unreadable)));
+    }
+
+    /**
+     * A key entry to write to the keystore, protected by its own password
+     */
+    private record Entry(String alias, KeyPair keys, X509Certificate certificate,
+            String password) {
+
+        Entry(final String alias, final KeyPair keys, final X509Certificate certificate) {
+            this(alias, keys, certificate, PASSWORD);
+        }
+    }
+
+    private void writeKeystore(final Entry... entries) throws Exception {
+        final var store = KeyStore.getInstance("JKS");
+        store.load(null, null);
+        for (final var entry : entries) {
+            store.setKeyEntry(entry.alias(), entry.keys().getPrivate(),
+                    entry.password().toCharArray(), new Certificate[] {entry.certificate()});
+        }
+        final boolean replacing = Files.exists(keystore);
+        try (OutputStream stream = Files.newOutputStream(keystore)) {
+            store.store(stream, PASSWORD.toCharArray());
+        }
+        if (replacing) {
+            touch();
+        }
+    }
+
+    /**
+     * Moves the keystore's modification time on, so a rewrite within the same clock tick is seen
+     */
+    private void touch() throws IOException {
+        final var modified = Files.getLastModifiedTime(keystore).toInstant();
+        Files.setLastModifiedTime(keystore, FileTime.from(modified.plusSeconds(1)));
+    }
+
+    private static X509Certificate certificate(final String name, final KeyPair keys,
+            final Instant notBefore) throws GeneralSecurityException, OperatorCreationException {
+        final var subject = new X500Name("CN=" + name);
+        final var holder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE,
+                Date.from(notBefore), Date.from(notBefore.plus(Duration.ofDays(365))), subject,
+                keys.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate()));
+        return new JcaX509CertificateConverter().getCertificate(holder);
+    }
+
+    private static String thumbprint(final X509Certificate certificate)
+            throws GeneralSecurityException {
+        return DigestUtils.sha1Hex(certificate.getEncoded()).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the data key wrapped with the certificate's public key, as Graph sends it
+     */
+    private static String wrap(final X509Certificate certificate)
+            throws GeneralSecurityException {
+        final var cipher = Cipher.getInstance("RSA/None/OAEPWithSHA1AndMGF1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, certificate.getPublicKey());
+        return Base64.getEncoder().encodeToString(cipher.doFinal(DATA_KEY));
+    }
+}
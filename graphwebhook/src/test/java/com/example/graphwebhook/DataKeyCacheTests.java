@@ -0,0 +1,145 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class DataKeyCacheTests {
+
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    private final TestClock clock = new TestClock();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void handsOutCopiesTheCallerMayZero() {
+        final var cache = create(10);
+        final var key = key(1);
+        cache.put("a", key);
+
+        // Neither the caller's array nor the copy it gets back is the cached one
+        Arrays.fill(key, (byte) 0);
+        final var first = cache.get("a");
+        assertArrayEquals(key(1), first);
+        Arrays.fill(first, (byte) 0);
+        final var second = cache.get("a");
+        assertArrayEquals(key(1), second);
+        assertNotSame(first, second);
+        assertNotSame(second, ownedKeys(cache).get(0));
+
+        assertEquals(2.0, requests("hit"));
+    }
+
+    @Test
+    void expiresKeysAtTheTtl() {
+        final var cache = create(10);
+        cache.put("a", key(1));
+        final var owned = ownedKeys(cache).get(0);
+
+        clock.advance(TTL.minusMillis(1));
+        assertArrayEquals(key(1), cache.get("a"));
+
+        clock.advance(Duration.ofMillis(1));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertArrayEquals(new byte[32], owned);
+        assertEquals(1.0, requests("miss"));
+    }
+
+    @Test
+    void purgesAndZeroesExpiredKeys() {
+        final var cache = create(10);
+        cache.put("a", key(1));
+        clock.advance(TTL.dividedBy(2));
+        cache.put("b", key(2));
+        final var expired = ownedKeys(cache).get(0);
+
+        clock.advance(TTL.dividedBy(2));
+        cache.purgeExpired();
+
+        assertEquals(1, cache.size());
+        assertArrayEquals(new byte[32], expired);
+        assertArrayEquals(key(2), cache.get("b"));
+    }
+
+    @Test
+    void evictsAndZeroesTheLeastRecentlyUsedKey() {
+        final var cache = create(2);
+        cache.put("a", key(1));
+        cache.put("b", key(2));
+        cache.get("a");
+        // Least recently used first
+        final var evicted = ownedKeys(cache).get(0);
+
+        cache.put("c", key(3));
+
+        assertEquals(2, cache.size());
+        assertArrayEquals(new byte[32], evicted);
+        assertNull(cache.get("b"));
+        assertArrayEquals(key(1), cache.get("a"));
+        assertArrayEquals(key(3), cache.get("c"));
+    }
+
+    @Test
+    void zeroesReplacedAndClearedKeys() {
+        final var cache = create(10);
+        cache.put("a", key(1));
+        final var replaced = ownedKeys(cache).get(0);
+
+        cache.put("a", key(2));
+        assertArrayEquals(new byte[32], replaced);
+        assertArrayEquals(key(2), cache.get("a"));
+
+        final var cleared = ownedKeys(cache).get(0);
+        cache.clear();
+        assertArrayEquals(new byte[32], cleared);
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    void cachesNothingWithoutASize() {
+        final var cache = create(0);
+        cache.put("a", key(1));
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    private DataKeyCache create(final int maxSize) {
+        return new DataKeyCache(meterRegistry, maxSize, TTL, clock);
+    }
+
+    private double requests(final String result) {
+        return meterRegistry.get("certificate.data-key.cache.requests").tag("result", result)
+                .counter().count();
+    }
+
+    private static byte[] key(final int value) {
+        final var key = new byte[32];
+        Arrays.fill(key, (byte) value);
+        return key;
+    }
+
+    /**
+     * @return the key arrays the cache holds, least recently used first
+     */
+    private static List<byte[]> ownedKeys(final DataKeyCache cache) {
+        final var entries = (Map<?, ?>) ReflectionTestUtils.getField(cache, "entries");
+        return entries.values().stream()
+                .map(entry -> (byte[]) ReflectionTestUtils.getField(entry, "key"))
+                .toList();
+    }
+}
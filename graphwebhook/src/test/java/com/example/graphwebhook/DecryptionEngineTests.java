@@ -0,0 +1,178 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class DecryptionEngineTests {
+
+    private static final Logger log = LoggerFactory.getLogger(DecryptionEngineTests.class);
+    private static final int ITERATIONS = 2000;
+    private static final DecryptionEngine engine = new DecryptionEngine();
+
+    private static byte[] key;
+    private static String plaintext;
+    private static String data;
+    private static String signature;
+
+    @BeforeAll
+    static void encryptPlaintext() throws GeneralSecurityException {
+        key = new byte[32];
+        new SecureRandom().nextBytes(key);
+
+        final var builder = new StringBuilder("{\"id\":\"1\",\"body\":{\"content\":\"");
+        while (builder.length() < 4096) {
+            builder.append("Hello from a channel message \u00e9\u4e2d ");
+        }
+        plaintext = builder.append("\"}}").toString();
+
+        final var encrypted =
+                encrypt(plaintext.getBytes(StandardCharsets.UTF_8), "AES/CBC/PKCS5PADDING");
+        data = encrypted[0];
+        signature = encrypted[1];
+    }
+
+    @Test
+    void decryptsValidContent() {
+        final var decrypted = engine.decrypt(key, data, signature,
+                content -> new String(content.readAllBytes(), StandardCharsets.UTF_8));
+
+        assertEquals(plaintext, decrypted);
+    }
+
+    @Test
+    void rejectsInvalidSignature() {
+        final var tampered = Base64.getDecoder().decode(signature);
+        tampered[0] ^= 1;
+
+        assertNull(engine.decrypt(key, data, Base64.getEncoder().encodeToString(tampered),
+                content -> "read"));
+    }
+
+    @Test
+    void rejectsWrongKey() {
+        final var wrongKey = key.clone();
+        wrongKey[31] ^= 1;
+
+        assertNull(engine.decrypt(wrongKey, data, signature, content -> "read"));
+    }
+
+    @Test
+    void removesPaddingOfEveryLength() throws GeneralSecurityException {
+        // Lengths around the block size, including a whole block of padding
+        for (int length = 0; length <= 33; length++) {
+            final var content = "x".repeat(length);
+            final var encrypted =
+                    encrypt(content.getBytes(StandardCharsets.UTF_8), "AES/CBC/PKCS5PADDING");
+
+            assertEquals(content, engine.decrypt(key, encrypted[0], encrypted[1],
+                    stream -> new String(stream.readAllBytes(), StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    void rejectsInvalidPadding() throws GeneralSecurityException {
+        // Correctly signed, but the last byte of the block isn't a valid padding length
+        final var block = new byte[32];
+        Arrays.fill(block, (byte) 'x');
+        block[31] = 0;
+        final var zeroPadding = encrypt(block, "AES/CBC/NoPadding");
+        block[31] = 17;
+        final var tooLong = encrypt(block, "AES/CBC/NoPadding");
+        block[31] = 2;
+        final var inconsistent = encrypt(block, "AES/CBC/NoPadding");
+
+        assertNull(engine.decrypt(key, zeroPadding[0], zeroPadding[1], content -> "read"));
+        assertNull(engine.decrypt(key, tooLong[0], tooLong[1], content -> "read"));
+        assertNull(engine.decrypt(key, inconsistent[0], inconsistent[1], content -> "read"));
+    }
+
+    /**
+     * Reports the bytes allocated per message by the engine and by creating the Cipher and Mac,
+     * decoding into fresh arrays and building a String for every message. The numbers depend on
+     * the JVM and the JIT, so they're logged rather than asserted
+     */
+    @Test
+    @Tag("benchmark")
+    void benchmarkAllocationPerMessage() throws GeneralSecurityException {
+        final var threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final var allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported()
+                && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        // Warm up both paths so class loading and JIT don't skew the numbers
+        for (int i = 0; i < ITERATIONS; i++) {
+            decryptWithEngine();
+            decryptPerMessage();
+        }
+
+        long start = allocationBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            decryptWithEngine();
+        }
+        final long reused = (allocationBean.getCurrentThreadAllocatedBytes() - start) / ITERATIONS;
+
+        start = allocationBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            decryptPerMessage();
+        }
+        final long perMessage =
+                (allocationBean.getCurrentThreadAllocatedBytes() - start) / ITERATIONS;
+
+        log.info("Bytes allocated per message: reusable engine {}, per message {}", reused,
+                perMessage);
+    }
+
+    private static int decryptWithEngine() {
+        return engine.decrypt(key, data, signature, content -> content.available());
+    }
+
+    private static int decryptPerMessage() throws GeneralSecurityException {
+        final var encrypted = Base64.getDecoder().decode(data);
+        final var mac = Mac.getInstance("HMACSHA256");
+        mac.init(new SecretKeySpec(key, "HMACSHA256"));
+        if (!signature.equals(Base64.getEncoder().encodeToString(mac.doFinal(encrypted)))) {
+            throw new IllegalStateException("Invalid signature");
+        }
+        final var cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                new IvParameterSpec(Arrays.copyOf(key, 16)));
+        return new String(cipher.doFinal(encrypted), StandardCharsets.UTF_8).length();
+    }
+
+    /**
+     * @return the Base64 encrypted data and its signature
+     */
+    private static String[] encrypt(final byte[] content, final String transformation)
+            throws GeneralSecurityException {
+        final var cipher = Cipher.getInstance(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                new IvParameterSpec(Arrays.copyOf(key, 16)));
+        final var encrypted = cipher.doFinal(content);
+
+        final var mac = Mac.getInstance("HMACSHA256");
+        mac.init(new SecretKeySpec(key, "HMACSHA256"));
+        return new String[] {Base64.getEncoder().encodeToString(encrypted),
+                Base64.getEncoder().encodeToString(mac.doFinal(encrypted))};
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class DecryptionPoolTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // One thread and room for two decryptions queued or running
+    private final DecryptionPool pool = new DecryptionPool(meterRegistry, 1, 4, 2);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    void decryptsLargeBatchesInParallel() {
+        assertFalse(pool.isParallel(3));
+        assertTrue(pool.isParallel(4));
+        assertFalse(new DecryptionPool(meterRegistry, 1, 0, 2).isParallel(100));
+    }
+
+    @Test
+    void runsOnTheCallerOnceThePoolIsFull() throws Exception {
+        final var running = new AtomicInteger();
+        final var started = new CountDownLatch(1);
+        // One running and one queued takes every permit
+        final var first = pool.submit(() -> block(running, started));
+        final var second = pool.submit(() -> block(running, started));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final var caller = Thread.currentThread().getName();
+        final var third = pool.submit(() -> Thread.currentThread().getName());
+
+        assertTrue(third.isDone());
+        assertEquals(caller, third.get());
+        assertEquals(0, permits().availablePermits());
+        assertEquals(1, running.get());
+        assertEquals(1.0, meterRegistry.get("notifications.decryption.queued").gauge().value());
+        assertEquals(2.0, meterRegistry.get("notifications.decryption.parallel").counter().count());
+        assertEquals(1.0,
+                meterRegistry.get("notifications.decryption.caller-runs").counter().count());
+
+        // The permits come back once the pool's work is done
+        release.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS).startsWith("notification-decrypt-"));
+        assertTrue(second.get(5, TimeUnit.SECONDS).startsWith("notification-decrypt-"));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (permits().availablePermits() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, permits().availablePermits());
+        assertTrue(pool.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS)
+                .startsWith("notification-decrypt-"));
+    }
+
+    @Test
+    void failsTheFutureOfACallerRunTask() throws InterruptedException {
+        final var started = new CountDownLatch(1);
+        pool.submit(() -> block(new AtomicInteger(), started));
+        pool.submit(() -> block(new AtomicInteger(), started));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final var failed = pool.submit(() -> {
+            throw new IllegalStateException("Invalid signature");
+        });
+
+        final var error = assertThrows(ExecutionException.class, failed::get);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+    }
+
+    private Semaphore permits() {
+        return (Semaphore) ReflectionTestUtils.getField(pool, "permits");
+    }
+
+    private String block(final AtomicInteger running, final CountDownLatch started) {
+        running.incrementAndGet();
+        started.countDown();
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        return Thread.currentThread().getName();
+    }
+}
@@ -0,0 +1,60 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeltaLinkStoreTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reloadsFlushedDeltaLinks() throws IOException {
+        final var store = new DeltaLinkStore(directory.toString());
+        store.put("a", "https://graph.microsoft.com/v1.0/me/messages/delta?$deltatoken=a");
+        store.put("b", "https://graph.microsoft.com/v1.0/me/messages/delta?$skiptoken=b");
+        store.put("c", "https://graph.microsoft.com/v1.0/me/messages/delta?$deltatoken=c");
+        store.remove("c");
+        store.flush();
+
+        final var reloaded = new DeltaLinkStore(directory.toString());
+        reloaded.load();
+
+        assertEquals(Set.of("a", "b"), reloaded.subscriptionIds());
+        assertEquals(store.get("a"), reloaded.get("a"));
+        assertEquals(store.get("b"), reloaded.get("b"));
+        assertNull(reloaded.get("c"));
+    }
+
+    @Test
+    void keepsUnflushedChangesOutOfTheFile() throws IOException {
+        final var store = new DeltaLinkStore(directory.toString());
+        store.put("a", "https://graph.microsoft.com/v1.0/me/messages/delta?$deltatoken=a");
+        store.flush();
+        store.put("a", "https://graph.microsoft.com/v1.0/me/messages/delta?$deltatoken=a2");
+
+        final var reloaded = new DeltaLinkStore(directory.toString());
+        reloaded.load();
+
+        assertEquals("https://graph.microsoft.com/v1.0/me/messages/delta?$deltatoken=a",
+                reloaded.get("a"));
+    }
+
+    @Test
+    void rejectsUnrecognizedFiles() throws IOException {
+        Files.write(directory.resolve("delta-links"), new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+        assertThrows(IOException.class, () -> new DeltaLinkStore(directory.toString()).load());
+    }
+}
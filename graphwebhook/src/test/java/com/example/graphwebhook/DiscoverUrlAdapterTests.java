@@ -0,0 +1,172 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.auth0.jwk.Jwk;
+import com.auth0.jwk.SigningKeyNotFoundException;
+import com.auth0.jwk.UrlJwkProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class DiscoverUrlAdapterTests {
+
+    private static final Duration TTL = Duration.ofHours(24);
+    private static final Duration MIN_INTERVAL = Duration.ofSeconds(30);
+    private static final Duration GRACE = Duration.ofMinutes(5);
+
+    private static Map<String, Object> jwkValues;
+
+    private final TestClock clock = new TestClock();
+    private final FakeJwkProvider provider = new FakeJwkProvider();
+    private final DiscoverUrlAdapter adapter =
+            new DiscoverUrlAdapter(provider, TTL, MIN_INTERVAL, GRACE, clock);
+
+    @BeforeAll
+    static void generateKey() throws NoSuchAlgorithmException {
+        final var generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final var publicKey = (RSAPublicKey) generator.generateKeyPair().getPublic();
+        jwkValues = Map.of("kty", "RSA", "n", base64Url(publicKey.getModulus()), "e",
+                base64Url(publicKey.getPublicExponent()));
+    }
+
+    @Test
+    void servesCachedKeysWithoutRefetching() {
+        provider.keyIds = List.of("a", "b");
+        adapter.refresh();
+
+        final var key = adapter.getKey("a");
+
+        assertNotNull(key);
+        assertSame(key, adapter.getKey("a"));
+        assertNotNull(adapter.getKey("b"));
+        assertEquals(1, provider.fetches.get());
+    }
+
+    @Test
+    void unknownKeyIdsRefetchAtMostOncePerInterval() {
+        provider.keyIds = List.of("a");
+        adapter.refresh();
+        clock.advance(MIN_INTERVAL);
+
+        assertNull(adapter.getKey("bogus"));
+        assertNull(adapter.getKey("bogus"));
+        assertEquals(2, provider.fetches.get());
+
+        provider.keyIds = List.of("a", "new");
+        clock.advance(MIN_INTERVAL);
+        assertNotNull(adapter.getKey("new"));
+        assertEquals(3, provider.fetches.get());
+    }
+
+    @Test
+    void expiredKeysAreOnlyUsedDuringTheGracePeriod() {
+        provider.keyIds = List.of("a");
+        adapter.refresh();
+        provider.failing = true;
+
+        clock.advance(TTL.plusMinutes(1));
+        assertNotNull(adapter.getKey("a"));
+
+        clock.advance(GRACE);
+        assertNull(adapter.getKey("a"));
+    }
+
+    @Test
+    void keysRotatedOutAreRejectedOnceRefreshed() {
+        provider.keyIds = List.of("a");
+        adapter.refresh();
+
+        provider.keyIds = List.of("b");
+        clock.advance(TTL);
+
+        assertNull(adapter.getKey("a"));
+        assertNotNull(adapter.getKey("b"));
+    }
+
+    @Test
+    void freshKeysDontWaitForARunningFetch() throws Exception {
+        provider.keyIds = List.of("a");
+        adapter.refresh();
+
+        provider.fetching = new CountDownLatch(1);
+        provider.blocked = new CountDownLatch(1);
+        final var refresh = CompletableFuture.runAsync(adapter::refresh);
+        assertTrue(provider.fetching.await(5, TimeUnit.SECONDS));
+        try {
+            assertNotNull(CompletableFuture.supplyAsync(() -> adapter.getKey("a"))
+                    .get(5, TimeUnit.SECONDS));
+        } finally {
+            provider.blocked.countDown();
+        }
+        refresh.get(5, TimeUnit.SECONDS);
+    }
+
+    private static String base64Url(final BigInteger value) {
+        var bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Serves a fixed list of key IDs, all with the same public key
+     */
+    private static final class FakeJwkProvider extends UrlJwkProvider {
+        final AtomicInteger fetches = new AtomicInteger();
+        volatile CountDownLatch fetching = new CountDownLatch(0);
+        volatile List<String> keyIds = List.of();
+        volatile boolean failing;
+        volatile CountDownLatch blocked;
+
+        FakeJwkProvider() {
+            super("https://login.example.com");
+        }
+
+        @Override
+        public List<Jwk> getAll() throws SigningKeyNotFoundException {
+            fetches.incrementAndGet();
+            fetching.countDown();
+            if (blocked != null) {
+                try {
+                    blocked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new SigningKeyNotFoundException("Unavailable", null);
+            }
+            final List<Jwk> keys = new ArrayList<>();
+            for (final var keyId : keyIds) {
+                final var values = new HashMap<>(jwkValues);
+                values.put("kid", keyId);
+                keys.add(Jwk.fromValues(values));
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileSubscriptionStoreTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysJournalAfterRestart() throws Exception {
+        final var expiration = OffsetDateTime.of(2030, 1, 2, 3, 4, 5, 0, ZoneOffset.UTC);
+        var store = open(1000);
+        store.addRecord(new SubscriptionRecord("sub-1", "user-1", "state-1", "me/messages",
+                expiration, true));
+        store.addRecord(new SubscriptionRecord("sub-2", "user-2", "state-2"));
+        store.deleteSubscription("sub-2");
+        store.close();
+
+        store = open(1000);
+        try {
+            final var record = store.getSubscription("sub-1");
+            assertNotNull(record);
+            assertEquals("user-1", record.userId);
+            assertEquals("state-1", record.clientState);
+            assertEquals("me/messages", record.resource);
+            assertEquals(expiration, record.expirationDateTime);
+            assertTrue(record.includeResourceData);
+            assertNull(store.getSubscription("sub-2"));
+            assertEquals(1, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void replaysJournalOnTopOfSnapshot() throws Exception {
+        var store = open(1000);
+        store.addRecord(new SubscriptionRecord("sub-1", "user", "state"));
+        store.addRecord(new SubscriptionRecord("sub-2", "user", "state"));
+        store.close();
+
+        // Loading compacts, so sub-1 and sub-2 are in the snapshot from here on
+        store = open(1000);
+        store.deleteSubscription("sub-1");
+        store.addRecord(new SubscriptionRecord("sub-3", "user", "state"));
+        store.close();
+
+        store = open(1000);
+        try {
+            assertNull(store.getSubscription("sub-1"));
+            assertNotNull(store.getSubscription("sub-2"));
+            assertNotNull(store.getSubscription("sub-3"));
+            assertEquals(2, store.getSubscriptionsForUser("user").size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void ignoresTornFinalJournalEntry() throws Exception {
+        var store = open(1000);
+        store.addRecord(new SubscriptionRecord("sub-1", "user", "state"));
+        store.close();
+
+        // An add whose record was only partly written when the app stopped
+        Files.write(journals().get(0), new byte[] {'A', 0, 5, 's', 'u'},
+                StandardOpenOption.APPEND);
+
+        store = open(1000);
+        try {
+            assertNotNull(store.getSubscription("sub-1"));
+            assertEquals(1, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void compactsIntoSnapshotAndNewJournal() throws Exception {
+        var store = open(3);
+        final var firstJournal = journals();
+        for (int i = 0; i < 10; i++) {
+            store.addRecord(new SubscriptionRecord("sub-" + i, "user", "state"));
+        }
+        store.deleteSubscription("sub-0");
+        store.close();
+
+        final var journals = journals();
+        assertEquals(1, journals.size());
+        assertNotEquals(firstJournal, journals);
+        // Only the entries after the last compaction are left in the journal
+        assertTrue(Files.size(journals.get(0)) < 100);
+
+        store = open(3);
+        try {
+            assertEquals(9, store.size());
+            assertNull(store.getSubscription("sub-0"));
+            assertNotNull(store.getSubscription("sub-9"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void keepsJournalingWhenCompactionFails() throws Exception {
+        var store = open(2);
+        // The snapshot can't be written while a directory is in the way
+        final var blocker = directory.resolve("subscriptions.snapshot.tmp");
+        Files.createDirectory(blocker);
+        for (int i = 0; i < 5; i++) {
+            store.addRecord(new SubscriptionRecord("sub-" + i, "user", "state"));
+        }
+        store.close();
+        Files.delete(blocker);
+
+        store = open(2);
+        try {
+            assertEquals(5, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void staleJournalFromInterruptedCompactionIsNotReplayed() throws Exception {
+        var store = open(1000);
+        store.addRecord(new SubscriptionRecord("sub-1", "user", "state"));
+        store.close();
+        // Journal with the add, as it was before the next compaction
+        final var staleJournal = journals().get(0);
+        final var staleBytes = Files.readAllBytes(staleJournal);
+
+        store = open(1000);
+        store.deleteSubscription("sub-1");
+        store.close();
+        store = open(1000);
+        store.close();
+
+        // A crash after a snapshot was replaced but before the old journal was deleted
+        Files.write(staleJournal, staleBytes);
+
+        store = open(1000);
+        try {
+            assertNull(store.getSubscription("sub-1"));
+            assertEquals(0, store.size());
+            assertEquals(1, journals().size());
+        } finally {
+            store.close();
+        }
+    }
+
+    private FileSubscriptionStore open(final int compactThreshold) throws IOException {
+        final var store = new FileSubscriptionStore(directory.toString(), Duration.ofSeconds(1),
+                compactThreshold);
+        store.load();
+        return store;
+    }
+
+    private List<Path> journals() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files
+                    .filter(path -> path.getFileName().toString().startsWith("subscriptions.journal"))
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiException;
+import com.microsoft.kiota.authentication.AnonymousAuthenticationProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class GraphBatchFetcherTests {
+
+    private static final GraphServiceClient GRAPH_CLIENT =
+            new GraphServiceClient(new AnonymousAuthenticationProvider());
+
+    private final Queue<JsonObject> posts = new ConcurrentLinkedQueue<>();
+    private TestFetcher fetcher;
+
+    @AfterEach
+    void shutdown() {
+        if (fetcher != null) {
+            fetcher.shutdown();
+        }
+    }
+
+    @Test
+    void completesEachItemOfAMixedBatchOnItsOwn() throws Exception {
+        fetcher = new TestFetcher(3, request -> {
+            final var responses = new JsonArray();
+            for (final var item : request.getAsJsonArray("requests")) {
+                final var id = item.getAsJsonObject().get("id").getAsString();
+                final var url = item.getAsJsonObject().get("url").getAsString();
+                if (url.equals("/ok")) {
+                    responses.add(response(id, 200, null, body("ok")));
+                } else if (url.equals("/missing")) {
+                    responses.add(response(id, 404, null, null));
+                } else if (posts.size() == 1) {
+                    responses.add(response(id, 429, "0", null));
+                } else {
+                    responses.add(response(id, 200, null, body("throttled")));
+                }
+            }
+            return responses;
+        });
+
+        final var ok = fetcher.fetch("user", GRAPH_CLIENT, "ok");
+        final var missing = fetcher.fetch("user", GRAPH_CLIENT, "missing");
+        final var throttled = fetcher.fetch("user", GRAPH_CLIENT, "throttled");
+
+        assertEquals("ok", ok.get(5, TimeUnit.SECONDS).get("name").getAsString());
+        assertEquals("throttled",
+                throttled.get(5, TimeUnit.SECONDS).get("name").getAsString());
+        final var error = assertThrows(ExecutionException.class,
+                () -> missing.get(5, TimeUnit.SECONDS));
+        final var apiException = assertInstanceOf(ApiException.class, error.getCause());
+        assertEquals(404, apiException.getResponseStatusCode());
+
+        // All three went in the first batch, only the throttled one was sent again
+        assertEquals(2, posts.size());
+        assertEquals(1, List.copyOf(posts).get(1).getAsJsonArray("requests").size());
+    }
+
+    @Test
+    void honoursRetryAfterInSecondsAndAsADate() throws Exception {
+        final var past = ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(1)
+                .format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        for (final var retryAfter : List.of("0", past)) {
+            posts.clear();
+            fetcher = new TestFetcher(3, throttledOnce(retryAfter));
+
+            // Backing off would take a second, Graph asked for no delay at all
+            final var result = fetcher.fetch("user", GRAPH_CLIENT, "resource");
+            assertEquals("resource", result.get(500, TimeUnit.MILLISECONDS).get("name")
+                    .getAsString());
+            assertEquals(2, posts.size());
+            fetcher.shutdown();
+        }
+    }
+
+    @Test
+    void backsOffExponentiallyWithoutRetryAfter() throws Exception {
+        fetcher = new TestFetcher(3, throttledOnce(null));
+
+        final var result = fetcher.fetch("user", GRAPH_CLIENT, "resource");
+
+        Thread.sleep(500);
+        assertFalse(result.isDone());
+        assertEquals(1, posts.size());
+        assertEquals("resource", result.get(5, TimeUnit.SECONDS).get("name").getAsString());
+        assertEquals(2, posts.size());
+    }
+
+    @Test
+    void failsAfterMaxRetries() {
+        fetcher = new TestFetcher(2, request -> {
+            final var responses = new JsonArray();
+            responses.add(response("1", 503, "0", null));
+            return responses;
+        });
+
+        final var result = fetcher.fetch("user", GRAPH_CLIENT, "resource");
+
+        final var error = assertThrows(ExecutionException.class,
+                () -> result.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, error.getCause());
+        assertEquals(3, posts.size());
+    }
+
+    @Test
+    void shutdownFailsItemsWaitingForARetry() throws Exception {
+        fetcher = new TestFetcher(3, request -> {
+            final var responses = new JsonArray();
+            responses.add(response("1", 429, "60", null));
+            return responses;
+        });
+
+        final var result = fetcher.fetch("user", GRAPH_CLIENT, "resource");
+        while (posts.isEmpty()) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertFalse(result.isDone());
+
+        fetcher.shutdown();
+
+        assertTrue(result.isCompletedExceptionally());
+        assertThrows(ExecutionException.class,
+                () -> fetcher.fetch("user", GRAPH_CLIENT, "other").get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void completesConditionalGetsWithNullWhenNotModified() throws Exception {
+        fetcher = new TestFetcher(3, request -> {
+            final var responses = new JsonArray();
+            for (final var item : request.getAsJsonArray("requests")) {
+                final var id = item.getAsJsonObject().get("id").getAsString();
+                final var headers = item.getAsJsonObject().getAsJsonObject("headers");
+                final var etag = headers == null ? null : headers.get("If-None-Match");
+                responses.add(etag != null && etag.getAsString().equals("\"1\"")
+                        ? response(id, 304, null, null)
+                        : response(id, 200, null, body("changed")));
+            }
+            return responses;
+        });
+
+        final var unchanged = fetcher.fetchIfNoneMatch("user", GRAPH_CLIENT, "a", "\"1\"");
+        final var changed = fetcher.fetchIfNoneMatch("user", GRAPH_CLIENT, "b", "\"0\"");
+
+        assertNull(unchanged.get(5, TimeUnit.SECONDS));
+        assertEquals("changed", changed.get(5, TimeUnit.SECONDS).get("name").getAsString());
+        for (final var post : posts) {
+            for (final var item : post.getAsJsonArray("requests")) {
+                assertTrue(item.getAsJsonObject().getAsJsonObject("headers")
+                        .has("If-None-Match"));
+            }
+        }
+    }
+
+    @Test
+    void keepsTheEtagHeaderWithTheBody() throws Exception {
+        fetcher = new TestFetcher(3, request -> {
+            final var responses = new JsonArray();
+            for (final var item : request.getAsJsonArray("requests")) {
+                final var id = item.getAsJsonObject().get("id").getAsString();
+                final var url = item.getAsJsonObject().get("url").getAsString();
+                final var body = body("resource");
+                if (url.equals("/annotated")) {
+                    body.addProperty("@odata.etag", "W/\"body\"");
+                }
+                final var response = response(id, 200, null, body);
+                final var headers = new JsonObject();
+                headers.addProperty("etag", "W/\"header\"");
+                response.add("headers", headers);
+                responses.add(response);
+            }
+            return responses;
+        });
+
+        final var plain = fetcher.fetch("user", GRAPH_CLIENT, "plain");
+        final var annotated = fetcher.fetch("user", GRAPH_CLIENT, "annotated");
+
+        assertEquals("W/\"header\"",
+                plain.get(5, TimeUnit.SECONDS).get("@odata.etag").getAsString());
+        // Graph's own annotation wins over the header
+        assertEquals("W/\"body\"",
+                annotated.get(5, TimeUnit.SECONDS).get("@odata.etag").getAsString());
+    }
+
+    @Test
+    void measuresBodiesAsGraphSentThem() throws Exception {
+        final var body = "{ \"name\" : \"caf\u00e9\", \"tags\": [\"a\", {\"b\": \"}\"}] }";
+        final var response = "{\"responses\": [{\"body\": " + body + ", \"id\": \"1\", "
+                + "\"status\": 200}, {\"id\": \"2\", \"status\": 404}], \"other\": {}}";
+
+        final var sizes = GraphBatchFetcher.bodySizes(response.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(body.getBytes(StandardCharsets.UTF_8).length, sizes.get("1"));
+        assertEquals(0, sizes.get("2"));
+
+        fetcher = new TestFetcher(3, request -> {
+            final var responses = new JsonArray();
+            responses.add(response("1", 200, null, body("resource")));
+            return responses;
+        });
+        final var fetched = fetcher.fetchWithSize("user", GRAPH_CLIENT, "resource", null)
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(body("resource").toString().length(), fetched.bytes());
+    }
+
+    private Function<JsonObject, JsonArray> throttledOnce(final String retryAfter) {
+        return request -> {
+            final var responses = new JsonArray();
+            responses.add(posts.size() == 1 ? response("1", 429, retryAfter, null)
+                    : response("1", 200, null, body("resource")));
+            return responses;
+        };
+    }
+
+    private static JsonObject response(final String id, final int status,
+            final String retryAfter, final JsonObject body) {
+        final var response = new JsonObject();
+        response.addProperty("id", id);
+        response.addProperty("status", status);
+        if (retryAfter != null) {
+            final var headers = new JsonObject();
+            headers.addProperty("Retry-After", retryAfter);
+            response.add("headers", headers);
+        }
+        if (body != null) {
+            response.add("body", body);
+        }
+        return response;
+    }
+
+    private static JsonObject body(final String name) {
+        final var body = new JsonObject();
+        body.addProperty("name", name);
+        return body;
+    }
+
+    /**
+     * Answers $batch requests from a function instead of Graph
+     */
+    private final class TestFetcher extends GraphBatchFetcher {
+        private final Function<JsonObject, JsonArray> responder;
+
+        TestFetcher(final int maxRetries, final Function<JsonObject, JsonArray> responder) {
+            super(new GraphRateLimiter(new SimpleMeterRegistry(), false, 4, 4, 100, 16,
+                    Duration.ofSeconds(1), 3, Duration.ofMinutes(10)), new SimpleMeterRegistry(),
+                    Duration.ofMillis(20), 20, maxRetries, 2, true);
+            this.responder = responder;
+        }
+
+        @Override
+        byte[] post(final GraphServiceClient graphClient, final JsonObject body) {
+            posts.add(body);
+            final var response = new JsonObject();
+            response.add("responses", responder.apply(body));
+            return response.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+
+class GraphRateLimiterTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void readsRetryAfterSeconds() {
+        assertEquals(5000L, GraphRateLimiter.getRetryAfterMillis("5", 0));
+        assertEquals(0L, GraphRateLimiter.getRetryAfterMillis("-1", 0));
+    }
+
+    @Test
+    void readsRetryAfterDate() {
+        final var date = DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+
+        final long delay = GraphRateLimiter.getRetryAfterMillis(date, 0);
+
+        assertTrue(delay > 25000L && delay <= 30000L, "delay was " + delay);
+    }
+
+    @Test
+    void backsOffWithoutRetryAfter() {
+        assertEquals(1000L, GraphRateLimiter.getRetryAfterMillis(null, 0));
+        assertEquals(4000L, GraphRateLimiter.getRetryAfterMillis("soon", 2));
+        assertEquals(32000L, GraphRateLimiter.getRetryAfterMillis(null, 10));
+    }
+
+    @Test
+    void waitsForTheTokenBucketToRefill() throws IOException {
+        // A burst of 10 requests, then one every 100 ms
+        final var interceptor = create(10, 100, 0, Duration.ofSeconds(5))
+                .interceptor("mailbox", "tenant");
+        final var chain = new FakeChain(request -> response(request, 200, null));
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            interceptor.intercept(chain).close();
+        }
+        assertTrue(elapsedMillis(start) < 80);
+
+        interceptor.intercept(chain).close();
+        assertTrue(elapsedMillis(start) >= 80, "elapsed " + elapsedMillis(start));
+    }
+
+    @Test
+    void halvesConcurrencyWhenThrottledAndGrowsItBack() throws IOException {
+        final var interceptor = create(1000, 8, 0, Duration.ofSeconds(5))
+                .interceptor("mailbox", "tenant");
+        final var ok = new FakeChain(request -> response(request, 200, null));
+        interceptor.intercept(ok).close();
+        assertEquals(8.0, tenantConcurrency());
+
+        interceptor.intercept(new FakeChain(request -> response(request, 429, "0"))).close();
+        assertEquals(4.0, tenantConcurrency());
+
+        // Additive increase, about one per limit's worth of successes
+        for (int i = 0; i < 4; i++) {
+            interceptor.intercept(ok).close();
+        }
+        assertTrue(tenantConcurrency() > 4.5 && tenantConcurrency() < 5.0,
+                "limit " + tenantConcurrency());
+
+        for (int i = 0; i < 100; i++) {
+            interceptor.intercept(ok).close();
+        }
+        assertEquals(8.0, tenantConcurrency());
+    }
+
+    @Test
+    void pausesTheMailboxAfterA429() throws IOException {
+        final var limiter = create(1000, 8, 0, Duration.ofSeconds(5));
+        final var interceptor = limiter.interceptor("mailbox", "tenant");
+
+        interceptor.intercept(new FakeChain(request -> response(request, 429, "1"))).close();
+        assertEquals(1.0, meterRegistry.get("graph.ratelimit.mailboxes.paused").gauge().value());
+
+        // Another mailbox in the tenant isn't paused
+        long start = System.nanoTime();
+        limiter.interceptor("other", "tenant")
+                .intercept(new FakeChain(request -> response(request, 200, null))).close();
+        assertTrue(elapsedMillis(start) < 500);
+
+        start = System.nanoTime();
+        interceptor.intercept(new FakeChain(request -> response(request, 200, null))).close();
+        assertTrue(elapsedMillis(start) >= 900, "elapsed " + elapsedMillis(start));
+    }
+
+    @Test
+    void requeuesThrottledRequestsThenGivesUp() throws IOException {
+        final var limiter = create(1000, 8, 2, Duration.ofSeconds(5));
+        final var chain = new FakeChain(request -> response(request, 503, "0"));
+
+        try (var response = limiter.interceptor("mailbox", "tenant").intercept(chain)) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(3, chain.calls.get());
+        assertEquals(2.0, throttled("requeued"));
+        assertEquals(1.0, throttled("returned"));
+
+        // Not worth waiting for, so the caller gets the 429 right away
+        final var longWait = new FakeChain(request -> response(request, 429, "120"));
+        try (var response = limiter.interceptor("other", "tenant").intercept(longWait)) {
+            assertEquals(429, response.code());
+        }
+        assertEquals(1, longWait.calls.get());
+        assertEquals(2.0, throttled("returned"));
+
+        // Kiota's RetryHandler leaves these to the limiter
+        assertTrue(limiter.requeues(429));
+        assertTrue(limiter.requeues(503));
+        assertFalse(limiter.requeues(504));
+        assertFalse(new GraphRateLimiter(meterRegistry, false, 10, 1, 10, 1,
+                Duration.ofSeconds(1), 3, Duration.ofMinutes(10)).requeues(429));
+    }
+
+    @Test
+    void limitsConcurrencyAcrossATenantsMailboxes() throws Exception {
+        final var limiter = new GraphRateLimiter(meterRegistry, true, 1000, 4, 1000, 1,
+                Duration.ofMillis(200), 3, Duration.ofMinutes(10));
+        final var inFlight = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final var blocking = new FakeChain(request -> {
+            inFlight.countDown();
+            await(release);
+            return response(request, 200, null);
+        });
+
+        final var first = CompletableFuture.runAsync(() -> {
+            try {
+                limiter.interceptor("first", "tenant").intercept(blocking).close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+            final var ok = new FakeChain(request -> response(request, 200, null));
+
+            // The tenant's only slot is taken, whichever mailbox asks
+            final var error = assertThrows(IOException.class,
+                    () -> limiter.interceptor("second", "tenant").intercept(ok));
+            assertTrue(error.getMessage().contains("tenant"));
+            limiter.interceptor("third", "other-tenant").intercept(ok).close();
+        } finally {
+            release.countDown();
+        }
+        first.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void forgetsIdleMailboxesAndTheirTenants() throws Exception {
+        final var limiter = new GraphRateLimiter(meterRegistry, true, 1000, 8, 1000, 8,
+                Duration.ofSeconds(5), 3, Duration.ofMillis(1));
+        final var interceptor = limiter.interceptor("mailbox", "tenant");
+        interceptor.intercept(new FakeChain(request -> response(request, 200, null))).close();
+
+        // A request inside a $batch throttles the mailbox and backs off its tenant
+        limiter.onThrottled("mailbox", 1);
+        assertEquals(1.0, throttled("batch"));
+        assertEquals(4.0, tenantConcurrency());
+
+        Thread.sleep(20);
+        limiter.evictIdle();
+        assertEquals(0.0, meterRegistry.get("graph.ratelimit.mailboxes.tracked").gauge().value());
+
+        // Nothing is kept for a mailbox that isn't making requests
+        limiter.onThrottled("mailbox", 1);
+        assertEquals(0.0, meterRegistry.get("graph.ratelimit.mailboxes.tracked").gauge().value());
+        assertEquals(4.0, tenantConcurrency());
+
+        // The cached interceptor still knows the mailbox's tenant
+        interceptor.intercept(new FakeChain(request -> response(request, 200, null))).close();
+        final double concurrency = tenantConcurrency();
+        limiter.onThrottled("mailbox", 1);
+        assertEquals(concurrency / 2, tenantConcurrency());
+    }
+
+    private GraphRateLimiter create(final double rate, final int concurrency,
+            final int maxRequeues, final Duration maxWait) {
+        return new GraphRateLimiter(meterRegistry, true, rate, concurrency, rate, concurrency,
+                maxWait, maxRequeues, Duration.ofMinutes(10));
+    }
+
+    private double tenantConcurrency() {
+        return meterRegistry.get("graph.ratelimit.tenant.concurrency").tag("tenant", "tenant")
+                .gauge().value();
+    }
+
+    private double throttled(final String outcome) {
+        return meterRegistry.get("graph.ratelimit.throttled").tag("outcome", outcome).counter()
+                .count();
+    }
+
+    private static long elapsedMillis(final long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static Response response(final Request request, final int code,
+            final String retryAfter) {
+        final var builder = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("")
+                .body(ResponseBody.create("", null));
+        if (retryAfter != null) {
+            builder.header("Retry-After", retryAfter);
+        }
+        return builder.build();
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Answers requests from a function instead of the network
+     */
+    private static final class FakeChain implements Interceptor.Chain {
+        final AtomicInteger calls = new AtomicInteger();
+        final Function<Request, Response> responder;
+        final Request request = new Request.Builder()
+                .url("https://graph.microsoft.com/v1.0/me/messages").build();
+
+        FakeChain(final Function<Request, Response> responder) {
+            this.responder = responder;
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public Response proceed(final Request request) {
+            calls.incrementAndGet();
+            return responder.apply(request);
+        }
+
+        @Override
+        public Connection connection() {
+            return null;
+        }
+
+        @Override
+        public Call call() {
+            return null;
+        }
+
+        @Override
+        public int connectTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withConnectTimeout(final int timeout, final TimeUnit unit) {
+            return this;
+        }
+
+        @Override
+        public int readTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withReadTimeout(final int timeout, final TimeUnit unit) {
+            return this;
+        }
+
+        @Override
+        public int writeTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withWriteTimeout(final int timeout, final TimeUnit unit) {
+            return this;
+        }
+    }
+}
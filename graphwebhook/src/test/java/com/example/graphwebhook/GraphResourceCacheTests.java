@@ -0,0 +1,216 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import com.example.graphwebhook.GraphBatchFetcher.Fetched;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.authentication.AnonymousAuthenticationProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class GraphResourceCacheTests {
+
+    private static final GraphServiceClient GRAPH_CLIENT =
+            new GraphServiceClient(new AnonymousAuthenticationProvider());
+    private static final Duration TTL = Duration.ofSeconds(30);
+
+    private final TestClock clock = new TestClock();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final FakeFetcher fetcher = new FakeFetcher();
+
+    @AfterEach
+    void shutdown() {
+        fetcher.shutdown();
+    }
+
+    @Test
+    void servesCachedBodiesWithinTheTtl() {
+        final var cache = create(10);
+        fetcher.bodies.put("a", body("a", "\"1\""));
+
+        final var first = fetch(cache, "a");
+        clock.advance(TTL.minusSeconds(1));
+        final var second = fetch(cache, "a");
+
+        assertSame(first, second);
+        assertEquals(List.of("a"), fetcher.requests);
+        assertEquals(1.0, requests("hit"));
+        assertEquals(1.0, requests("miss"));
+    }
+
+    @Test
+    void keepsTheBodyWhenGraphSaysItIsNotModified() {
+        final var cache = create(10);
+        fetcher.bodies.put("a", body("a", "\"1\""));
+        final var first = fetch(cache, "a");
+
+        clock.advance(TTL);
+        fetcher.bodies.remove("a");
+        assertSame(first, fetch(cache, "a"));
+        assertEquals(List.of("a", "a If-None-Match \"1\""), fetcher.requests);
+        assertEquals(1.0, requests("revalidated"));
+
+        // Good for another TTL
+        clock.advance(TTL.minusSeconds(1));
+        assertSame(first, fetch(cache, "a"));
+        assertEquals(2, fetcher.requests.size());
+    }
+
+    @Test
+    void replacesTheBodyWhenItsEtagChanged() {
+        final var cache = create(10);
+        fetcher.bodies.put("a", body("a", "\"1\""));
+        fetch(cache, "a");
+
+        clock.advance(TTL);
+        final var changed = body("a", "\"2\"");
+        fetcher.bodies.put("a", changed);
+        assertSame(changed, fetch(cache, "a"));
+
+        clock.advance(TTL);
+        fetcher.bodies.remove("a");
+        assertSame(changed, fetch(cache, "a"));
+        assertEquals(List.of("a", "a If-None-Match \"1\"", "a If-None-Match \"2\""),
+                fetcher.requests);
+    }
+
+    @Test
+    void downloadsBodiesWithoutAnEtagAgain() {
+        final var cache = create(10);
+        fetcher.bodies.put("a", body("a", null));
+        fetch(cache, "a");
+
+        clock.advance(TTL);
+        fetch(cache, "a");
+
+        assertEquals(List.of("a", "a"), fetcher.requests);
+        assertEquals(2.0, requests("miss"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedBody() {
+        final var cache = create(2);
+        for (final var path : List.of("a", "b", "c")) {
+            fetcher.bodies.put(path, body(path, "\"1\""));
+        }
+        fetch(cache, "a");
+        fetch(cache, "b");
+        fetch(cache, "a");
+
+        // b was used least recently, so c takes its place
+        fetch(cache, "c");
+        fetch(cache, "a");
+        fetch(cache, "b");
+
+        assertEquals(List.of("a", "b", "c", "b"), fetcher.requests);
+        assertEquals(2.0, meterRegistry.get("graph.cache.size").gauge().value());
+    }
+
+    @Test
+    void keepsEachPrincipalsBodySeparate() {
+        final var cache = create(10);
+        fetcher.bodies.put("me/messages/a", body("mine", "\"1\""));
+        fetcher.bodies.put("other:me/messages/a", body("theirs", "\"1\""));
+
+        assertEquals("mine", fetch(cache, "me/messages/a").get("name").getAsString());
+        assertEquals("theirs", cache.fetch("other", GRAPH_CLIENT, "me/messages/a").join()
+                .get("name").getAsString());
+        assertEquals("mine", fetch(cache, "me/messages/a").get("name").getAsString());
+
+        assertEquals(List.of("me/messages/a", "other:me/messages/a"), fetcher.requests);
+        assertEquals(2.0, meterRegistry.get("graph.cache.size").gauge().value());
+    }
+
+    @Test
+    void countsTheBytesGraphSentAsSaved() {
+        final var cache = create(10);
+        final var body = body("a", "\"1\"");
+        fetcher.bodies.put("a", body);
+
+        fetch(cache, "a");
+        fetch(cache, "a");
+        clock.advance(TTL);
+        fetcher.bodies.remove("a");
+        fetch(cache, "a");
+
+        assertEquals(2.0 * body.toString().length(),
+                meterRegistry.get("graph.cache.bytes-saved").counter().count());
+    }
+
+    @Test
+    void passesRequestsThroughWhenDisabled() {
+        final var cache = new GraphResourceCache(fetcher, meterRegistry, false, 10, TTL, clock);
+        fetcher.bodies.put("a", body("a", "\"1\""));
+
+        fetch(cache, "a");
+        fetch(cache, "a");
+
+        assertEquals(List.of("a", "a"), fetcher.requests);
+    }
+
+    private GraphResourceCache create(final int maxEntries) {
+        return new GraphResourceCache(fetcher, meterRegistry, true, maxEntries, TTL, clock);
+    }
+
+    private double requests(final String result) {
+        return meterRegistry.get("graph.cache.requests").tag("result", result).counter().count();
+    }
+
+    private static JsonObject fetch(final GraphResourceCache cache, final String path) {
+        return cache.fetch("user", GRAPH_CLIENT, path).join();
+    }
+
+    private static JsonObject body(final String name, final String etag) {
+        final var body = new JsonObject();
+        body.addProperty("name", name);
+        if (etag != null) {
+            body.addProperty("@odata.etag", etag);
+        }
+        return body;
+    }
+
+    /**
+     * Answers from a map of bodies, a conditional GET for a path that isn't in it is not modified
+     */
+    private static final class FakeFetcher extends GraphBatchFetcher {
+        final Map<String, JsonObject> bodies = new ConcurrentHashMap<>();
+        final List<String> requests = new CopyOnWriteArrayList<>();
+
+        FakeFetcher() {
+            super(new GraphRateLimiter(new SimpleMeterRegistry(), false, 4, 4, 100, 16,
+                    Duration.ofSeconds(1), 3, Duration.ofMinutes(10)), new SimpleMeterRegistry(),
+                    Duration.ofMillis(20), 20, 3, 1, true);
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> fetch(final String principal,
+                final GraphServiceClient graphClient, final String resourcePath) {
+            return fetchWithSize(principal, graphClient, resourcePath, null)
+                    .thenApply(Fetched::body);
+        }
+
+        @Override
+        CompletableFuture<Fetched> fetchWithSize(final String principal,
+                final GraphServiceClient graphClient, final String resourcePath,
+                final String etag) {
+            final var path = principal.equals("user") ? resourcePath
+                    : principal + ":" + resourcePath;
+            requests.add(etag == null ? path : path + " If-None-Match " + etag);
+            final var body = bodies.get(path);
+            return CompletableFuture.completedFuture(body == null ? null
+                    : new Fetched(body, body.toString().length()));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class HashedTimingWheelTests {
+
+    @Test
+    void itemsComeDueInTheTickOfTheirDeadline() {
+        final var wheel = new HashedTimingWheel<String>(100, 8, 0);
+        wheel.schedule("a", 150);
+        wheel.schedule("b", 200);
+        wheel.schedule("c", 201);
+
+        assertTrue(wheel.advance(199).isEmpty());
+        assertEquals(List.of("a", "b"), sorted(wheel.advance(200)));
+        assertTrue(wheel.advance(299).isEmpty());
+        assertEquals(List.of("c"), wheel.advance(300));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void deadlinesBeyondOneRevolutionWaitForTheirRound() {
+        final var wheel = new HashedTimingWheel<String>(100, 4, 0);
+        // Same slot as 200, but three revolutions later
+        wheel.schedule("later", 1400);
+        wheel.schedule("soon", 200);
+
+        assertEquals(List.of("soon"), wheel.advance(200));
+        assertTrue(wheel.advance(1399).isEmpty());
+        assertEquals(1, wheel.size());
+        assertEquals(List.of("later"), wheel.advance(1400));
+    }
+
+    @Test
+    void pastDeadlinesComeDueOnTheNextTick() {
+        final var wheel = new HashedTimingWheel<String>(100, 4, 0);
+        wheel.advance(1000);
+        wheel.schedule("late", 10);
+
+        assertEquals(List.of("late"), wheel.advance(1100));
+    }
+
+    @Test
+    void catchesUpAfterMissedTicks() {
+        final var wheel = new HashedTimingWheel<Integer>(10, 16, 0);
+        for (int i = 0; i < 1000; i++) {
+            wheel.schedule(i, i * 7L);
+        }
+
+        final var due = wheel.advance(7000);
+
+        assertEquals(1000, due.size());
+        assertEquals(0, wheel.size());
+    }
+
+    private static List<String> sorted(final List<String> items) {
+        final var copy = new ArrayList<>(items);
+        copy.sort(null);
+        return copy;
+    }
+}
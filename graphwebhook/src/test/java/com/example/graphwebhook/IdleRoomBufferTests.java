@@ -0,0 +1,122 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import com.example.graphwebhook.IdleRoomBuffer.Policy;
+import com.example.graphwebhook.notifications.NotificationItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+class IdleRoomBufferTests {
+
+    private static final String SUBSCRIPTION = "sub";
+
+    @Test
+    void defersNotificationsUntilAClientJoins() {
+        final var buffer = create(Policy.DEFER, 2);
+        final var first = notification("1");
+        final var second = notification("2");
+        final var third = notification("3");
+
+        assertTrue(buffer.skip(SUBSCRIPTION, first, () -> false));
+        assertTrue(buffer.skip(SUBSCRIPTION, second, () -> false));
+        assertTrue(buffer.skip(SUBSCRIPTION, third, () -> false));
+
+        // Full, so the oldest was dropped
+        assertEquals(List.of(second, third), buffer.drain(SUBSCRIPTION));
+        assertEquals(List.of(), buffer.drain(SUBSCRIPTION));
+    }
+
+    @Test
+    void processesNotificationsForRoomsWithClients() {
+        for (final var policy : Policy.values()) {
+            final var buffer = create(policy, 10);
+
+            assertFalse(buffer.skip(SUBSCRIPTION, notification("1"), () -> true));
+            assertEquals(List.of(), buffer.drain(SUBSCRIPTION));
+        }
+    }
+
+    @Test
+    void clientJoiningAfterTheFirstCheckGetsTheNotificationProcessed() {
+        final var buffer = create(Policy.DEFER, 10);
+        final var checks = new int[1];
+
+        // The room was empty on the lane's first check, then the client joined and drained
+        assertFalse(buffer.skip(SUBSCRIPTION, notification("1"), () -> checks[0]++ > 0));
+        assertEquals(List.of(), buffer.drain(SUBSCRIPTION));
+    }
+
+    @Test
+    void drainWaitsForANotificationBeingDeferred() throws Exception {
+        final var buffer = create(Policy.DEFER, 10);
+        final var notification = notification("1");
+        final var checking = new CountDownLatch(2);
+        final var joined = new CountDownLatch(1);
+
+        // Defer on a lane while the room is still empty, but stall inside the buffer's check
+        final var skipped = CompletableFuture.supplyAsync(() -> buffer.skip(SUBSCRIPTION,
+                notification, () -> {
+                    checking.countDown();
+                    if (checking.getCount() == 0) {
+                        await(joined);
+                    }
+                    return false;
+                }));
+        assertTrue(checking.await(5, TimeUnit.SECONDS));
+
+        // A client joins and drains the room while the lane is between check and buffer
+        final var drained = CompletableFuture.supplyAsync(() -> buffer.drain(SUBSCRIPTION));
+        Thread.sleep(100);
+        joined.countDown();
+
+        assertTrue(skipped.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of(notification), drained.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void movesDeferredNotificationsToTheReplacement() {
+        final var buffer = create(Policy.DEFER, 3);
+        final var first = notification("1");
+        final var second = notification("2");
+        final var third = notification("3");
+        final var replacement = notification("4");
+        buffer.skip(SUBSCRIPTION, first, () -> false);
+        buffer.skip(SUBSCRIPTION, second, () -> false);
+        buffer.skip(SUBSCRIPTION, third, () -> false);
+        buffer.skip("replacement", replacement, () -> false);
+
+        buffer.move(SUBSCRIPTION, "replacement");
+
+        // Older notifications first, and only as many as fit
+        assertEquals(List.of(), buffer.drain(SUBSCRIPTION));
+        assertEquals(List.of(second, third, replacement), buffer.drain("replacement"));
+    }
+
+    private static IdleRoomBuffer create(final Policy policy, final int size) {
+        return new IdleRoomBuffer(new SimpleMeterRegistry(), policy, size, Duration.ofMinutes(10));
+    }
+
+    private static NotificationItem notification(final String id) {
+        return new NotificationItem(SUBSCRIPTION, "state", "created", "Users/u/Messages/" + id,
+                id, null, null, null, null);
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
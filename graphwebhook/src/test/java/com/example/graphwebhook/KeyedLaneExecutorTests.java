@@ -0,0 +1,104 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class KeyedLaneExecutorTests {
+
+    private final BlockingQueue<String> emitted = new LinkedBlockingQueue<>();
+    private KeyedLaneExecutor lanes;
+
+    @AfterEach
+    void shutdown() {
+        lanes.shutdown();
+    }
+
+    @Test
+    void emitsInSubmissionOrderPerKey() throws Exception {
+        lanes = create(Duration.ofMinutes(1));
+        final var first = new CompletableFuture<Runnable>();
+        final var second = new CompletableFuture<Runnable>();
+
+        lanes.submit("sub", () -> first);
+        lanes.submit("sub", () -> second);
+        lanes.submit("sub", () -> CompletableFuture.completedFuture(emit("third")));
+        second.complete(emit("second"));
+        first.complete(emit("first"));
+
+        assertEquals(List.of("first", "second", "third"), take(3));
+        waitForIdleChains();
+    }
+
+    @Test
+    void stalledKeyDoesNotHoldUpOthersOnItsLane() throws Exception {
+        // One lane, so both subscriptions share it
+        lanes = create(Duration.ofMillis(500));
+        final var stalled = new CompletableFuture<Runnable>();
+
+        lanes.submit("stalled", () -> stalled);
+        lanes.submit("stalled", () -> CompletableFuture.completedFuture(emit("stalled-next")));
+        lanes.submit("other", () -> CompletableFuture.completedFuture(emit("other")));
+
+        assertEquals("other", emitted.poll(250, TimeUnit.MILLISECONDS));
+        // The stalled fetch is given up on, letting its subscription move on
+        assertEquals("stalled-next", emitted.poll(5, TimeUnit.SECONDS));
+        stalled.complete(emit("too late"));
+        waitForIdleChains();
+        assertTrue(emitted.isEmpty());
+    }
+
+    @Test
+    void failedTasksDontBreakTheChain() throws Exception {
+        lanes = create(Duration.ofMinutes(1));
+
+        lanes.submit("sub", () -> {
+            throw new IllegalStateException("Processing failed");
+        });
+        lanes.submit("sub", () -> CompletableFuture.failedFuture(new Exception("Fetch failed")));
+        lanes.submit("sub", () -> CompletableFuture.completedFuture(emit("after")));
+
+        assertEquals(List.of("after"), take(1));
+    }
+
+    private KeyedLaneExecutor create(final Duration emitTimeout) {
+        return new KeyedLaneExecutor(new SimpleMeterRegistry(), 1, 10, emitTimeout);
+    }
+
+    private Runnable emit(final String value) {
+        return () -> emitted.add(value);
+    }
+
+    private List<String> take(final int count) throws InterruptedException {
+        final List<String> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final var value = emitted.poll(5, TimeUnit.SECONDS);
+            if (value == null) {
+                break;
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    private void waitForIdleChains() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (lanes.chainedKeys() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, lanes.chainedKeys());
+    }
+}
@@ -0,0 +1,302 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.example.graphwebhook.NotificationPipeline.RejectionPolicy;
+import com.example.graphwebhook.notifications.NotificationEnvelope;
+import com.example.graphwebhook.notifications.NotificationItem;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.authentication.AnonymousAuthenticationProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class LifecycleNotificationHandlerTests {
+
+    private static final String RESOURCE = "me/mailfolders/inbox/messages";
+    private static final String EXPIRATION = "2024-01-01T01:00:00Z";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SubscriptionStoreService store = new SubscriptionStoreService();
+    private final FakeProcessor processor = new FakeProcessor();
+    private final FakeScheduler scheduler = new FakeScheduler(store);
+    private final FakeCatchUp catchUp = new FakeCatchUp(store, processor);
+    private final AtomicInteger posts = new AtomicInteger();
+    private int postStatus = 201;
+    private final LifecycleNotificationHandler handler = new LifecycleNotificationHandler(store,
+            scheduler, new SubscriptionFactory(new CertificateStoreService(), "https://host"),
+            new TestGraphClientHelper(this::graphClient), processor, catchUp,
+            new NotificationDeduplicator(meterRegistry, Duration.ofMinutes(10), 1000),
+            tokenHelper(), meterRegistry, 1, 10);
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        handler.shutdown();
+        catchUp.shutdown();
+        processor.shutdown();
+    }
+
+    @Test
+    void reauthorizesByRenewing() throws InterruptedException {
+        final var subscription = add("sub");
+
+        handle(lifecycle("sub", "reauthorizationRequired"));
+
+        assertEquals(List.of(subscription), scheduler.renewed);
+    }
+
+    @Test
+    void dropsRepeatedLifecycleNotifications() throws InterruptedException {
+        add("sub");
+
+        handle(lifecycle("sub", "reauthorizationRequired"),
+                lifecycle("sub", "reauthorizationRequired"));
+
+        assertEquals(1, scheduler.renewed.size());
+    }
+
+    @Test
+    void retriesAFailedReauthorizationWhenRedelivered() throws InterruptedException {
+        add("sub");
+        scheduler.succeed = false;
+
+        handle(lifecycle("sub", "reauthorizationRequired"),
+                lifecycle("sub", "reauthorizationRequired"));
+
+        assertEquals(2, scheduler.renewed.size());
+        assertEquals(2, meterRegistry.get("notifications.lifecycle.latency")
+                .tag("event", "reauthorizationRequired").tag("result", "failure").timer().count());
+    }
+
+    @Test
+    void recreatesRemovedSubscriptions() throws InterruptedException {
+        add("sub");
+
+        handle(lifecycle("sub", "subscriptionRemoved"));
+
+        assertEquals(1, posts.get());
+        assertNull(store.getSubscription("sub"));
+        final var replacement = store.getSubscription("replacement");
+        assertNotNull(replacement);
+        assertEquals("user", replacement.userId);
+        assertEquals(RESOURCE, replacement.resource);
+        assertEquals(List.of(replacement), scheduler.scheduled);
+        assertEquals(List.of("sub->replacement"), processor.movedRooms);
+        assertEquals(List.of("sub->replacement"), catchUp.movedDeltaLinks);
+        assertEquals(List.of(replacement), catchUp.triggered);
+    }
+
+    @Test
+    void retriesAFailedRecreationWhenRedelivered() throws InterruptedException {
+        add("sub");
+        postStatus = 500;
+
+        handle(lifecycle("sub", "subscriptionRemoved"), lifecycle("sub", "subscriptionRemoved"));
+
+        assertEquals(2, posts.get());
+        assertNotNull(store.getSubscription("sub"));
+        assertEquals(List.of(), processor.movedRooms);
+    }
+
+    @Test
+    void listenerSendsLifecycleNotificationsPastThePipeline() throws InterruptedException {
+        add("sub");
+        final var pipeline = new FakePipeline(processor, meterRegistry);
+        final var controller = new ListenController();
+        ReflectionTestUtils.setField(controller, "notificationPipeline", pipeline);
+        ReflectionTestUtils.setField(controller, "lifecycleHandler", handler);
+        ReflectionTestUtils.setField(controller, "preFilter",
+                new NotificationPreFilter(store, meterRegistry, true));
+        ReflectionTestUtils.setField(controller, "streamingParser", true);
+
+        final var body = """
+                {"value": [
+                  {"subscriptionId": "sub", "clientState": "state",
+                   "lifecycleEvent": "reauthorizationRequired",
+                   "subscriptionExpirationDateTime": "%s"},
+                  {"subscriptionId": "sub", "clientState": "state", "changeType": "created",
+                   "resource": "Users/u/Messages/1", "resourceData": {"id": "1"}}
+                ]}""".formatted(EXPIRATION);
+        final var response = controller.handleNotification(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        handler.shutdown();
+        pipeline.shutdown();
+
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals(1, scheduler.renewed.size());
+        assertEquals(1, pipeline.submitted.size());
+        final var items = pipeline.submitted.get(0).items();
+        assertEquals(1, items.size());
+        assertNull(items.get(0).lifecycleEvent());
+    }
+
+    private SubscriptionRecord add(final String subscriptionId) {
+        final var record = new SubscriptionRecord(subscriptionId, "user", "state", RESOURCE,
+                OffsetDateTime.parse(EXPIRATION), false);
+        store.addRecord(record);
+        return record;
+    }
+
+    /**
+     * Hands the notifications to the handler and waits for its worker to finish them
+     */
+    private void handle(final NotificationItem... notifications) throws InterruptedException {
+        for (final var notification : notifications) {
+            handler.submit(new NotificationEnvelope(List.of(), List.of(notification)),
+                    System.nanoTime());
+        }
+        handler.shutdown();
+    }
+
+    private static NotificationItem lifecycle(final String subscriptionId, final String event) {
+        return new NotificationItem(subscriptionId, "state", null, null, null, null, event,
+                EXPIRATION, null);
+    }
+
+    /**
+     * Answers POST /subscriptions with a replacement subscription, or an error
+     */
+    private GraphServiceClient graphClient() {
+        final var httpClient = new OkHttpClient.Builder().addInterceptor(chain -> {
+            posts.incrementAndGet();
+            final var body = postStatus == 201
+                    ? """
+                            {"id": "replacement", "resource": "%s", "clientState": "state",
+                             "expirationDateTime": "%s"}""".formatted(RESOURCE,
+                            OffsetDateTime.now(ZoneOffset.UTC).plusDays(1))
+                    : "{\"error\": {\"code\": \"InternalServerError\"}}";
+            return new Response.Builder()
+                    .request(chain.request())
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(postStatus)
+                    .message("")
+                    .body(ResponseBody.create(body, MediaType.get("application/json")))
+                    .build();
+        }).build();
+        return new GraphServiceClient(new AnonymousAuthenticationProvider(), httpClient);
+    }
+
+    private static TokenHelper tokenHelper() {
+        try {
+            return new TokenHelper(new DiscoverUrlAdapter(
+                    "https://login.microsoftonline.com/common/discovery/v2.0/keys",
+                    Duration.ofHours(24), Duration.ofSeconds(30), Duration.ofMinutes(5)),
+                    new ValidatedTokenCache(new SimpleMeterRegistry(), 10,
+                            ValidatedTokenCache.EvictionPolicy.LRU),
+                    "client", "tenant");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records renewals instead of sending them
+     */
+    private static final class FakeScheduler extends SubscriptionRenewalScheduler {
+        final List<SubscriptionRecord> renewed = new CopyOnWriteArrayList<>();
+        final List<SubscriptionRecord> scheduled = new CopyOnWriteArrayList<>();
+        volatile boolean succeed = true;
+
+        FakeScheduler(final SubscriptionStore store) {
+            super(store, new TestGraphClientHelper(), new GraphBatchFetcher(
+                    new GraphRateLimiter(new SimpleMeterRegistry(), false, 4, 4, 100, 16,
+                            Duration.ofSeconds(1), 3, Duration.ofMinutes(10)),
+                    new SimpleMeterRegistry(), Duration.ofMillis(20), 20, 3, 1, true),
+                    new SimpleMeterRegistry(), false, Duration.ofSeconds(1), 64,
+                    Duration.ofMinutes(5), 0.1, Duration.ofMinutes(1), 10, new TestClock());
+        }
+
+        @Override
+        public void schedule(final SubscriptionRecord record) {
+            scheduled.add(record);
+        }
+
+        @Override
+        public boolean renewNow(final SubscriptionRecord record) {
+            renewed.add(record);
+            return succeed;
+        }
+    }
+
+    /**
+     * Records catch-up runs instead of paging
+     */
+    private static final class FakeCatchUp extends CatchUpEngine {
+        final List<SubscriptionRecord> triggered = new CopyOnWriteArrayList<>();
+        final List<String> movedDeltaLinks = new CopyOnWriteArrayList<>();
+
+        FakeCatchUp(final SubscriptionStore store, final NotificationProcessor processor) {
+            super(store, new DeltaLinkStore("target/delta-links-test"), new TestGraphClientHelper(),
+                    new PayloadProjections(false, List.of(), List.of(), List.of()), processor,
+                    new NotificationDeduplicator(new SimpleMeterRegistry(), Duration.ofMinutes(10),
+                            1000),
+                    new SimpleMeterRegistry(), false, false, 1, 10, 10);
+        }
+
+        @Override
+        public void trigger(final SubscriptionRecord subscription) {
+            triggered.add(subscription);
+        }
+
+        @Override
+        public void moveDeltaLink(final String fromSubscriptionId, final String toSubscriptionId) {
+            movedDeltaLinks.add(fromSubscriptionId + "->" + toSubscriptionId);
+        }
+    }
+
+    /**
+     * Records moved rooms instead of moving Socket.IO clients
+     */
+    private static final class FakeProcessor extends NotificationProcessor {
+        final List<String> movedRooms = new CopyOnWriteArrayList<>();
+
+        FakeProcessor() {
+            super(new SocketIOServer(new Configuration()));
+        }
+
+        @Override
+        public void moveRoom(final String fromSubscriptionId, final String toSubscriptionId) {
+            movedRooms.add(fromSubscriptionId + "->" + toSubscriptionId);
+        }
+    }
+
+    /**
+     * Records what reaches the pipeline instead of processing it
+     */
+    private static final class FakePipeline extends NotificationPipeline {
+        final List<NotificationEnvelope> submitted = new CopyOnWriteArrayList<>();
+
+        FakePipeline(final NotificationProcessor processor,
+                final SimpleMeterRegistry meterRegistry) {
+            super(processor, meterRegistry, 10, 1, RejectionPolicy.REJECT);
+        }
+
+        @Override
+        public boolean submit(final NotificationEnvelope notifications) {
+            submitted.add(notifications);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+class NotificationDeduplicatorTests {
+
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    private final TestClock clock = new TestClock();
+
+    @Test
+    void dropsRedeliveriesOfTheSameChange() {
+        final var deduplicator = create(100);
+
+        assertFalse(isDuplicate(deduplicator, "a"));
+        assertTrue(isDuplicate(deduplicator, "a"));
+        assertFalse(isDuplicate(deduplicator, "b"));
+        assertFalse(deduplicator.isDuplicate("sub", "Users/u/Messages/a", "updated", "a"));
+        assertEquals(3, deduplicator.size());
+    }
+
+    @Test
+    void keepsNotificationsThroughOneRotation() {
+        final var deduplicator = create(100);
+        isDuplicate(deduplicator, "a");
+
+        // Half the TTL rotates the current generation into the previous one
+        clock.advance(TTL.dividedBy(2));
+        assertTrue(isDuplicate(deduplicator, "a"));
+        assertFalse(isDuplicate(deduplicator, "b"));
+        assertEquals(2, deduplicator.size());
+    }
+
+    @Test
+    void forgetsNotificationsOnceTheTtlHasPassed() {
+        final var deduplicator = create(100);
+        isDuplicate(deduplicator, "a");
+
+        clock.advance(TTL.minusSeconds(1));
+        assertTrue(isDuplicate(deduplicator, "a"));
+
+        clock.advance(Duration.ofSeconds(1));
+        assertFalse(isDuplicate(deduplicator, "a"));
+    }
+
+    @Test
+    void rotatesWhenTheCurrentGenerationIsFull() {
+        // Two fingerprints per generation
+        final var deduplicator = create(4);
+        isDuplicate(deduplicator, "a");
+        isDuplicate(deduplicator, "b");
+
+        // Full, so c starts a new generation and a and b move to the previous one
+        assertFalse(isDuplicate(deduplicator, "c"));
+        assertTrue(isDuplicate(deduplicator, "a"));
+        assertFalse(isDuplicate(deduplicator, "d"));
+
+        // Full again, a and b are rotated out with no time having passed
+        assertFalse(isDuplicate(deduplicator, "e"));
+        assertTrue(isDuplicate(deduplicator, "c"));
+        assertFalse(isDuplicate(deduplicator, "a"));
+    }
+
+    @Test
+    void forgottenNotificationsAreProcessedAgain() {
+        final var deduplicator = create(2000);
+        for (int i = 0; i < 1000; i++) {
+            isDuplicate(deduplicator, Integer.toString(i));
+        }
+
+        for (int i = 0; i < 1000; i += 2) {
+            deduplicator.forget("sub", null, "created", Integer.toString(i));
+        }
+
+        assertEquals(500, deduplicator.size());
+        // Every other entry of a probe run is gone, the rest must still be found
+        for (int i = 1; i < 1000; i += 2) {
+            assertTrue(isDuplicate(deduplicator, Integer.toString(i)), Integer.toString(i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertFalse(isDuplicate(deduplicator, Integer.toString(i)), Integer.toString(i));
+        }
+    }
+
+    @Test
+    void liveNotificationAndDeltaCopyCollapseToOne() {
+        // The resource path differs between a notification and a delta query, the ID doesn't
+        final long live = NotificationDeduplicator.fingerprint("sub", "Users/u/Messages/a",
+                "created", "a");
+        assertEquals(live, NotificationDeduplicator.fingerprint("sub",
+                "me/mailfolders/inbox/messages/a", "created", "a"));
+        assertEquals(live, NotificationDeduplicator.fingerprint("sub", null, "created", "a"));
+        assertNotEquals(live, NotificationDeduplicator.fingerprint("sub", null, "created", "b"));
+        assertNotEquals(live, NotificationDeduplicator.fingerprint("other", null, "created", "a"));
+        assertNotEquals(live, NotificationDeduplicator.fingerprint("sub", null, "updated", "a"));
+
+        final var deduplicator = create(100);
+        assertFalse(deduplicator.isDuplicate("sub", "Users/u/Messages/a", "created", "a"));
+        assertTrue(deduplicator.isDuplicate("sub", null, "created", "a"));
+        assertEquals(1, deduplicator.size());
+    }
+
+    private NotificationDeduplicator create(final int capacity) {
+        return new NotificationDeduplicator(new SimpleMeterRegistry(), TTL, capacity, clock);
+    }
+
+    private static boolean isDuplicate(final NotificationDeduplicator deduplicator,
+            final String id) {
+        return deduplicator.isDuplicate("sub", null, "created", id);
+    }
+}
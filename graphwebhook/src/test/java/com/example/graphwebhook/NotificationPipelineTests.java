@@ -0,0 +1,173 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.example.graphwebhook.NotificationPipeline.RejectionPolicy;
+import com.example.graphwebhook.notifications.NotificationEnvelope;
+import com.example.graphwebhook.notifications.NotificationItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class NotificationPipelineTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final FakeProcessor processor = new FakeProcessor();
+    private NotificationPipeline pipeline;
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        processor.release.countDown();
+        pipeline.shutdown();
+        processor.shutdown();
+    }
+
+    @Test
+    void rejectsPayloadsWhenTheQueueIsFull() throws InterruptedException {
+        pipeline = fill(RejectionPolicy.REJECT);
+
+        assertFalse(pipeline.submit(envelope("rejected")));
+
+        processor.release.countDown();
+        pipeline.shutdown();
+        assertEquals(List.of("blocking", "queued"), processor.processedIds());
+        assertEquals(1.0, rejected(RejectionPolicy.REJECT));
+    }
+
+    @Test
+    void runsPayloadsOnTheCallerWhenTheQueueIsFull() throws InterruptedException {
+        pipeline = fill(RejectionPolicy.CALLER_RUNS);
+
+        assertTrue(pipeline.submit(envelope("caller")));
+
+        // Processed before submit returned, on this thread
+        assertEquals(List.of("blocking", "caller"), processor.processedIds());
+        assertEquals(Thread.currentThread().getName(), processor.threads.get(1));
+        processor.release.countDown();
+        pipeline.shutdown();
+        assertEquals(List.of("blocking", "caller", "queued"), processor.processedIds());
+        assertEquals(1.0, rejected(RejectionPolicy.CALLER_RUNS));
+    }
+
+    @Test
+    void discardsPayloadsWhenTheQueueIsFull() throws InterruptedException {
+        pipeline = fill(RejectionPolicy.DISCARD);
+
+        assertTrue(pipeline.submit(envelope("discarded")));
+
+        processor.release.countDown();
+        pipeline.shutdown();
+        assertEquals(List.of("blocking", "queued"), processor.processedIds());
+        assertEquals(1.0, rejected(RejectionPolicy.DISCARD));
+    }
+
+    @Test
+    void listenerAsksForRedeliveryWhenThePipelineIsFull() throws InterruptedException {
+        pipeline = fill(RejectionPolicy.REJECT);
+        final var controller = controller();
+
+        final var response = post(controller, """
+                {"value": [
+                  {"subscriptionId": "sub", "clientState": "state", "changeType": "created",
+                   "resource": "Users/u/Messages/1", "resourceData": {"id": "1"}}
+                ]}""");
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+    }
+
+    @Test
+    void listenerAcknowledgesPayloadsItCantParse() throws InterruptedException {
+        pipeline = fill(RejectionPolicy.REJECT);
+
+        // Graph would only send it again
+        assertEquals(HttpStatus.ACCEPTED, post(controller(), "{\"value\": [").getStatusCode());
+    }
+
+    /**
+     * @return a pipeline whose only worker is busy and whose queue is full
+     */
+    private NotificationPipeline fill(final RejectionPolicy policy) throws InterruptedException {
+        final var pipeline = new NotificationPipeline(processor, meterRegistry, 1, 1, policy);
+        assertTrue(pipeline.submit(envelope("blocking")));
+        assertTrue(processor.blocked.await(5, TimeUnit.SECONDS));
+        assertTrue(pipeline.submit(envelope("queued")));
+        return pipeline;
+    }
+
+    private ListenController controller() {
+        final var store = new SubscriptionStoreService();
+        store.addRecord(new SubscriptionRecord("sub", "user", "state",
+                "me/mailfolders/inbox/messages", null, false));
+        final var controller = new ListenController();
+        ReflectionTestUtils.setField(controller, "notificationPipeline", pipeline);
+        ReflectionTestUtils.setField(controller, "preFilter",
+                new NotificationPreFilter(store, meterRegistry, true));
+        ReflectionTestUtils.setField(controller, "streamingParser", true);
+        return controller;
+    }
+
+    private double rejected(final RejectionPolicy policy) {
+        return meterRegistry.get("notifications.pipeline.rejected").tag("policy", policy.name())
+                .counter().count();
+    }
+
+    private static ResponseEntity<String> post(final ListenController controller,
+            final String body) {
+        return controller.handleNotification(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static NotificationEnvelope envelope(final String id) {
+        return new NotificationEnvelope(List.of(), List.of(new NotificationItem("sub", "state",
+                "created", "Users/u/Messages/" + id, id, null, null, null, null)));
+    }
+
+    /**
+     * Records processed payloads and the thread they ran on, holding up the one named blocking
+     */
+    private static final class FakeProcessor extends NotificationProcessor {
+        final List<NotificationEnvelope> processed = new CopyOnWriteArrayList<>();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        FakeProcessor() {
+            super(new SocketIOServer(new Configuration()));
+        }
+
+        @Override
+        public void processNotifications(final NotificationEnvelope notifications) {
+            processed.add(notifications);
+            threads.add(Thread.currentThread().getName());
+            if ("blocking".equals(notifications.items().get(0).resourceDataId())) {
+                blocked.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        List<String> processedIds() {
+            return processed.stream().map(envelope -> envelope.items().get(0).resourceDataId())
+                    .toList();
+        }
+    }
+}
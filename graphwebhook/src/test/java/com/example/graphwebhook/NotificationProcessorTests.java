@@ -0,0 +1,175 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.example.graphwebhook.notifications.NotificationEnvelope;
+import com.example.graphwebhook.notifications.NotificationItem;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class NotificationProcessorTests {
+
+    private static final Duration EMIT_TIMEOUT = Duration.ofMillis(200);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SubscriptionStoreService store = new SubscriptionStoreService();
+    private final KeyedLaneExecutor lanes = new KeyedLaneExecutor(meterRegistry, 1, 10,
+            EMIT_TIMEOUT);
+    private final DecryptionPool decryptionPool = new DecryptionPool(meterRegistry, 1, 4, 10);
+    private final GraphBatchFetcher batchFetcher = new GraphBatchFetcher(new GraphRateLimiter(
+            meterRegistry, false, 4, 4, 100, 16, Duration.ofSeconds(1), 3, Duration.ofMinutes(10)),
+            meterRegistry, Duration.ofMillis(20), 20, 3, 1, true);
+    private final FakeCache resourceCache = new FakeCache(batchFetcher, meterRegistry);
+    private final NotificationDeduplicator deduplicator =
+            new NotificationDeduplicator(meterRegistry, Duration.ofMinutes(10), 1000);
+    private final NotificationProcessor processor =
+            new NotificationProcessor(new SocketIOServer(new Configuration()));
+
+    @BeforeEach
+    void wireProcessor() {
+        store.addRecord(new SubscriptionRecord("sub", "user", "state",
+                "me/mailfolders/inbox/messages", null, false));
+        ReflectionTestUtils.setField(processor, "subscriptionStore", store);
+        ReflectionTestUtils.setField(processor, "decryptionPool", decryptionPool);
+        ReflectionTestUtils.setField(processor, "projections",
+                new PayloadProjections(false, List.of(), List.of(), List.of()));
+        ReflectionTestUtils.setField(processor, "authorizedClientService", authorizedClients());
+        ReflectionTestUtils.setField(processor, "graphClientHelper", new TestGraphClientHelper());
+        ReflectionTestUtils.setField(processor, "resourceCache", resourceCache);
+        ReflectionTestUtils.setField(processor, "deduplicator", deduplicator);
+        ReflectionTestUtils.setField(processor, "lanes", lanes);
+        ReflectionTestUtils.setField(processor, "idleRooms", new IdleRoomBuffer(meterRegistry,
+                IdleRoomBuffer.Policy.PROCESS, 100, Duration.ofMinutes(10)));
+    }
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        processor.shutdown();
+        lanes.shutdown();
+        decryptionPool.shutdown();
+        batchFetcher.shutdown();
+    }
+
+    @Test
+    void processesARedeliveryOfANotificationThatTimedOut() throws InterruptedException {
+        final var notification = message("1");
+
+        processor.processNotifications(envelope(notification));
+        await(() -> deduplicator.size() == 0);
+        processor.processNotifications(envelope(notification));
+
+        // The first fetch never completed, the redelivery is fetched again
+        await(() -> resourceCache.fetched.size() == 2);
+        assertEquals(List.of("Users/u/Messages/1", "Users/u/Messages/1"),
+                resourceCache.fetched);
+    }
+
+    @Test
+    void dropsARedeliveryOfANotificationStillBeingProcessed() throws InterruptedException {
+        final var notification = message("1");
+
+        processor.processNotifications(envelope(notification));
+        processor.processNotifications(envelope(notification));
+        await(() -> meterRegistry.get("notifications.lane.timed-out").counter().count() == 1);
+
+        assertEquals(List.of("Users/u/Messages/1"), resourceCache.fetched);
+    }
+
+    @Test
+    void processesARedeliveryOfADeferredNotificationThatTimedOut() throws InterruptedException {
+        final var idleRooms = new IdleRoomBuffer(new SimpleMeterRegistry(),
+                IdleRoomBuffer.Policy.DEFER, 100, Duration.ofMinutes(10));
+        ReflectionTestUtils.setField(processor, "idleRooms", idleRooms);
+        final var notification = message("1");
+
+        // Nobody is in the room, so the notification waits for a client
+        processor.processNotifications(envelope(notification));
+        await(() -> meterRegistry.get("notifications.lane.processed").counter().count() == 1);
+        assertEquals(List.of(), resourceCache.fetched);
+
+        // A client joins, the replayed fetch stalls and the notification is forgotten again
+        ReflectionTestUtils.invokeMethod(processor, "replayDeferred", "sub");
+        await(() -> deduplicator.size() == 0);
+        processor.processNotifications(envelope(notification));
+
+        // The room is still empty, so the redelivery is deferred rather than dropped
+        await(() -> meterRegistry.get("notifications.lane.processed").counter().count() == 3);
+        assertEquals(List.of(notification), idleRooms.drain("sub"));
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static NotificationItem message(final String id) {
+        return new NotificationItem("sub", "state", "created", "Users/u/Messages/" + id, id, null,
+                null, null, null);
+    }
+
+    private static NotificationEnvelope envelope(final NotificationItem notification) {
+        return new NotificationEnvelope(List.of(), List.of(notification));
+    }
+
+    private static InMemoryOAuth2AuthorizedClientService authorizedClients() {
+        final var registration = ClientRegistration.withRegistrationId("graph")
+                .clientId("client")
+                .authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS)
+                .tokenUri("https://login.microsoftonline.com/tenant/oauth2/v2.0/token")
+                .build();
+        final var service = new InMemoryOAuth2AuthorizedClientService(
+                new InMemoryClientRegistrationRepository(registration));
+        final var now = Instant.now();
+        service.saveAuthorizedClient(new OAuth2AuthorizedClient(registration, "user",
+                new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", now,
+                        now.plusSeconds(3600))),
+                new TestingAuthenticationToken("user", null));
+        return service;
+    }
+
+    /**
+     * Records fetched paths and answers none of them, like a Graph request that stalled
+     */
+    private static final class FakeCache extends GraphResourceCache {
+        final List<String> fetched = new CopyOnWriteArrayList<>();
+
+        FakeCache(final GraphBatchFetcher batchFetcher, final SimpleMeterRegistry meterRegistry) {
+            super(batchFetcher, meterRegistry, false, 10, Duration.ofSeconds(30));
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> fetch(final String principal,
+                final GraphServiceClient graphClient, final String resourcePath) {
+            fetched.add(resourcePath);
+            return new CompletableFuture<>();
+        }
+    }
+}
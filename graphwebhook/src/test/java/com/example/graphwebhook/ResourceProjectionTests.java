@@ -0,0 +1,47 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+class ResourceProjectionTests {
+
+    @Test
+    void addsSelectAndExpandToResourcePath() {
+        final var projection = new ResourceProjection(List.of("id", "subject", "id"),
+                List.of("attachments($select=name,size)"));
+
+        assertEquals("Users/u/Messages/m?$select=id,subject"
+                + "&$expand=attachments%28%24select%3Dname%2Csize%29",
+                projection.apply("Users/u/Messages/m"));
+        assertEquals("messages/m?$top=1&$select=id,subject"
+                + "&$expand=attachments%28%24select%3Dname%2Csize%29",
+                projection.apply("messages/m?$top=1"));
+    }
+
+    @Test
+    void leavesPathAloneWithoutProperties() {
+        assertEquals("Users/u/Messages/m",
+                new ResourceProjection(List.of(), null).apply("Users/u/Messages/m"));
+    }
+
+    @Test
+    void extractsSelectedProperties() {
+        final var projection = new ResourceProjection(List.of("id", "subject", "from", "bodyPreview"),
+                List.of("attachments($select=name)"));
+        final var body = JsonParser.parseString("{\"@odata.etag\":\"W/1\",\"id\":\"m\","
+                + "\"subject\":\"Hello\",\"bodyPreview\":null,"
+                + "\"from\":{\"emailAddress\":{\"name\":\"Megan\"}},\"attachments\":[]}")
+                .getAsJsonObject();
+
+        assertEquals(Map.of("id", "m", "subject", "Hello",
+                "from", "{\"emailAddress\":{\"name\":\"Megan\"}}", "attachments", "[]"),
+                projection.extract(body));
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class SingleFlightTests {
+
+    @Test
+    void concurrentCallsForTheSameKeyShareOneCall() throws Exception {
+        final var singleFlight = new SingleFlight<String, Object>();
+        final var calls = new AtomicInteger();
+        final var response = new CompletableFuture<Object>();
+
+        final var first = singleFlight.execute("a", () -> {
+            calls.incrementAndGet();
+            return response;
+        });
+        final var second = singleFlight.execute("a", () -> {
+            calls.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertEquals(1, singleFlight.size());
+
+        final var result = new Object();
+        response.complete(result);
+
+        assertSame(result, first.get());
+        assertSame(result, second.get());
+        assertEquals(1, calls.get());
+        assertEquals(1, singleFlight.collapsed());
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    void differentKeysDontShare() {
+        final var singleFlight = new SingleFlight<String, String>();
+
+        singleFlight.execute("a", CompletableFuture::new);
+        singleFlight.execute("b", CompletableFuture::new);
+
+        assertEquals(2, singleFlight.size());
+        assertEquals(0, singleFlight.collapsed());
+    }
+
+    @Test
+    void completedCallsAreNotReused() throws Exception {
+        final var singleFlight = new SingleFlight<String, Integer>();
+        final var calls = new AtomicInteger();
+
+        final var first = singleFlight.execute("a",
+                () -> CompletableFuture.completedFuture(calls.incrementAndGet()));
+        final var second = singleFlight.execute("a",
+                () -> CompletableFuture.completedFuture(calls.incrementAndGet()));
+
+        assertEquals(1, first.get().intValue());
+        assertEquals(2, second.get().intValue());
+        assertEquals(0, singleFlight.collapsed());
+    }
+
+    @Test
+    void failuresAreSharedAndForgotten() {
+        final var singleFlight = new SingleFlight<String, String>();
+        final var response = new CompletableFuture<String>();
+
+        final var first = singleFlight.execute("a", () -> response);
+        final var second = singleFlight.execute("a", CompletableFuture::new);
+        response.completeExceptionally(new IllegalStateException("throttled"));
+
+        final var error = assertThrows(ExecutionException.class, second::get);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    void cancellingOneCallerLeavesTheOthers() {
+        final var singleFlight = new SingleFlight<String, String>();
+        final var response = new CompletableFuture<String>();
+
+        final var first = singleFlight.execute("a", () -> response);
+        final var second = singleFlight.execute("a", CompletableFuture::new);
+        first.cancel(false);
+        response.complete("body");
+
+        assertFalse(response.isCancelled());
+        assertEquals("body", second.join());
+    }
+}
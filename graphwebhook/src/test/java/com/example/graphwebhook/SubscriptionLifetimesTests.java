@@ -0,0 +1,33 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class SubscriptionLifetimesTests {
+
+    @Test
+    void usesTheLimitOfEachResourceType() {
+        assertEquals(Duration.ofMinutes(10079),
+                SubscriptionLifetimes.maxLifetime("me/mailfolders/inbox/messages"));
+        assertEquals(Duration.ofMinutes(10079),
+                SubscriptionLifetimes.maxLifetime("/users/u/events"));
+        assertEquals(Duration.ofMinutes(4319),
+                SubscriptionLifetimes.maxLifetime("/teams/getAllMessages"));
+        assertEquals(Duration.ofMinutes(4319),
+                SubscriptionLifetimes.maxLifetime("/chats/c/messages"));
+        assertEquals(Duration.ofMinutes(42299),
+                SubscriptionLifetimes.maxLifetime("/me/drive/root"));
+        assertEquals(Duration.ofMinutes(41759), SubscriptionLifetimes.maxLifetime("/users"));
+    }
+
+    @Test
+    void fallsBackToAnHour() {
+        assertEquals(Duration.ofMinutes(59), SubscriptionLifetimes.maxLifetime("/print/printers"));
+        assertEquals(Duration.ofMinutes(59), SubscriptionLifetimes.maxLifetime(null));
+    }
+}
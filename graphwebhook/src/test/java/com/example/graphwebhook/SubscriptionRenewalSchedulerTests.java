@@ -0,0 +1,242 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.ApiExceptionBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SubscriptionRenewalSchedulerTests {
+
+    private static final Duration TICK = Duration.ofSeconds(1);
+    private static final Duration RENEW_BEFORE = Duration.ofMinutes(5);
+    private static final double JITTER_RATIO = 0.1;
+
+    private final TestClock clock = new TestClock();
+    private final SubscriptionStoreService store = new SubscriptionStoreService();
+    private final FakeBatchFetcher fetcher = new FakeBatchFetcher();
+    private final TestGraphClientHelper clientHelper = new TestGraphClientHelper();
+
+    @AfterEach
+    void shutdown() {
+        fetcher.shutdown();
+    }
+
+    @Test
+    void schedulesRenewalBeforeExpirationWithinTheJitter() {
+        final var scheduler = create(1000);
+        final var expiration = now().plusHours(1);
+        final var expiresAt = expiration.toInstant().toEpochMilli();
+        final var lifetime = Duration.ofHours(1).toMillis();
+
+        final var deadlines = new HashSet<Long>();
+        for (int i = 0; i < 100; i++) {
+            final var record = record("sub-" + i, expiration);
+            scheduler.schedule(record);
+            final long deadline = scheduler.getDeadline(record.subscriptionId);
+            assertTrue(deadline <= expiresAt - RENEW_BEFORE.toMillis());
+            assertTrue(deadline > expiresAt - RENEW_BEFORE.toMillis() - lifetime * JITTER_RATIO);
+            deadlines.add(deadline);
+        }
+        // Subscriptions created together are spread out
+        assertTrue(deadlines.size() > 50);
+
+        // Short lifetimes renew halfway through instead of before they were created
+        final var shortLived = record("short", now().plusMinutes(4));
+        scheduler.schedule(shortLived);
+        assertTrue(scheduler.getDeadline("short") > clock.millis());
+        assertTrue(scheduler.getDeadline("short")
+                <= clock.millis() + Duration.ofMinutes(2).toMillis());
+    }
+
+    @Test
+    void onlyTheLatestScheduleIsRenewed() {
+        final var scheduler = create(1000);
+        final var record = add(record("sub", now().plusMinutes(10)));
+        scheduler.schedule(record);
+        final long first = scheduler.getDeadline("sub");
+
+        // Replaced with a longer-lived record, the first deadline is stale
+        final var replacement = add(record("sub", now().plusHours(2)));
+        scheduler.schedule(replacement);
+        final long second = scheduler.getDeadline("sub");
+        assertTrue(second > first);
+
+        advanceTo(first);
+        scheduler.tick();
+        assertEquals(0, fetcher.patches.size());
+
+        advanceTo(second);
+        scheduler.tick();
+        assertEquals(1, fetcher.patches.size());
+        assertNull(scheduler.getDeadline("sub"));
+    }
+
+    @Test
+    void reschedulesARecordReplacedWhileItsRenewalWasOut() {
+        final var scheduler = create(1000);
+        final var record = add(record("sub", now().plusMinutes(10)));
+        scheduler.schedule(record);
+        advanceTo(scheduler.getDeadline("sub"));
+        scheduler.tick();
+        assertEquals(1, fetcher.patches.size());
+
+        final var replacement = add(record("sub", now().plusHours(2)));
+        fetcher.patches.get(0).complete(renewed(now().plusDays(1)));
+
+        // The replacement is kept and scheduled from its own expiration
+        assertSame(replacement, store.getSubscription("sub"));
+        final long deadline = scheduler.getDeadline("sub");
+        assertTrue(deadline <= replacement.expirationDateTime.toInstant().toEpochMilli()
+                - RENEW_BEFORE.toMillis());
+        assertTrue(deadline > clock.millis() + Duration.ofHours(1).toMillis());
+    }
+
+    @Test
+    void storesTheRenewedExpiration() {
+        final var scheduler = create(1000);
+        scheduler.schedule(add(record("sub", now().plusMinutes(10))));
+        advanceTo(scheduler.getDeadline("sub"));
+        scheduler.tick();
+
+        final var expiration = now().plusDays(1);
+        fetcher.patches.get(0).complete(renewed(expiration));
+
+        assertEquals(expiration.toInstant(),
+                store.getSubscription("sub").expirationDateTime.toInstant());
+        assertNotNull(scheduler.getDeadline("sub"));
+    }
+
+    @Test
+    void removesSubscriptionsGraphNoLongerHas() {
+        final var scheduler = create(1000);
+        scheduler.schedule(add(record("sub", now().plusMinutes(10))));
+        advanceTo(scheduler.getDeadline("sub"));
+        scheduler.tick();
+
+        fetcher.patches.get(0).completeExceptionally(new ApiExceptionBuilder()
+                .withMessage("Not found").withResponseStatusCode(404).build());
+
+        assertNull(store.getSubscription("sub"));
+        assertNull(scheduler.getDeadline("sub"));
+    }
+
+    @Test
+    void retriesOtherFailures() {
+        final var scheduler = create(1000);
+        scheduler.schedule(add(record("sub", now().plusMinutes(10))));
+        advanceTo(scheduler.getDeadline("sub"));
+        scheduler.tick();
+
+        fetcher.patches.get(0).completeExceptionally(new ApiExceptionBuilder()
+                .withMessage("Unavailable").withResponseStatusCode(500).build());
+
+        assertNotNull(store.getSubscription("sub"));
+        assertEquals(clock.millis() + Duration.ofMinutes(1).toMillis(),
+                scheduler.getDeadline("sub"));
+    }
+
+    @Test
+    void spreadsRenewalsPastMaxInFlightOverLaterTicks() {
+        final var scheduler = create(2);
+        final var expiration = now().plusMinutes(10);
+        long latest = 0;
+        for (int i = 0; i < 5; i++) {
+            final var record = add(record("sub-" + i, expiration));
+            scheduler.schedule(record);
+            latest = Math.max(latest, scheduler.getDeadline(record.subscriptionId));
+        }
+
+        advanceTo(latest);
+        scheduler.tick();
+        assertEquals(2, fetcher.patches.size());
+        for (int i = 0; i < 5; i++) {
+            final var deadline = scheduler.getDeadline("sub-" + i);
+            if (deadline != null) {
+                assertEquals(clock.millis() + TICK.toMillis(), deadline.longValue());
+            }
+        }
+
+        // Still two out, so nothing more is sent
+        advanceTo(clock.millis() + TICK.toMillis());
+        scheduler.tick();
+        assertEquals(2, fetcher.patches.size());
+
+        fetcher.patches.forEach(patch -> patch.complete(renewed(now().plusDays(1))));
+        advanceTo(clock.millis() + TICK.toMillis());
+        scheduler.tick();
+        assertEquals(4, fetcher.patches.size());
+    }
+
+    private SubscriptionRenewalScheduler create(final int maxInFlight) {
+        return new SubscriptionRenewalScheduler(store, clientHelper, fetcher,
+                new SimpleMeterRegistry(), true, TICK, 64, RENEW_BEFORE, JITTER_RATIO,
+                Duration.ofMinutes(1), maxInFlight, clock);
+    }
+
+    private OffsetDateTime now() {
+        return OffsetDateTime.ofInstant(clock.instant(), ZoneOffset.UTC);
+    }
+
+    private void advanceTo(final long millis) {
+        if (millis > clock.millis()) {
+            // The wheel rounds deadlines up to the next tick
+            clock.advance(Duration.ofMillis(millis - clock.millis()).plus(TICK));
+        }
+    }
+
+    private SubscriptionRecord add(final SubscriptionRecord record) {
+        store.addRecord(record);
+        return record;
+    }
+
+    private static SubscriptionRecord record(final String id, final OffsetDateTime expiration) {
+        return new SubscriptionRecord(id, "user", "state", "me/mailfolders/inbox/messages",
+                expiration, false);
+    }
+
+    private static JsonObject renewed(final OffsetDateTime expiration) {
+        final var body = new JsonObject();
+        body.addProperty("expirationDateTime", expiration.toString());
+        return body;
+    }
+
+    /**
+     * Holds PATCHes until the test completes them
+     */
+    private static final class FakeBatchFetcher extends GraphBatchFetcher {
+        final List<CompletableFuture<JsonObject>> patches = new CopyOnWriteArrayList<>();
+
+        FakeBatchFetcher() {
+            super(new GraphRateLimiter(new SimpleMeterRegistry(), false, 4, 4, 100, 16,
+                    Duration.ofSeconds(1), 3, Duration.ofMinutes(10)), new SimpleMeterRegistry(),
+                    Duration.ofMillis(20), 20, 3, 1, true);
+        }
+
+        @Override
+        public CompletableFuture<JsonObject> patch(final String principal,
+                final GraphServiceClient graphClient, final String resourcePath,
+                final JsonObject body) {
+            final var result = new CompletableFuture<JsonObject>();
+            patches.add(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.microsoft.graph.models.Subscription;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SubscriptionStoreServiceTests {
+
+    private static final int THREADS = 8;
+    private static final int PER_THREAD = 2000;
+    private static final int USERS = 16;
+
+    private SubscriptionStoreService store;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        store = new SubscriptionStoreService();
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void addSubscriptionStoresRecord() {
+        final var subscription = new Subscription();
+        subscription.setId("sub-1");
+        subscription.setClientState("state-1");
+
+        store.addSubscription(subscription, "user-1");
+
+        final var record = store.getSubscription("sub-1");
+        assertNotNull(record);
+        assertEquals("user-1", record.userId);
+        assertEquals("state-1", record.clientState);
+        assertEquals(1, store.getSubscriptionsForUser("user-1").size());
+    }
+
+    @Test
+    void moveToAnotherUserUpdatesIndex() {
+        store.addRecord(new SubscriptionRecord("sub-1", "user-1", "state"));
+        store.addRecord(new SubscriptionRecord("sub-1", "user-2", "state"));
+
+        assertTrue(store.getSubscriptionsForUser("user-1").isEmpty());
+        assertEquals(1, store.getSubscriptionsForUser("user-2").size());
+    }
+
+    @Test
+    void parallelAddsAreNotLost() throws Exception {
+        runInParallel(thread -> {
+            for (int i = 0; i < PER_THREAD; i++) {
+                store.addRecord(record(thread, i));
+            }
+        });
+
+        assertEquals(THREADS * PER_THREAD, store.size());
+        int indexed = 0;
+        for (int user = 0; user < USERS; user++) {
+            indexed += store.getSubscriptionsForUser(userId(user)).size();
+        }
+        assertEquals(THREADS * PER_THREAD, indexed);
+    }
+
+    @Test
+    void parallelAddsAndDeletesLeaveOnlyRetainedRecords() throws Exception {
+        // Every thread adds its records and deletes the odd ones again
+        runInParallel(thread -> {
+            for (int i = 0; i < PER_THREAD; i++) {
+                store.addRecord(record(thread, i));
+                if (i % 2 == 1) {
+                    store.deleteSubscription(subscriptionId(thread, i));
+                }
+            }
+        });
+
+        assertEquals(THREADS * PER_THREAD / 2, store.size());
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int i = 0; i < PER_THREAD; i++) {
+                final var record = store.getSubscription(subscriptionId(thread, i));
+                if (i % 2 == 1) {
+                    assertNull(record);
+                } else {
+                    assertNotNull(record);
+                }
+            }
+        }
+
+        int indexed = 0;
+        for (int user = 0; user < USERS; user++) {
+            for (final var record : store.getSubscriptionsForUser(userId(user))) {
+                assertEquals(userId(user), record.userId);
+                indexed++;
+            }
+        }
+        assertEquals(THREADS * PER_THREAD / 2, indexed);
+    }
+
+    @Test
+    void lookupsDuringUpdatesOnlySeeMatchingRecords() throws Exception {
+        final var done = new AtomicBoolean(false);
+        final var readers = new ArrayList<Future<?>>();
+        for (int reader = 0; reader < THREADS / 2; reader++) {
+            readers.add(executor.submit(() -> {
+                while (!done.get()) {
+                    for (int user = 0; user < USERS; user++) {
+                        for (final var record : store.getSubscriptionsForUser(userId(user))) {
+                            assertEquals(userId(user), record.userId);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+
+        final var writers = new ArrayList<Future<?>>();
+        for (int thread = 0; thread < THREADS / 2; thread++) {
+            final int writer = thread;
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < PER_THREAD; i++) {
+                    store.addRecord(record(writer, i));
+                    final var record = store.getSubscription(subscriptionId(writer, i));
+                    assertNotNull(record);
+                    store.deleteSubscription(subscriptionId(writer, i));
+                }
+                return null;
+            }));
+        }
+
+        for (final var writer : writers) {
+            writer.get(30, TimeUnit.SECONDS);
+        }
+        done.set(true);
+        for (final var reader : readers) {
+            reader.get(30, TimeUnit.SECONDS);
+        }
+
+        assertEquals(0, store.size());
+        for (int user = 0; user < USERS; user++) {
+            assertTrue(store.getSubscriptionsForUser(userId(user)).isEmpty());
+        }
+    }
+
+    private void runInParallel(final ThreadTask task) throws Exception {
+        final var start = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            final int index = thread;
+            futures.add(executor.submit(() -> {
+                start.await();
+                task.run(index);
+                return null;
+            }));
+        }
+        start.countDown();
+        for (final var future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private static SubscriptionRecord record(final int thread, final int i) {
+        return new SubscriptionRecord(subscriptionId(thread, i), userId(i % USERS), "state");
+    }
+
+    private static String subscriptionId(final int thread, final int i) {
+        return "sub-" + thread + "-" + i;
+    }
+
+    private static String userId(final int user) {
+        return "user-" + user;
+    }
+
+    @FunctionalInterface
+    private interface ThreadTask {
+        void run(int thread);
+    }
+}
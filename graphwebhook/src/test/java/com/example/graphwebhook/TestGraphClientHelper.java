@@ -0,0 +1,63 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+import com.microsoft.graph.serviceclient.GraphServiceClient;
+import com.microsoft.kiota.authentication.AnonymousAuthenticationProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.security.oauth2.client.InMemoryOAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+
+/**
+ * Hands out Graph clients without signing anyone in
+ */
+final class TestGraphClientHelper extends GraphClientHelper {
+
+    private final Supplier<GraphServiceClient> clients;
+
+    /**
+     * Hands out unauthenticated clients that talk to Microsoft Graph
+     */
+    TestGraphClientHelper() {
+        this(() -> new GraphServiceClient(new AnonymousAuthenticationProvider()));
+    }
+
+
+    /**
+     * @param clients supplies the client for every principal
+     */
+    TestGraphClientHelper(final Supplier<GraphServiceClient> clients) {
+        super(new GraphRateLimiter(new SimpleMeterRegistry(), false, 4, 4, 100, 16,
+                Duration.ofSeconds(1), 3, Duration.ofMinutes(10)),
+                new InMemoryClientRegistrationRepository(registration()),
+                new InMemoryOAuth2AuthorizedClientService(
+                        new InMemoryClientRegistrationRepository(registration())),
+                1, Duration.ofMinutes(1), 8, 8, 10);
+        this.clients = clients;
+    }
+
+    @Override
+    public GraphServiceClient getGraphClient(final OAuth2AuthorizedClient oauthClient) {
+        return clients.get();
+    }
+
+    @Override
+    public GraphServiceClient getGraphClient(final String registrationId,
+            final String principalName) {
+        return clients.get();
+    }
+
+    private static ClientRegistration registration() {
+        return ClientRegistration.withRegistrationId("graph")
+                .clientId("client")
+                .authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS)
+                .tokenUri("https://login.microsoftonline.com/tenant/oauth2/v2.0/token")
+                .build();
+    }
+}
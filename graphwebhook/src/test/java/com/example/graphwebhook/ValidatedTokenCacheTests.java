@@ -0,0 +1,96 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import com.example.graphwebhook.ValidatedTokenCache.EvictionPolicy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+class ValidatedTokenCacheTests {
+
+    private final TestClock clock = new TestClock();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void remembersTokensUntilTheirExpiration() {
+        final var cache = create(10, EvictionPolicy.LRU);
+        cache.addValidToken("a", expiresIn(Duration.ofMinutes(1)));
+
+        clock.advance(Duration.ofMinutes(1).minusMillis(1));
+        assertTrue(cache.isKnownValid("a"));
+
+        // Expired at exp itself
+        clock.advance(Duration.ofMillis(1));
+        assertFalse(cache.isKnownValid("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1.0, requests("hit"));
+        assertEquals(1.0, requests("miss"));
+    }
+
+    @Test
+    void neverServesAnExpiredToken() {
+        final var cache = create(10, EvictionPolicy.LRU);
+        cache.addValidToken("a", expiresIn(Duration.ofMinutes(1)));
+        clock.advance(Duration.ofMinutes(2));
+
+        assertFalse(cache.isKnownValid("a"));
+        assertFalse(cache.isKnownValid("a"));
+
+        // Nor one that had already expired when it was validated
+        cache.addValidToken("a", expiresIn(Duration.ZERO));
+        cache.addValidToken("b", expiresIn(Duration.ofMinutes(-1)));
+        assertEquals(0, cache.size());
+        assertFalse(cache.isKnownValid("a"));
+        assertFalse(cache.isKnownValid("b"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedToken() {
+        final var cache = create(2, EvictionPolicy.LRU);
+        cache.addValidToken("a", expiresIn(Duration.ofHours(1)));
+        cache.addValidToken("b", expiresIn(Duration.ofHours(1)));
+        assertTrue(cache.isKnownValid("a"));
+
+        cache.addValidToken("c", expiresIn(Duration.ofHours(1)));
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.isKnownValid("a"));
+        assertFalse(cache.isKnownValid("b"));
+        assertTrue(cache.isKnownValid("c"));
+    }
+
+    @Test
+    void evictsTheFirstValidatedToken() {
+        final var cache = create(2, EvictionPolicy.FIFO);
+        cache.addValidToken("a", expiresIn(Duration.ofHours(1)));
+        cache.addValidToken("b", expiresIn(Duration.ofHours(1)));
+        // Looking a token up doesn't keep it around
+        assertTrue(cache.isKnownValid("a"));
+
+        cache.addValidToken("c", expiresIn(Duration.ofHours(1)));
+
+        assertEquals(2, cache.size());
+        assertFalse(cache.isKnownValid("a"));
+        assertTrue(cache.isKnownValid("b"));
+        assertTrue(cache.isKnownValid("c"));
+    }
+
+    private ValidatedTokenCache create(final int maxSize, final EvictionPolicy evictionPolicy) {
+        return new ValidatedTokenCache(meterRegistry, maxSize, evictionPolicy, clock);
+    }
+
+    private long expiresIn(final Duration duration) {
+        return clock.millis() + duration.toMillis();
+    }
+
+    private double requests(final String result) {
+        return meterRegistry.get("token.validation.cache.requests").tag("result", result)
+                .counter().count();
+    }
+}
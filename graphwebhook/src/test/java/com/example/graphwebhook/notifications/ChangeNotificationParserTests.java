@@ -0,0 +1,196 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook.notifications;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import com.microsoft.kiota.ApiClientBuilder;
+import com.microsoft.kiota.serialization.JsonParseNodeFactory;
+import com.microsoft.kiota.serialization.KiotaJsonSerialization;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ChangeNotificationParserTests {
+
+    private static final Logger log = LoggerFactory.getLogger(ChangeNotificationParserTests.class);
+    private static final int NOTIFICATIONS = 50;
+    private static final int ITERATIONS = 200;
+
+    @BeforeAll
+    static void registerDeserializer() {
+        ApiClientBuilder.registerDefaultDeserializer(JsonParseNodeFactory::new);
+    }
+
+    @Test
+    void parsesSameFieldsAsKiotaModel() throws IOException {
+        final var payload = payload(3);
+
+        final var streamed = parseStreaming(payload);
+        final var kiota = parseKiota(payload);
+
+        assertEquals(kiota, streamed);
+        assertEquals(3, streamed.items().size());
+        assertEquals(1, streamed.validationTokens().size());
+
+        final var item = streamed.items().get(1);
+        assertEquals("subscription-1", item.subscriptionId());
+        assertEquals("state-1", item.clientState());
+        assertEquals("created", item.changeType());
+        assertEquals("message-1", item.resourceDataId());
+        assertEquals("key-1", item.encryptedContent().dataKey());
+        assertEquals("ABCDEF", item.encryptedContent().encryptionCertificateThumbprint());
+    }
+
+    @Test
+    void skipsUnknownAndNullFields() throws IOException {
+        final var payload = "{\"value\":[{\"subscriptionId\":\"s\",\"unknown\":{\"a\":[1,2]},"
+                + "\"clientState\":null,\"encryptedContent\":null}],\"extra\":true}";
+
+        final var parsed = parseStreaming(payload);
+
+        assertEquals(1, parsed.items().size());
+        assertEquals("s", parsed.items().get(0).subscriptionId());
+        assertNull(parsed.items().get(0).clientState());
+        assertNull(parsed.items().get(0).encryptedContent());
+        assertTrue(parsed.validationTokens().isEmpty());
+    }
+
+    @Test
+    void dropsItemsRejectedByFilter() throws IOException {
+        final var payload = payload(4);
+
+        final var parsed = ChangeNotificationParser.parse(
+                new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8)),
+                (subscriptionId, clientState) -> subscriptionId.endsWith("1")
+                        || clientState.endsWith("3"));
+
+        assertEquals(2, parsed.items().size());
+        assertEquals("subscription-1", parsed.items().get(0).subscriptionId());
+        assertEquals("subscription-3", parsed.items().get(1).subscriptionId());
+        assertEquals("key-3", parsed.items().get(1).encryptedContent().dataKey());
+        assertEquals(1, parsed.validationTokens().size());
+    }
+
+    @Test
+    void filtersItemsWithoutClientState() throws IOException {
+        final var payload = "{\"value\":[{\"subscriptionId\":\"s\",\"encryptedContent\":null}]}";
+
+        final var parsed = ChangeNotificationParser.parse(
+                new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8)),
+                (subscriptionId, clientState) -> clientState != null);
+
+        assertTrue(parsed.items().isEmpty());
+    }
+
+    @Test
+    void emptyBodyIsEmptyEnvelope() throws IOException {
+        assertSame(NotificationEnvelope.EMPTY, parseStreaming(""));
+    }
+
+    @Test
+    void rejectsUnexpectedShape() {
+        assertThrows(IOException.class, () -> parseStreaming("[1, 2, 3]"));
+    }
+
+    @Test
+    void splitsLifecycleNotificationsFromChanges() throws IOException {
+        final var payload = "{\"value\":[{\"subscriptionId\":\"a\",\"clientState\":\"s\","
+                + "\"changeType\":\"created\",\"resource\":\"messages/1\"},"
+                + "{\"subscriptionId\":\"b\",\"clientState\":\"s\","
+                + "\"lifecycleEvent\":\"reauthorizationRequired\","
+                + "\"subscriptionExpirationDateTime\":\"2021-03-29T04:53:52.035+00:00\"}],"
+                + "\"validationTokens\":[\"token\"]}";
+
+        final var parsed = parseStreaming(payload);
+        final var lifecycle = parsed.lifecycleNotifications();
+        final var changes = parsed.changeNotifications();
+
+        assertEquals(1, lifecycle.items().size());
+        assertEquals("reauthorizationRequired", lifecycle.items().get(0).lifecycleEvent());
+        assertEquals(parsed.validationTokens(), lifecycle.validationTokens());
+        assertEquals(1, changes.items().size());
+        assertEquals("a", changes.items().get(0).subscriptionId());
+        assertSame(changes, changes.changeNotifications());
+        assertTrue(changes.lifecycleNotifications().items().isEmpty());
+    }
+
+    /**
+     * Reports the bytes allocated per notification by the streaming parser and the Kiota models.
+     * The numbers depend on the JVM and the JIT, so they're logged rather than asserted
+     */
+    @Test
+    @Tag("benchmark")
+    void benchmarkAllocationPerNotification() throws IOException {
+        final var threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final var allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported()
+                && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        final var payload = payload(NOTIFICATIONS);
+
+        // Warm up both paths so class loading and JIT don't skew the numbers
+        for (int i = 0; i < ITERATIONS; i++) {
+            parseStreaming(payload);
+            parseKiota(payload);
+        }
+
+        long start = allocationBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parseStreaming(payload);
+        }
+        final long streaming = (allocationBean.getCurrentThreadAllocatedBytes() - start)
+                / ((long) ITERATIONS * NOTIFICATIONS);
+
+        start = allocationBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parseKiota(payload);
+        }
+        final long kiota = (allocationBean.getCurrentThreadAllocatedBytes() - start)
+                / ((long) ITERATIONS * NOTIFICATIONS);
+
+        log.info("Bytes allocated per notification: streaming {}, Kiota {}", streaming, kiota);
+    }
+
+    private static NotificationEnvelope parseStreaming(final String payload) throws IOException {
+        return ChangeNotificationParser
+                .parse(new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static NotificationEnvelope parseKiota(final String payload) throws IOException {
+        return NotificationEnvelope.fromModel(KiotaJsonSerialization.deserialize(payload,
+                ChangeNotificationCollection::createFromDiscriminatorValue));
+    }
+
+    private static String payload(final int notifications) {
+        final var builder = new StringBuilder("{\"value\":[");
+        for (int i = 0; i < notifications; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"subscriptionId\":\"subscription-").append(i)
+                    .append("\",\"clientState\":\"state-").append(i)
+                    .append("\",\"changeType\":\"created\",\"resource\":\"teams('t')/channels('c')/messages('")
+                    .append(i).append("')\",\"tenantId\":\"tenant\",")
+                    .append("\"resourceData\":{\"id\":\"message-").append(i)
+                    .append("\",\"@odata.type\":\"#Microsoft.Graph.chatMessage\"},")
+                    .append("\"encryptedContent\":{\"data\":\"ZGF0YQ==\",\"dataKey\":\"key-").append(i)
+                    .append("\",\"dataSignature\":\"c2lnbmF0dXJl\",\"encryptionCertificateId\":\"cert\",")
+                    .append("\"encryptionCertificateThumbprint\":\"ABCDEF\"}}");
+        }
+        return builder.append("],\"validationTokens\":[\"token\"]}").toString();
+    }
+}
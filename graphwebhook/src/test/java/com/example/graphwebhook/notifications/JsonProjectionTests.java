@@ -0,0 +1,105 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+
+package com.example.graphwebhook.notifications;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import com.microsoft.graph.models.ChatMessage;
+import com.microsoft.kiota.ApiClientBuilder;
+import com.microsoft.kiota.serialization.JsonParseNodeFactory;
+import com.microsoft.kiota.serialization.KiotaJsonSerialization;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class JsonProjectionTests {
+
+    private static final String CHAT_MESSAGE = "{\"id\":\"1616990032035\","
+            + "\"createdDateTime\":\"2021-03-29T03:53:52.035Z\",\"importance\":\"normal\","
+            + "\"attachments\":[{\"id\":\"a\",\"content\":{\"from\":\"not the sender\"}}],"
+            + "\"mentions\":[],\"reactions\":[{\"reactionType\":\"like\"}],"
+            + "\"from\":{\"application\":null,\"device\":null,"
+            + "\"user\":{\"id\":\"u\",\"displayName\":\"Megan Bowen\",\"userIdentityType\":\"aadUser\"}},"
+            + "\"body\":{\"contentType\":\"html\",\"content\":\"<p>Hello \\u00e9</p>\"},"
+            + "\"channelIdentity\":{\"teamId\":\"t\",\"channelId\":\"c\"}}";
+
+    @BeforeAll
+    static void registerDeserializer() {
+        ApiClientBuilder.registerDefaultDeserializer(JsonParseNodeFactory::new);
+    }
+
+    @Test
+    void extractsSameValuesAsKiotaModel() throws IOException {
+        final var projection = JsonProjection.of(List.of("from.user.displayName", "body.content"));
+
+        final var values = extract(projection, CHAT_MESSAGE);
+        final var message = KiotaJsonSerialization.deserialize(CHAT_MESSAGE,
+                ChatMessage::createFromDiscriminatorValue);
+
+        assertEquals(message.getFrom().getUser().getDisplayName(),
+                values.get("from.user.displayName"));
+        assertEquals(message.getBody().getContent(), values.get("body.content"));
+        assertEquals(2, values.size());
+    }
+
+    @Test
+    void extractsScalarsOfEveryType() throws IOException {
+        final var projection = JsonProjection.of(List.of("a", "b.c", "d", "e"));
+
+        final var values = extract(projection, "{\"a\":1.5,\"b\":{\"c\":true},\"d\":null,\"e\":\"x\"}");
+
+        assertEquals("1.5", values.get("a"));
+        assertEquals("true", values.get("b.c"));
+        assertTrue(values.containsKey("d"));
+        assertNull(values.get("d"));
+        assertEquals("x", values.get("e"));
+    }
+
+    @Test
+    void leavesOutMissingAndNonScalarPaths() throws IOException {
+        final var projection = JsonProjection.of(List.of("from", "channelIdentity.missing",
+                "attachments.content.from", "body.content"));
+
+        final var values = extract(projection, CHAT_MESSAGE);
+
+        assertEquals(Map.of("body.content", "<p>Hello \u00e9</p>"), values);
+    }
+
+    @Test
+    void stopsReadingOnceEveryPathIsFound() throws IOException {
+        final var projection = JsonProjection.of(List.of("id"));
+
+        // Everything after the projected field is malformed and never read
+        final var values = extract(projection, "{\"id\":\"1\",\"body\":{{{");
+
+        assertEquals(Map.of("id", "1"), values);
+    }
+
+    @Test
+    void rejectsInvalidPaths() {
+        assertThrows(IllegalArgumentException.class, () -> JsonProjection.of(List.of("a..b")));
+        assertThrows(IllegalArgumentException.class, () -> JsonProjection.of(List.of(".a")));
+        assertThrows(IllegalArgumentException.class, () -> JsonProjection.of(List.of(" ")));
+    }
+
+    @Test
+    void rejectsContentThatIsNotAnObject() {
+        final var projection = JsonProjection.of(List.of("id"));
+
+        assertThrows(IOException.class, () -> extract(projection, "[1, 2]"));
+    }
+
+    private static Map<String, String> extract(final JsonProjection projection,
+            final String content) throws IOException {
+        return projection.extract(
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}